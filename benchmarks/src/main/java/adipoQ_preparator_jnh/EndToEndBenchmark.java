@@ -0,0 +1,296 @@
+package adipoQ_preparator_jnh;
+/**
+ * Offline end-to-end benchmark of the complete AdipoQ Preparator batch processing (processTasks, i.e.,
+ * everything run() does after the settings dialogs: opening, processing, saving the output image,
+ * the ROI and the metadata file).
+ *
+ * Synthetic single-series TIFF files and a multi-series OME-TIFF file (opened via Bio-Formats) are created
+ * for histology-like and fluorescence-like images (see SyntheticImages) and processed with the default settings
+ * for histology and for cultured cells, each with the auto-threshold and with a CUSTOM threshold.
+ *
+ * Reports images/hour, the time spent per processing stage and the peak heap usage for each scenario.
+ * With -out, the mean and confidence interval over all repeats are saved as metric file for PerformanceBaseline.
+ *
+ * Run headless:
+ * 		java -Djava.awt.headless=true -cp target/benchmarks.jar adipoQ_preparator_jnh.EndToEndBenchmark
+ * 			[-edge 4096] [-images 2] [-series 2] [-channels 2] [-bits 16] [-dir path]
+ * 			[-repeats 1] [-out endtoend.tsv] [-parallelImages 1] [-pipelineIO true] [-taskOrder 0] [-autoTune false] [-blurEngine 0]
+ * 			[-backgroundEngine 0] [-watershedEngine 0] [-roiOutline 0] [-reportDeviation false]
+ * -parallelImages sets the number of images processed at the same time (batch workers),
+ * -pipelineIO false disables overlapping the file input / output with the processing (see TaskPipeline),
+ * -taskOrder selects the task order (index in AdipoQPreparatorMain.taskOrderVariant, see TaskOrder),
+ * -autoTune true determines the parallel processing settings on a sample of the first image (see AutoTuner),
+ * -blurEngine selects the Gaussian blur engine (index in AdipoQPreparatorMain.blurEngineVariant, see RecursiveGaussian),
+ * -backgroundEngine selects the background subtraction engine (index in AdipoQPreparatorMain.backgroundEngineVariant,
+ * see FastBackground),
+ * -reportDeviation true measures the deviation of the fast engines from ImageJ on a sample of each image (validation only),
+ * -watershedEngine selects the watershed engine (index in AdipoQPreparatorMain.watershedEngineVariant, see FastWatershed),
+ * -roiOutline selects how the non-zero-pixel ROI is outlined (index in AdipoQPreparatorMain.roiOutlineVariant, see MaskOutline).
+ */
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+import ij.ImagePlus;
+
+public class EndToEndBenchmark {
+	static final DecimalFormat df3 = new DecimalFormat("#0.000", new DecimalFormatSymbols(Locale.US));
+	static final DecimalFormat df1 = new DecimalFormat("#0.0", new DecimalFormatSymbols(Locale.US));
+
+	/**
+	 * A combination of default settings (0 = histology, 1 = cultured cells) and threshold method
+	 * */
+	static class Scenario {
+		String name;
+		int defaultType;
+		boolean customThreshold;
+
+		Scenario(String name, int defaultType, boolean customThreshold){
+			this.name = name;
+			this.defaultType = defaultType;
+			this.customThreshold = customThreshold;
+		}
+	}
+
+	static final Scenario [] SCENARIOS = new Scenario [] {
+			new Scenario("histology", 0, false),
+			new Scenario("histology-custom", 0, true),
+			new Scenario("cells", 1, false),
+			new Scenario("cells-custom", 1, true)
+	};
+
+	/**
+	 * Result of processing one batch
+	 * */
+	static class Result {
+		String scenario;
+		int images;
+		long wallNanos;
+		long peakHeapBytes;
+		LinkedHashMap<String, long []> stages;
+
+		double getImagesPerHour() {
+			return images / (wallNanos / 3600.0e9);
+		}
+	}
+
+	public static void main(String [] args) throws Exception {
+		int edge = 4096, images = 2, series = 2, channels = 2, bitDepth = 16, repeats = 1, parallelImages = 1, taskOrder = 0;
+		int blurEngine = 0, backgroundEngine = 0, watershedEngine = 0, roiOutline = 0;
+		boolean pipelineIO = true, autoTune = false, reportDeviation = false;
+		File dir = new File(System.getProperty("java.io.tmpdir"), "AdipoQPreparatorBenchmark");
+		File out = null;
+		for(int i = 0; i < args.length; i++) {
+			if(args [i].equals("-edge"))			edge = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-images"))		images = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-series"))		series = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-channels"))	channels = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-bits"))		bitDepth = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-dir"))		dir = new File(args [++i]);
+			else if(args [i].equals("-repeats"))	repeats = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-out"))		out = new File(args [++i]);
+			else if(args [i].equals("-parallelImages"))	parallelImages = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-pipelineIO"))	pipelineIO = Boolean.parseBoolean(args [++i]);
+			else if(args [i].equals("-taskOrder"))	taskOrder = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-autoTune"))	autoTune = Boolean.parseBoolean(args [++i]);
+			else if(args [i].equals("-blurEngine"))	blurEngine = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-backgroundEngine"))	backgroundEngine = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-watershedEngine"))	watershedEngine = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-roiOutline"))	roiOutline = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-reportDeviation"))	reportDeviation = Boolean.parseBoolean(args [++i]);
+			else {
+				System.out.println("Unknown argument " + args [i] + " - usage: [-edge 4096] [-images 2] [-series 2] [-channels 2] [-bits 16] [-dir path]"
+						+ " [-repeats 1] [-out endtoend.tsv] [-parallelImages 1] [-pipelineIO true] [-taskOrder 0] [-autoTune false] [-blurEngine 0] [-backgroundEngine 0] [-watershedEngine 0] [-roiOutline 0] [-reportDeviation false]");
+				return;
+			}
+		}
+
+		System.out.println("Creating synthetic input images (" + edge + " x " + edge + " px, " + channels + " channels, "
+				+ bitDepth + " bit) in " + dir.getAbsolutePath());
+		String [][] histologyFiles = createInputs(new File(dir, "histology"), true, edge, channels, bitDepth, images, series);
+		String [][] fluorescenceFiles = createInputs(new File(dir, "fluorescence"), false, edge, channels, bitDepth, images, series);
+
+		ArrayList<PerformanceBaseline.Metric> metrics = new ArrayList<PerformanceBaseline.Metric>();
+		for(int s = 0; s < SCENARIOS.length; s++) {
+			String [][] files;
+			if(SCENARIOS [s].defaultType == 0) {
+				files = histologyFiles;
+			}else {
+				files = fluorescenceFiles;
+			}
+			Result [] results = new Result [repeats];
+			for(int r = 0; r < repeats; r++) {
+				AdipoQPreparatorMain main = createPlugin(SCENARIOS [s].defaultType, SCENARIOS [s].customThreshold, channels, bitDepth);
+				main.parallelImages = parallelImages;
+				main.pipelineIO = pipelineIO;
+				main.chosenTaskOrder = AdipoQPreparatorMain.taskOrderVariant [taskOrder];
+				main.autoTune = autoTune;
+				main.chosenBlurEngine = AdipoQPreparatorMain.blurEngineVariant [blurEngine];
+				main.chosenBackgroundEngine = AdipoQPreparatorMain.backgroundEngineVariant [backgroundEngine];
+				main.reportEngineDeviation = reportDeviation;
+				main.chosenWatershedEngine = AdipoQPreparatorMain.watershedEngineVariant [watershedEngine];
+				main.chosenRoiOutline = AdipoQPreparatorMain.roiOutlineVariant [roiOutline];
+				results [r] = run(SCENARIOS [s].name, main, files [0], files [1]);
+				printResult(results [r]);
+			}
+			metrics.addAll(getMetrics(results));
+		}
+		if(out != null) {
+			PerformanceBaseline.write(out, metrics);
+			System.out.println("Results saved to " + out.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return images/hour, peak heap and the time per stage as mean over the repeated @param results of one scenario
+	 * */
+	static ArrayList<PerformanceBaseline.Metric> getMetrics(Result [] results) {
+		ArrayList<PerformanceBaseline.Metric> metrics = new ArrayList<PerformanceBaseline.Metric>();
+		String prefix = "e2e/" + results [0].scenario + "/";
+		double [] imagesPerHour = new double [results.length], peakHeap = new double [results.length];
+		for(int r = 0; r < results.length; r++) {
+			imagesPerHour [r] = results [r].getImagesPerHour();
+			peakHeap [r] = results [r].peakHeapBytes / 1048576.0;
+		}
+		metrics.add(PerformanceBaseline.Metric.fromSamples(prefix + "throughput", "images/h", true, imagesPerHour));
+		metrics.add(PerformanceBaseline.Metric.fromSamples(prefix + "peakHeap", "MB", false, peakHeap));
+		for(String stage : results [0].stages.keySet()) {
+			double [] seconds = new double [results.length];
+			for(int r = 0; r < results.length; r++) {
+				long [] entry = results [r].stages.get(stage);
+				if(entry != null)	seconds [r] = entry [0] / 1.0e9;
+			}
+			metrics.add(PerformanceBaseline.Metric.fromSamples(prefix + "stage/" + stage, "s", false, seconds));
+		}
+		return metrics;
+	}
+
+	/**
+	 * Creates @param images single-series TIFF files and one multi-series OME-TIFF file with @param series series
+	 * in @param dir.
+	 * @return {file names, directories} of the created files
+	 * */
+	static String [][] createInputs(File dir, boolean histology, int edge, int channels, int bitDepth, int images, int series) throws Exception {
+		dir.mkdirs();
+		String directory = dir.getAbsolutePath() + System.getProperty("file.separator");
+		String [] names = new String [images + (series > 0 ? 1 : 0)];
+		String [] dirs = new String [names.length];
+		for(int i = 0; i < images; i++) {
+			names [i] = "image" + (i+1) + ".tif";
+			dirs [i] = directory;
+			if(new File(directory + names [i]).exists())	continue;
+			SyntheticImages.saveTiff(createImage(histology, edge, channels, bitDepth, i), directory + names [i]);
+		}
+		if(series > 0) {
+			names [images] = "multiseries.ome.btf";
+			dirs [images] = directory;
+			if(!new File(directory + names [images]).exists()) {
+				ImagePlus [] seriesImps = new ImagePlus [series];
+				for(int s = 0; s < series; s++) {
+					seriesImps [s] = createImage(histology, edge, channels, bitDepth, 100 + s);
+				}
+				SyntheticImages.saveMultiSeries(seriesImps, directory + names [images]);
+			}
+		}
+		return new String [][] {names, dirs};
+	}
+
+	static ImagePlus createImage(boolean histology, int edge, int channels, int bitDepth, long seed) {
+		if(histology) {
+			return SyntheticImages.createHistology(edge, edge, channels, bitDepth, seed);
+		}
+		return SyntheticImages.createFluorescence(edge, edge, channels, bitDepth, seed);
+	}
+
+	/**
+	 * @return a plugin instance configured like after selecting the default settings for
+	 * histology (@param defaultType = 0) or cultured cells (@param defaultType = 1) in the dialogs
+	 * for @param channels segmented channels
+	 * */
+	static AdipoQPreparatorMain createPlugin(int defaultType, boolean customThreshold, int channels, int bitDepth) {
+		AdipoQPreparatorMain main = new AdipoQPreparatorMain();
+		main.selectedTaskVariant = AdipoQPreparatorMain.taskVariant [1];
+		main.loadSeries = "ALL";
+		main.chosenOutputName = AdipoQPreparatorMain.outputVariant [0];
+		main.keepAwake = false;
+		main.dfDialog.setDecimalFormatSymbols(new DecimalFormatSymbols(Locale.US));
+		main.df6.setDecimalFormatSymbols(new DecimalFormatSymbols(Locale.US));
+		main.df3.setDecimalFormatSymbols(new DecimalFormatSymbols(Locale.US));
+		main.df0.setDecimalFormatSymbols(new DecimalFormatSymbols(Locale.US));
+
+		main.includeDuplicateChannel = true;
+		main.deleteOtherChannels = defaultType == 0;
+		main.numberOfChannels = channels;
+		main.setDefaultChannelSettings(defaultType);
+		if(customThreshold) {
+			for(int c = 0; c < channels; c++) {
+				main.chosenAlgorithm [c] = "CUSTOM threshold";
+				if(defaultType == 0) {
+					main.customThr [c] = 0.6 * SyntheticImages.maxValue(bitDepth);
+				}else {
+					main.customThr [c] = 0.1 * SyntheticImages.maxValue(bitDepth);
+				}
+			}
+		}
+		return main;
+	}
+
+	/**
+	 * Processes the files @param names in @param dirs with @param main and measures the processing.
+	 * */
+	static Result run(String scenario, AdipoQPreparatorMain main, String [] names, String [] dirs) {
+		main.tasks = names.length;
+		main.stageTimer = new StageTimer();
+		resetPeakHeap();
+		long start = System.nanoTime();
+		main.processTasks(names.clone(), dirs.clone(), null);
+
+		Result result = new Result();
+		result.scenario = scenario;
+		result.wallNanos = System.nanoTime() - start;
+		result.images = main.tasks;
+		result.peakHeapBytes = getPeakHeap();
+		result.stages = main.stageTimer.getStages();
+		return result;
+	}
+
+	static void printResult(Result result) {
+		System.out.println("");
+		System.out.println("Scenario:	" + result.scenario);
+		System.out.println("	Images:	" + result.images);
+		System.out.println("	Wall time [s]:	" + df3.format(result.wallNanos / 1.0e9));
+		System.out.println("	Images / hour:	" + df1.format(result.getImagesPerHour()));
+		System.out.println("	Peak heap [MB]:	" + df1.format(result.peakHeapBytes / 1048576.0));
+		System.out.println("	Stage	Time [s]	Share [%]	Calls");
+		for(String stage : result.stages.keySet()) {
+			long [] entry = result.stages.get(stage);
+			System.out.println("	" + stage + "	" + df3.format(entry [0] / 1.0e9) + "	"
+					+ df1.format(100.0 * entry [0] / result.wallNanos) + "	" + entry [1]);
+		}
+	}
+
+	static void resetPeakHeap() {
+		System.gc();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP)	pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * @return the sum of the peak usages of all heap memory pools since the last resetPeakHeap()
+	 * */
+	static long getPeakHeap() {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP)	peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+}
@@ -0,0 +1,708 @@
+package adipoQ_preparator_jnh;
+/**
+ * Golden-output equivalence harness: processes the same synthetic input images with the reference pipeline
+ * (single-threaded ImageJ filters, ImageCalculator, RoiEncoder output as implemented in processTasks) and with
+ * each alternative processing variant (e.g., multi-threaded or accelerated paths) and checks that the outputs
+ * are equivalent:
+ * 	- output images (segmented masks and channel copies): bit-identical, for 32-bit images within -floatTolerance
+ * 	- thresholds written to the metadata .txt file: identical, for 32-bit images within -thresholdTolerance;
+ * 		all other metadata lines except dates must be identical
+ * 	- saved ROI files: byte-identical (variants with another ROI outline: containing the same pixels)
+ *
+ * Engines that approximate an ImageJ operation (recursive Gaussian blur, fast background subtraction, fast
+ * watershed; see getApproximateEngines) cannot give the same outputs, as small deviations may shift thresholds.
+ * Each of them is checked directly on the segmentation channels of the input images against the ImageJ operation
+ * it replaces, asserting the documented bound of the engine. The measured deviations are printed for every channel,
+ * also within the bound, so that the bounds can be calibrated against ImageJ from the output of the harness.
+ *
+ * All three task variants (active image, multiple images, all open images) are covered for both background
+ * modes (bright background histology settings and dark background cultured-cell settings), each with and without
+ * rolling-ball background subtraction. Parallel variants are run repeatedly (-repeats) to catch nondeterminism.
+ *
+ * New processing variants are added in getVariants(), new approximate engines in getApproximateEngines().
+ *
+ * Run headless (exits with status 1 if any output differs):
+ * 		java -Djava.awt.headless=true -cp target/benchmarks.jar adipoQ_preparator_jnh.EquivalenceHarness
+ * 			[-edge 1024] [-images 2] [-channels 2] [-bits 16] [-repeats 5] [-floatTolerance 0.0]
+ * 			[-thresholdTolerance 0.0] [-dir path]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+public class EquivalenceHarness {
+	static final String REFERENCE = "reference";
+	/**
+	 * Accuracy of ImageJ's Gaussian blur to which the recursive Gaussian is compared (kernel truncation)
+	 * */
+	static final double GAUSSIAN_ACCURACY = 0.0002;
+
+	/**
+	 * A way of processing the images that shall give the same results as the reference pipeline.
+	 * */
+	static abstract class Variant {
+		String name;
+		boolean parallel;
+		/** if true, ROI files are compared by the pixels they contain instead of byte by byte */
+		boolean compareRoiPixels;
+
+		Variant(String name, boolean parallel){
+			this(name, parallel, false);
+		}
+
+		Variant(String name, boolean parallel, boolean compareRoiPixels){
+			this.name = name;
+			this.parallel = parallel;
+			this.compareRoiPixels = compareRoiPixels;
+		}
+
+		/**
+		 * Adapts the settings of @param main (and global ImageJ preferences) for this variant.
+		 * */
+		abstract void configure(AdipoQPreparatorMain main);
+	}
+
+	/**
+	 * A variant that changes a single setting (see enable) of the reference variant @param reference, so that a
+	 * difference can be attributed to the setting.
+	 * */
+	static abstract class Switch extends Variant {
+		final Variant reference;
+
+		Switch(String name, boolean parallel, boolean compareRoiPixels, Variant reference){
+			super(name, parallel, compareRoiPixels);
+			this.reference = reference;
+		}
+
+		Switch(String name, boolean parallel, Variant reference){
+			this(name, parallel, false, reference);
+		}
+
+		void configure(AdipoQPreparatorMain main) {
+			reference.configure(main);
+			enable(main);
+		}
+
+		/**
+		 * Changes the setting of this variant in @param main (configured as the reference).
+		 * */
+		abstract void enable(AdipoQPreparatorMain main);
+	}
+
+	/**
+	 * An engine whose results deviate from the ImageJ operation it replaces within a documented bound.
+	 * */
+	static abstract class ApproximateEngine {
+		String name;
+
+		ApproximateEngine(String name){
+			this.name = name;
+		}
+
+		/**
+		 * @return the measured deviation of the result of the engine on the segmentation channel @param ip from the ImageJ
+		 * operation (with the settings of @param main for the segmentation channel @param segmC and the mean @param pixelSize)
+		 * and whether it is within the documented bound
+		 * */
+		abstract Deviation check(ImageProcessor ip, AdipoQPreparatorMain main, int segmC, double pixelSize);
+	}
+
+	/**
+	 * A deviation measured by an ApproximateEngine: the measured values and the bound as text.
+	 * */
+	static class Deviation {
+		final boolean withinBound;
+		final String description;
+
+		Deviation(boolean withinBound, String description){
+			this.withinBound = withinBound;
+			this.description = description;
+		}
+	}
+
+	/**
+	 * A combination of task variant, background mode and background subtraction that is tested.
+	 * */
+	static class Case {
+		int taskVariant;
+		/** default settings: 0 = histology (bright background), 1 = cultured cells (dark background) */
+		int defaultType;
+		boolean subtractBackground;
+
+		Case(int taskVariant, int defaultType, boolean subtractBackground){
+			this.taskVariant = taskVariant;
+			this.defaultType = defaultType;
+			this.subtractBackground = subtractBackground;
+		}
+
+		String getName() {
+			return "task" + taskVariant + (defaultType == 0 ? "_bright" : "_dark") + (subtractBackground ? "_bg" : "");
+		}
+	}
+
+	/**
+	 * @return the reference variant (first entry) and all variants that shall be compared with it.
+	 * */
+	static ArrayList<Variant> getVariants() {
+		ArrayList<Variant> variants = new ArrayList<Variant>();
+		final Variant reference = new Variant(REFERENCE, false) {
+			void configure(AdipoQPreparatorMain main) {
+				Prefs.setThreads(1);
+				main.chosenKernelVariant = AdipoQPreparatorMain.kernelVariant [1];
+				main.fusedPasses = false;
+				main.blurInOutput = false;
+				main.edtMorphology = false;
+				main.runFillHoles = false;
+				main.bitDespeckle = false;
+				main.regionBitmask = false;
+				main.chosenBlurEngine = AdipoQPreparatorMain.blurEngineVariant [0];
+				main.chosenBackgroundEngine = AdipoQPreparatorMain.backgroundEngineVariant [0];
+				main.chosenWatershedEngine = AdipoQPreparatorMain.watershedEngineVariant [0];
+				main.chosenRoiOutline = AdipoQPreparatorMain.roiOutlineVariant [0];
+				main.parallelChannels = false;
+				main.parallelImages = 1;
+				main.pipelineIO = false;
+				main.chosenTaskOrder = AdipoQPreparatorMain.taskOrderVariant [0];
+			}
+		};
+		variants.add(reference);
+		
+		//one variant per switch, so that a difference can be attributed to the switch
+		final ArrayList<Switch> switches = new ArrayList<Switch>();
+		if(PixelKernels.isVectorizationSupported()) {
+			switches.add(new Switch("vectorKernels", false, reference) {
+				void enable(AdipoQPreparatorMain main) {
+					main.chosenKernelVariant = AdipoQPreparatorMain.kernelVariant [0];
+				}
+			});
+		}
+		switches.add(new Switch("fusedPasses", false, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.fusedPasses = true;
+			}
+		});
+		switches.add(new Switch("blurInOutput", false, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.blurInOutput = true;
+			}
+		});
+		switches.add(new Switch("edtMorphology", false, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.edtMorphology = true;
+			}
+		});
+		switches.add(new Switch("runFillHoles", false, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.runFillHoles = true;
+			}
+		});
+		switches.add(new Switch("bitDespeckle", false, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.bitDespeckle = true;
+			}
+		});
+		switches.add(new Switch("regionBitmask", false, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.regionBitmask = true;
+			}
+		});
+		switches.add(new Switch("taskOrder", false, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.chosenTaskOrder = AdipoQPreparatorMain.taskOrderVariant [1];
+			}
+		});
+		final int processors = Runtime.getRuntime().availableProcessors();
+		if(processors > 1) {
+			switches.add(new Switch("threads" + processors, true, reference) {
+				void enable(AdipoQPreparatorMain main) {
+					Prefs.setThreads(processors);
+				}
+			});
+			switches.add(new Switch("parallelChannels", true, reference) {
+				void enable(AdipoQPreparatorMain main) {
+					Prefs.setThreads(processors);
+					main.parallelChannels = true;
+				}
+			});
+			switches.add(new Switch("parallelImages", true, reference) {
+				void enable(AdipoQPreparatorMain main) {
+					main.parallelImages = 2;
+				}
+			});
+			switches.add(new Switch("pipelineIO", true, reference) {
+				void enable(AdipoQPreparatorMain main) {
+					main.pipelineIO = true;
+				}
+			});
+		}
+		variants.addAll(switches);
+		
+		//all switches together, to catch interactions between them
+		final boolean parallel = processors > 1;
+		variants.add(new Variant("allSwitches", parallel) {
+			void configure(AdipoQPreparatorMain main) {
+				reference.configure(main);
+				for(Switch change : switches) {
+					change.enable(main);
+				}
+			}
+		});
+		
+		//MaskOutline: same ROI pixels as "Create Selection", but other contours in the ROI file
+		variants.add(new Switch("roiOutline", false, true, reference) {
+			void enable(AdipoQPreparatorMain main) {
+				main.chosenRoiOutline = AdipoQPreparatorMain.roiOutlineVariant [1];
+			}
+		});
+		return variants;
+	}
+
+	/**
+	 * @return the approximate engines and the checks of their documented bounds
+	 * */
+	static ArrayList<ApproximateEngine> getApproximateEngines() {
+		ArrayList<ApproximateEngine> engines = new ArrayList<ApproximateEngine>();
+		engines.add(new ApproximateEngine("recursiveGaussian") {
+			Deviation check(ImageProcessor ip, AdipoQPreparatorMain main, int segmC, double pixelSize) {
+				double sigma = Math.max(RecursiveGaussian.MIN_SIGMA, main.subtractBlurSigma [segmC] / pixelSize);
+				ImageProcessor reference = ip.convertToFloat().duplicate(), fast = ip.convertToFloat().duplicate();
+				new GaussianBlur().blurGaussian(reference, sigma, sigma, GAUSSIAN_ACCURACY);
+				RecursiveGaussian.blur((FloatProcessor) fast, sigma);
+				double range = getRange(ip);
+				double max = getMaxDifference(reference, fast);
+				return new Deviation(max <= (RecursiveGaussian.MAX_DEVIATION + GAUSSIAN_ACCURACY) * range, "sigma " + sigma 
+						+ " px: max. deviation " + max / range + " of the intensity range (bound " 
+						+ (RecursiveGaussian.MAX_DEVIATION + GAUSSIAN_ACCURACY) + ")");
+			}
+		});
+		engines.add(new ApproximateEngine("fastBackground") {
+			Deviation check(ImageProcessor ip, AdipoQPreparatorMain main, int segmC, double pixelSize) {
+				double radius = main.subtractBGRadius [segmC] / pixelSize;
+				double [] deviation = FastBackground.getDeviation(ip, radius, !main.darkBackground [segmC]);
+				double range = getRange(ip);
+				return new Deviation(deviation [0] <= FastBackground.MAX_DEVIATION * range 
+						&& deviation [1] <= FastBackground.MAX_MEAN_DEVIATION * range,
+						"radius " + radius + " px: max. deviation " + deviation [0] / range + " of the intensity range (bound " 
+						+ FastBackground.MAX_DEVIATION + "), mean deviation " + deviation [1] / range + " (bound " 
+						+ FastBackground.MAX_MEAN_DEVIATION + ")");
+			}
+		});
+		engines.add(new ApproximateEngine("fastWatershed") {
+			Deviation check(ImageProcessor ip, AdipoQPreparatorMain main, int segmC, double pixelSize) {
+				double [] deviation = FastWatershed.getDeviation(getMask(ip, main.darkBackground [segmC]), (byte) 0);
+				return new Deviation(deviation [1] <= FastWatershed.MAX_DEVIATING_FRACTION, (long) deviation [0] 
+						+ " pixels deviate, fraction " + deviation [1] + " (bound " + FastWatershed.MAX_DEVIATING_FRACTION + ")");
+			}
+		});
+		return engines;
+	}
+
+	static ArrayList<Case> getCases() {
+		ArrayList<Case> cases = new ArrayList<Case>();
+		for(int task = 0; task < AdipoQPreparatorMain.taskVariant.length; task++) {
+			for(int defaultType = 0; defaultType < 2; defaultType++) {
+				cases.add(new Case(task, defaultType, false));
+				cases.add(new Case(task, defaultType, true));
+			}
+		}
+		return cases;
+	}
+
+	public static void main(String [] args) throws Exception {
+		int edge = 1024, images = 2, channels = 2, bitDepth = 16, repeats = 5;
+		double floatTolerance = 0.0, thresholdTolerance = 0.0;
+		File dir = new File(System.getProperty("java.io.tmpdir"), "AdipoQPreparatorEquivalence");
+		for(int i = 0; i < args.length; i++) {
+			if(args [i].equals("-edge"))					edge = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-images"))				images = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-channels"))			channels = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-bits"))				bitDepth = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-repeats"))			repeats = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-floatTolerance"))		floatTolerance = Double.parseDouble(args [++i]);
+			else if(args [i].equals("-thresholdTolerance"))	thresholdTolerance = Double.parseDouble(args [++i]);
+			else if(args [i].equals("-dir"))				dir = new File(args [++i]);
+			else {
+				System.out.println("Unknown argument " + args [i] + " - usage: [-edge 1024] [-images 2] [-channels 2] [-bits 16]"
+						+ " [-repeats 5] [-floatTolerance 0.0] [-thresholdTolerance 0.0] [-dir path]");
+				return;
+			}
+		}
+		if(bitDepth != 32) {
+			floatTolerance = 0.0;
+			thresholdTolerance = 0.0;
+		}
+
+		int threadsPref = Prefs.getThreads();
+		ArrayList<Variant> variants = getVariants();
+		ArrayList<ApproximateEngine> engines = getApproximateEngines();
+		ArrayList<String> failures = new ArrayList<String>();
+		int comparisons = 0;
+		boolean [] enginesChecked = new boolean [2];
+		try {
+			for(Case testCase : getCases()) {
+				File inputDir = new File(dir, "input" + (testCase.defaultType == 0 ? "_bright" : "_dark"));
+				String [] names = createInputs(inputDir, testCase.defaultType == 0, edge, channels, bitDepth, images);
+
+				if(!enginesChecked [testCase.defaultType]) {
+					//the engines only depend on the input images and the default settings
+					enginesChecked [testCase.defaultType] = true;
+					for(ApproximateEngine engine : engines) {
+						ArrayList<Deviation> deviations = checkEngine(engine, testCase, inputDir, names, channels, bitDepth);
+						comparisons++;
+						String label = "input" + (testCase.defaultType == 0 ? "_bright" : "_dark") + " / " + engine.name;
+						boolean withinBound = true;
+						for(Deviation deviation : deviations) {
+							if(!deviation.withinBound) {
+								withinBound = false;
+								failures.add(label + ": " + deviation.description);
+							}
+						}
+						System.out.println(label + (withinBound ? ": within the documented bound" : ": OUT OF BOUND"));
+						//measured deviations, for calibrating the bounds
+						for(Deviation deviation : deviations) {
+							System.out.println("	" + (deviation.withinBound ? "" : "OUT OF BOUND - ") + deviation.description);
+						}
+					}
+				}
+
+				File referenceDir = new File(dir, testCase.getName() + File.separator + REFERENCE);
+				run(testCase, variants.get(0), inputDir, names, referenceDir, channels, bitDepth);
+
+				for(int v = 1; v < variants.size(); v++) {
+					Variant variant = variants.get(v);
+					int runs = variant.parallel ? repeats : 1;
+					for(int r = 0; r < runs; r++) {
+						File variantDir = new File(dir, testCase.getName() + File.separator + variant.name + "_run" + (r+1));
+						run(testCase, variant, inputDir, names, variantDir, channels, bitDepth);
+						ArrayList<String> differences = compareDirectories(referenceDir, variantDir, names, floatTolerance,
+								thresholdTolerance, variant.compareRoiPixels);
+						comparisons++;
+						String label = testCase.getName() + " / " + variant.name + " run " + (r+1);
+						if(differences.isEmpty()) {
+							System.out.println(label + ": equivalent");
+						}else {
+							System.out.println(label + ": DIFFERENT");
+							for(String difference : differences) {
+								System.out.println("	" + difference);
+								failures.add(label + ": " + difference);
+							}
+						}
+					}
+				}
+			}
+		}finally {
+			Prefs.setThreads(threadsPref);
+		}
+
+		System.out.println("");
+		System.out.println(comparisons + " comparisons with the reference / ImageJ, " + failures.size() + " difference(s).");
+		if(!failures.isEmpty())	System.exit(1);
+	}
+
+	/**
+	 * Creates @param images synthetic TIFF files in @param dir, unless they exist already.
+	 * @return the file names
+	 * */
+	static String [] createInputs(File dir, boolean histology, int edge, int channels, int bitDepth, int images) {
+		dir.mkdirs();
+		String [] names = new String [images];
+		for(int i = 0; i < images; i++) {
+			names [i] = "image" + (i+1) + "_" + edge + "_c" + channels + "_" + bitDepth + "bit.tif";
+			File file = new File(dir, names [i]);
+			if(!file.exists()) {
+				SyntheticImages.saveTiff(EndToEndBenchmark.createImage(histology, edge, channels, bitDepth, i), file.getAbsolutePath());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Processes the images @param names from @param inputDir with @param variant in the empty @param outputDir.
+	 * */
+	static void run(Case testCase, Variant variant, File inputDir, String [] names, File outputDir, int channels, int bitDepth)
+			throws IOException {
+		deleteDirectory(outputDir);
+		outputDir.mkdirs();
+		for(int i = 0; i < names.length; i++) {
+			Files.copy(new File(inputDir, names [i]).toPath(), new File(outputDir, names [i]).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		String directory = outputDir.getAbsolutePath() + File.separator;
+		String [] dirs = new String [names.length];
+		Arrays.fill(dirs, directory);
+
+		if(testCase.taskVariant == 0) {
+			//active image: one plugin run per image
+			for(int i = 0; i < names.length; i++) {
+				AdipoQPreparatorMain main = createPlugin(testCase, variant, channels, bitDepth);
+				ImagePlus imp = IJ.openImage(directory + names [i]);
+				WindowManager.setTempCurrentImage(imp);
+				main.tasks = 1;
+				main.processTasks(new String [] {names [i]}, new String [] {directory}, null);
+				WindowManager.setTempCurrentImage(null);
+				imp.changes = false;
+				imp.close();
+			}
+		}else if(testCase.taskVariant == 1) {
+			//multiple images opened from files
+			AdipoQPreparatorMain main = createPlugin(testCase, variant, channels, bitDepth);
+			main.tasks = names.length;
+			main.processTasks(names.clone(), dirs, null);
+		}else {
+			//all open images
+			AdipoQPreparatorMain main = createPlugin(testCase, variant, channels, bitDepth);
+			ImagePlus [] allImps = new ImagePlus [names.length];
+			for(int i = 0; i < names.length; i++) {
+				allImps [i] = IJ.openImage(directory + names [i]);
+			}
+			main.tasks = names.length;
+			main.processTasks(names.clone(), dirs, allImps);
+			for(int i = 0; i < names.length; i++) {
+				allImps [i].changes = false;
+				allImps [i].close();
+			}
+		}
+	}
+
+	static AdipoQPreparatorMain createPlugin(Case testCase, Variant variant, int channels, int bitDepth) {
+		AdipoQPreparatorMain main = EndToEndBenchmark.createPlugin(testCase.defaultType, false, channels, bitDepth);
+		main.selectedTaskVariant = AdipoQPreparatorMain.taskVariant [testCase.taskVariant];
+		for(int c = 0; c < channels; c++) {
+			main.subtractBackground [c] = testCase.subtractBackground;
+		}
+		variant.configure(main);
+		return main;
+	}
+
+	/**
+	 * Checks @param engine on each segmentation channel of the input images @param names in @param inputDir with the
+	 * settings of @param testCase.
+	 * @return the deviation measured on each channel, described with the image and the channel
+	 * */
+	static ArrayList<Deviation> checkEngine(ApproximateEngine engine, Case testCase, File inputDir, String [] names, int channels,
+			int bitDepth) {
+		ArrayList<Deviation> deviations = new ArrayList<Deviation>();
+		AdipoQPreparatorMain main = createPlugin(testCase, getVariants().get(0), channels, bitDepth);
+		Prefs.blackBackground = true;
+		for(int i = 0; i < names.length; i++) {
+			ImagePlus imp = IJ.openImage(new File(inputDir, names [i]).getAbsolutePath());
+			double pixelSize = 0.5 * imp.getCalibration().pixelWidth + 0.5 * imp.getCalibration().pixelHeight;
+			for(int segmC = 0; segmC < main.numberOfChannels; segmC++) {
+				ImageProcessor ip = imp.getStack().getProcessor(imp.getStackIndex(main.channelIDs [segmC], 1, 1));
+				Deviation deviation = engine.check(ip, main, segmC, pixelSize);
+				deviations.add(new Deviation(deviation.withinBound, names [i] + " C" + main.channelIDs [segmC] + ": " + deviation.description));
+			}
+			imp.changes = false;
+			imp.close();
+		}
+		return deviations;
+	}
+
+	/**
+	 * @return the difference between the maximum and the minimum pixel value of @param ip
+	 * */
+	static double getRange(ImageProcessor ip) {
+		Object pixels = ip.getPixels();
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < ip.getWidth() * ip.getHeight(); i++) {
+			double value = SyntheticImages.getValue(pixels, i);
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		return max - min;
+	}
+
+	static double getMaxDifference(ImageProcessor reference, ImageProcessor variant) {
+		Object referencePixels = reference.getPixels(), variantPixels = variant.getPixels();
+		double max = 0.0;
+		for(int i = 0; i < reference.getWidth() * reference.getHeight(); i++) {
+			max = Math.max(max, Math.abs(SyntheticImages.getValue(referencePixels, i) - SyntheticImages.getValue(variantPixels, i)));
+		}
+		return max;
+	}
+
+	/**
+	 * @return a binary mask (255 = foreground, 0 = background) of @param ip thresholded with Otsu's method; foreground
+	 * are bright structures if @param darkBackground, dark structures otherwise
+	 * */
+	static ImageProcessor getMask(ImageProcessor ip, boolean darkBackground) {
+		ip.setAutoThreshold(AutoThresholder.Method.Otsu, darkBackground);
+		double lower = ip.getMinThreshold(), upper = ip.getMaxThreshold();
+		ip.resetThreshold();
+		ByteProcessor mask = new ByteProcessor(ip.getWidth(), ip.getHeight());
+		Object pixels = ip.getPixels();
+		byte [] maskPixels = (byte []) mask.getPixels();
+		for(int i = 0; i < maskPixels.length; i++) {
+			double value = SyntheticImages.getValue(pixels, i);
+			if(value >= lower && value <= upper)	maskPixels [i] = (byte) 255;
+		}
+		return mask;
+	}
+
+	/**
+	 * Compares all output files (all files except the input images @param names) in @param referenceDir
+	 * and @param variantDir. ROI files are compared by the pixels they contain if @param compareRoiPixels,
+	 * otherwise byte by byte.
+	 * @return a description of each difference found
+	 * */
+	static ArrayList<String> compareDirectories(File referenceDir, File variantDir, String [] names, double floatTolerance,
+			double thresholdTolerance, boolean compareRoiPixels) throws IOException {
+		ArrayList<String> differences = new ArrayList<String>();
+		List<String> inputs = Arrays.asList(names);
+		String [] referenceFiles = referenceDir.list();
+		String [] variantFiles = variantDir.list();
+		Arrays.sort(referenceFiles);
+		Arrays.sort(variantFiles);
+		for(String file : variantFiles) {
+			if(!inputs.contains(file) && !new File(referenceDir, file).exists()) {
+				differences.add(file + ": not created by the reference");
+			}
+		}
+		for(String file : referenceFiles) {
+			if(inputs.contains(file))	continue;
+			File reference = new File(referenceDir, file), variant = new File(variantDir, file);
+			if(!variant.exists()) {
+				differences.add(file + ": missing");
+			}else if(file.endsWith(".tif")) {
+				String difference = compareImages(reference, variant, floatTolerance);
+				if(difference != null)	differences.add(file + ": " + difference);
+			}else if(file.endsWith(".txt")) {
+				String difference = compareMetadata(reference, variant, thresholdTolerance);
+				if(difference != null)	differences.add(file + ": " + difference);
+			}else if(compareRoiPixels && file.endsWith(".roi")) {
+				String difference = compareRoiPixels(reference, variant);
+				if(difference != null)	differences.add(file + ": " + difference);
+			}else if(!Arrays.equals(Files.readAllBytes(reference.toPath()), Files.readAllBytes(variant.toPath()))) {
+				differences.add(file + ": file content differs");
+			}
+		}
+		return differences;
+	}
+
+	/**
+	 * @return null if the images are identical (32-bit images: all pixels differ by at most @param floatTolerance),
+	 * otherwise a description of the difference
+	 * */
+	static String compareImages(File reference, File variant, double floatTolerance) {
+		ImagePlus referenceImp = IJ.openImage(reference.getAbsolutePath());
+		ImagePlus variantImp = IJ.openImage(variant.getAbsolutePath());
+		if(referenceImp.getWidth() != variantImp.getWidth() || referenceImp.getHeight() != variantImp.getHeight()
+				|| referenceImp.getStackSize() != variantImp.getStackSize()
+				|| referenceImp.getBitDepth() != variantImp.getBitDepth()) {
+			return "image dimensions or bit depth differ";
+		}
+		double tolerance = referenceImp.getBitDepth() == 32 ? floatTolerance : 0.0;
+		String result = null;
+		for(int s = 1; s <= referenceImp.getStackSize(); s++) {
+			Object referencePixels = referenceImp.getStack().getPixels(s);
+			Object variantPixels = variantImp.getStack().getPixels(s);
+			long differing = 0;
+			double maxDifference = 0.0;
+			int length = referenceImp.getWidth() * referenceImp.getHeight();
+			for(int i = 0; i < length; i++) {
+				double difference = Math.abs(SyntheticImages.getValue(referencePixels, i) - SyntheticImages.getValue(variantPixels, i));
+				if(difference > tolerance) {
+					differing++;
+					maxDifference = Math.max(maxDifference, difference);
+				}
+			}
+			if(differing > 0) {
+				result = "plane " + s + " (" + referenceImp.getStack().getSliceLabel(s) + "): " + differing
+						+ " pixels differ, max. difference " + maxDifference;
+				break;
+			}
+		}
+		referenceImp.close();
+		variantImp.close();
+		return result;
+	}
+
+	/**
+	 * @return null if the ROIs in the files @param reference and @param variant contain the same pixels, otherwise
+	 * a description of the difference
+	 * */
+	static String compareRoiPixels(File reference, File variant) {
+		Roi referenceRoi = RoiDecoder.open(reference.getAbsolutePath()), variantRoi = RoiDecoder.open(variant.getAbsolutePath());
+		if(referenceRoi == null || variantRoi == null)	return "ROI could not be read";
+		java.awt.Rectangle bounds = referenceRoi.getBounds().union(variantRoi.getBounds());
+		long differing = 0;
+		for(int y = bounds.y; y < bounds.y + bounds.height; y++) {
+			for(int x = bounds.x; x < bounds.x + bounds.width; x++) {
+				if(referenceRoi.contains(x, y) != variantRoi.contains(x, y))	differing++;
+			}
+		}
+		if(differing == 0)	return null;
+		return differing + " pixels are contained in only one of the ROIs";
+	}
+
+	/**
+	 * Compares the metadata files line by line, except for the lines containing dates or execution settings.
+	 * Threshold values may differ by @param thresholdTolerance.
+	 * @return null if equivalent, otherwise a description of the first difference
+	 * */
+	static String compareMetadata(File reference, File variant, double thresholdTolerance) throws IOException {
+		List<String> referenceLines = Files.readAllLines(reference.toPath());
+		List<String> variantLines = Files.readAllLines(variant.toPath());
+		if(referenceLines.size() != variantLines.size()) {
+			return "number of lines differs (" + referenceLines.size() + " vs. " + variantLines.size() + ")";
+		}
+		for(int i = 0; i < referenceLines.size(); i++) {
+			String referenceLine = referenceLines.get(i), variantLine = variantLines.get(i);
+			if(referenceLine.equals(variantLine) || isDateLine(referenceLine) || isExecutionLine(referenceLine))	continue;
+			if(referenceLine.contains("threshold value:") && variantLine.contains("threshold value:")
+					&& referenceLine.substring(0, referenceLine.lastIndexOf("	")).equals(variantLine.substring(0, variantLine.lastIndexOf("	")))) {
+				double referenceThreshold = PerformanceBaseline.parseDouble(referenceLine.substring(referenceLine.lastIndexOf("	") + 1));
+				double variantThreshold = PerformanceBaseline.parseDouble(variantLine.substring(variantLine.lastIndexOf("	") + 1));
+				if(Math.abs(referenceThreshold - variantThreshold) <= thresholdTolerance)	continue;
+			}
+			return "line " + (i+1) + " differs: '" + referenceLine + "' vs. '" + variantLine + "'";
+		}
+		return null;
+	}
+
+	static boolean isDateLine(String line) {
+		return line.startsWith("Starting date:") || line.startsWith("Datafile was generated on");
+	}
+
+	/**
+	 * @return true for metadata lines that describe how the processing was executed (not what was done)
+	 * and thus differ between the variants
+	 * */
+	static boolean isExecutionLine(String line) {
+		return line.startsWith("	Pixel kernels:") || line.startsWith("	Pixel passes:") || line.startsWith("	Blurred copy for subtraction:")
+				|| line.startsWith("	Maximum / minimum of binary masks:") || line.startsWith("	Fill holes:")
+				|| line.startsWith("	Despeckle of binary masks:") || line.startsWith("	Non-zero region lookup:")
+				|| line.startsWith("	Outline of the non-zero-pixel ROI:")
+				|| line.startsWith("	Segmentation channels:")
+				|| line.startsWith("	Images processed in parallel:") || line.startsWith("	Image file input / output:")
+				|| line.startsWith("	Task order:") || line.startsWith("	Threads per image:")
+				|| line.startsWith("	Minimum tile size (pixels per row band):") || line.startsWith("	Auto-tuning:");
+	}
+
+	static void deleteDirectory(File dir) {
+		File [] files = dir.listFiles();
+		if(files == null)	return;
+		for(File file : files) {
+			if(file.isDirectory())	deleteDirectory(file);
+			file.delete();
+		}
+		dir.delete();
+	}
+}
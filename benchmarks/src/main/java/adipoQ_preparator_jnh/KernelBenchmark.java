@@ -0,0 +1,262 @@
+package adipoQ_preparator_jnh;
+/**
+ * JMH benchmarks for the per-pixel kernels of the AdipoQ Preparator (copyChannel, segmentImage,
+ * subtractABluredImage, getRegionsAboveZeroAsROI, setRegionsOutsideRoiToZero, setRegionsOutsideMaskToZero,
+ * getOtherBitImageFromBinary32bit, invert + AND of removeParticles and the output-assembly loops of run()).
+ *
+ * Each kernel is run on 8-, 16- and 32-bit planes with 2k, 8k and 20k edge length, using the scalar and
+ * the vectorized pixel kernels (see PixelKernels), in one thread and in parallel row bands (see RowBands).
+ * JMH reports the kernel throughput in ops/s; the secondary result "megaPixels" gives MPixel/s.
+ *
+ * Run (after 'mvn install' in the plugin directory and 'mvn package' in this directory):
+ * 		java -jar target/benchmarks.jar KernelBenchmark -p edge=2048 -p bitDepth=16
+ * Large edge lengths need a correspondingly large heap (e.g., -jvmArgs -Xmx24g for 20k x 20k).
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.plugin.ImageCalculator;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx24g"})
+public class KernelBenchmark {
+
+	/**
+	 * Input images that are only read by the kernels.
+	 * */
+	@State(Scope.Benchmark)
+	public static class Planes {
+		@Param({"8", "16", "32"})
+		public int bitDepth;
+
+		@Param({"2048", "8192", "20480"})
+		public int edge;
+
+		/** pixel kernel implementation (AdipoQPreparatorMain.kernelVariant) */
+		@Param({"scalar", "vectorized"})
+		public String kernels;
+
+		/** number of threads for the row bands (see RowBands), set via Prefs.setThreads */
+		@Param({"1", "4"})
+		public int threads;
+
+		AdipoQPreparatorMain main;
+
+		/** two-channel image, channel 1 contains a tissue-like region surrounded by zero pixels */
+		ImagePlus twoChannelImp;
+
+		/** single-channel copy of channel 1 of twoChannelImp */
+		ImagePlus channelImp;
+
+		/** binary 32-bit image as produced by segmenting the output of subtractABluredImage */
+		ImagePlus binary32Imp;
+
+		/** segmented channel images (one per channel of twoChannelImp) */
+		ImagePlus [] segmentedImps;
+
+		/** 8-bit binary image and mask for the invert + AND step of removeParticles */
+		ImagePlus binary8Imp, mask8Imp;
+
+		/** non-zero-pixel mask of channelImp (gaps closed) and the ROI created from it */
+		ImagePlus regionMaskImp;
+		byte [] regionMask;
+		Roi regionRoi;
+		double threshold;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			main = new AdipoQPreparatorMain();
+			main.numberOfChannels = 2;
+			main.channelIDs = new int [] {1,2};
+			main.useVectorKernels = kernels.equals("vectorized");
+			Prefs.setThreads(threads);
+
+			twoChannelImp = IJ.createHyperStack("benchmark", edge, edge, 2, 1, 1, bitDepth);
+			SyntheticImages.fillTissueLike(twoChannelImp, 1, 42L);
+			SyntheticImages.fillTissueLike(twoChannelImp, 2, 43L);
+			channelImp = AdipoQPreparatorMain.copyChannel(twoChannelImp, 1, false, false);
+
+			binary32Imp = IJ.createHyperStack("binary", edge, edge, 1, 1, 1, 32);
+			float [] binaryPixels = (float []) binary32Imp.getStack().getPixels(1);
+			Object channelPixels = channelImp.getStack().getPixels(1);
+			threshold = 0.5 * SyntheticImages.maxValue(bitDepth);
+			for(int i = 0; i < binaryPixels.length; i++) {
+				binaryPixels [i] = SyntheticImages.getValue(channelPixels, i) > threshold ? 1.0f : -1.0f;
+			}
+
+			segmentedImps = new ImagePlus [2];
+			for(int c = 0; c < 2; c++) {
+				segmentedImps [c] = AdipoQPreparatorMain.copyChannel(twoChannelImp, c+1, false, false);
+				main.segmentImage(segmentedImps [c], threshold, 0, segmentedImps [c], 0, false, true);
+			}
+
+			regionMaskImp = main.getAboveZeroMask(channelImp, 1);
+			regionRoi = main.getRoiFromAboveZeroMask(regionMaskImp, 2.0);
+			regionMask = (byte []) regionMaskImp.getProcessor().getPixels();
+
+			binary8Imp = main.getOtherBitImageFromBinary32bit(binary32Imp, false, 8);
+			mask8Imp = binary8Imp.duplicate();
+			IJ.run(mask8Imp, "Fill Holes", "");
+		}
+	}
+
+	/**
+	 * Fresh copy of the channel image for the kernels that modify their input in place.
+	 * */
+	@State(Scope.Thread)
+	public static class WorkPlane {
+		ImagePlus workImp;
+
+		@Setup(Level.Invocation)
+		public void reset(Planes planes) {
+			if(workImp == null) {
+				workImp = planes.channelImp.duplicate();
+			}
+			Object source = planes.channelImp.getStack().getPixels(1);
+			System.arraycopy(source, 0, workImp.getStack().getPixels(1), 0, planes.edge * planes.edge);
+		}
+	}
+
+	/**
+	 * Fresh copy of the 8-bit mask for the in-place invert + AND.
+	 * */
+	@State(Scope.Thread)
+	public static class WorkMask {
+		ImagePlus maskImp;
+
+		@Setup(Level.Invocation)
+		public void reset(Planes planes) {
+			if(maskImp == null) {
+				maskImp = planes.mask8Imp.duplicate();
+			}
+			Object source = planes.mask8Imp.getStack().getPixels(1);
+			System.arraycopy(source, 0, maskImp.getStack().getPixels(1), 0, planes.edge * planes.edge);
+		}
+	}
+
+	/**
+	 * Counts the processed pixels - reported by JMH as secondary result "megaPixels" in MPixel/s.
+	 * */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class PixelCounter {
+		public double megaPixels;
+
+		void add(Planes planes, int planesProcessed) {
+			megaPixels += (double) planes.edge * (double) planes.edge * planesProcessed / 1000000.0;
+		}
+	}
+
+	@Benchmark
+	public ImagePlus copyChannel(Planes planes, PixelCounter counter) {
+		counter.add(planes, 1);
+		return AdipoQPreparatorMain.copyChannel(planes.twoChannelImp, 1, false, false);
+	}
+
+	@Benchmark
+	public ImagePlus segmentImage(Planes planes, WorkPlane work, PixelCounter counter) {
+		counter.add(planes, 1);
+		planes.main.segmentImage(work.workImp, planes.threshold, 0, work.workImp, 0, false, true);
+		return work.workImp;
+	}
+
+	@Benchmark
+	public ImagePlus subtractABluredImage(Planes planes, PixelCounter counter) {
+		counter.add(planes, 1);
+		return planes.main.subtractABluredImage(planes.channelImp, 2.7);
+	}
+
+	@Benchmark
+	public Roi getRegionsAboveZeroAsROI(Planes planes, PixelCounter counter) {
+		counter.add(planes, 1);
+		return planes.main.getRegionsAboveZeroAsROI(planes.channelImp, 1, 2.0);
+	}
+
+	@Benchmark
+	public ImagePlus setRegionsOutsideRoiToZero(Planes planes, WorkPlane work, PixelCounter counter) {
+		counter.add(planes, 1);
+		planes.main.setRegionsOutsideRoiToZero(work.workImp, 1, planes.regionRoi);
+		return work.workImp;
+	}
+
+	@Benchmark
+	public ImagePlus setRegionsOutsideMaskToZero(Planes planes, WorkPlane work, PixelCounter counter) {
+		counter.add(planes, 1);
+		planes.main.setRegionsOutsideMaskToZero(work.workImp, 1, planes.regionMask);
+		return work.workImp;
+	}
+
+	@Benchmark
+	public ImagePlus getOtherBitImageFromBinary32bit(Planes planes, PixelCounter counter) {
+		counter.add(planes, 1);
+		return planes.main.getOtherBitImageFromBinary32bit(planes.binary32Imp, false, 8);
+	}
+
+	/**
+	 * Output assembly with deleteOtherChannels: segmented + unsegmented copy per channel
+	 * */
+	@Benchmark
+	public ImagePlus assembleOutputDeleteOtherChannels(Planes planes, PixelCounter counter) {
+		counter.add(planes, 4);
+		ImagePlus outImp = IJ.createHyperStack("out", planes.edge, planes.edge, 4, 1, 1, planes.bitDepth);
+		for(int c = 0; c < 2; c++) {
+			AdipoQPreparatorMain.copyPlane(planes.segmentedImps [c], 0, outImp, 2*c);
+			AdipoQPreparatorMain.copyPlane(planes.twoChannelImp, c, outImp, 2*c+1);
+		}
+		return outImp;
+	}
+
+	/**
+	 * Output assembly without deleteOtherChannels: all channels interleaved with the segmented channels
+	 * */
+	@Benchmark
+	public ImagePlus assembleOutputWithDuplicateChannels(Planes planes, PixelCounter counter) {
+		counter.add(planes, 4);
+		ImagePlus outImp = IJ.createHyperStack("out", planes.edge, planes.edge, 4, 1, 1, planes.bitDepth);
+		planes.main.assembleOutputWithDuplicateChannels(planes.twoChannelImp, planes.segmentedImps, outImp);
+		return outImp;
+	}
+
+	/**
+	 * Invert + AND with the ImageCalculator, as before the removeParticles step combined them in place (on the 8-bit
+	 * binary image, independent of bitDepth)
+	 * */
+	@Benchmark
+	public ImagePlus invertAnd(Planes planes, PixelCounter counter) {
+		counter.add(planes, 1);
+		ImagePlus binary = planes.binary8Imp.duplicate();
+		binary.getProcessor().invert();
+		return new ImageCalculator().run("AND create", binary, planes.mask8Imp);
+	}
+
+	/**
+	 * Invert + AND of the removeParticles step in place in a copy of the mask
+	 * */
+	@Benchmark
+	public ImagePlus invertAndInMask(Planes planes, WorkMask work, PixelCounter counter) {
+		counter.add(planes, 1);
+		planes.main.setInvertedAndInMask(planes.binary8Imp, work.maskImp);
+		return work.maskImp;
+	}
+}
@@ -0,0 +1,370 @@
+package adipoQ_preparator_jnh;
+/**
+ * Stores benchmark results as a versioned baseline file and compares new benchmark results against it.
+ *
+ * Results are read from
+ * 	- JMH result files in CSV format (java -jar target/benchmarks.jar -rf csv -rff kernels.csv),
+ * 		using the score and its 99.9% confidence interval reported by JMH
+ * 	- metric files written by EndToEndBenchmark (-repeats 5 -out endtoend.tsv),
+ * 		using the mean and a 95% confidence interval from the repeated runs.
+ *
+ * A metric is reported as regression if it got worse by more than the tolerance (in %) AND the confidence
+ * intervals of baseline and new result do not overlap - changes within the noise of the measurement are
+ * not reported as regression. The baseline file records the plugin version it was measured with, so
+ * that changes in throughput can be related to version bumps.
+ *
+ * Usage:
+ * 		java -cp target/benchmarks.jar adipoQ_preparator_jnh.PerformanceBaseline save
+ * 			-out baseline/baseline.tsv [-jmh kernels.csv] [-e2e endtoend.tsv]
+ * 		java -cp target/benchmarks.jar adipoQ_preparator_jnh.PerformanceBaseline compare
+ * 			-baseline baseline/baseline.tsv [-jmh kernels.csv] [-e2e endtoend.tsv] [-tolerance 10] [-report diff.txt]
+ * "compare" exits with status 1 if any metric regressed, so it can fail a build (see the profile
+ * check-performance in the pom.xml).
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+public class PerformanceBaseline {
+	static final DecimalFormat df1 = new DecimalFormat("#0.0", new DecimalFormatSymbols(Locale.US));
+	static final DecimalFormat dfValue = new DecimalFormat("#0.0#####", new DecimalFormatSymbols(Locale.US));
+
+	static final String HEADER = "# AdipoQ Preparator performance baseline";
+	static final String VERSION_KEY = "# pluginVersion=";
+	static final String COLUMNS = "metric	unit	better	mean	error	samples";
+
+	static final String PACKAGE_PREFIX = "adipoQ_preparator_jnh.";
+
+	static final double DEFAULT_TOLERANCE = 10.0;
+
+	/**
+	 * One benchmark result: the mean and the half width of its confidence interval (error)
+	 * */
+	static class Metric {
+		String name, unit;
+		boolean higherIsBetter;
+		double mean, error;
+		int samples;
+
+		Metric(String name, String unit, boolean higherIsBetter, double mean, double error, int samples){
+			this.name = name;
+			this.unit = unit;
+			this.higherIsBetter = higherIsBetter;
+			this.mean = mean;
+			this.error = error;
+			this.samples = samples;
+		}
+
+		/**
+		 * Creates a metric from repeated measurements @param values, with a 95% confidence interval as error
+		 * (normal approximation)
+		 * */
+		static Metric fromSamples(String name, String unit, boolean higherIsBetter, double [] values) {
+			double mean = 0.0;
+			for(int i = 0; i < values.length; i++)	mean += values [i];
+			mean /= values.length;
+			double error = 0.0;
+			if(values.length > 1) {
+				double variance = 0.0;
+				for(int i = 0; i < values.length; i++)	variance += Math.pow(values [i] - mean, 2.0);
+				variance /= (values.length - 1);
+				error = 1.96 * Math.sqrt(variance / values.length);
+			}
+			return new Metric(name, unit, higherIsBetter, mean, error, values.length);
+		}
+
+		String toLine() {
+			return name + "	" + unit + "	" + (higherIsBetter ? "higher" : "lower") + "	" + dfValue.format(mean)
+				+ "	" + dfValue.format(error) + "	" + samples;
+		}
+	}
+
+	/**
+	 * Result of comparing one metric
+	 * */
+	static class Comparison {
+		Metric baseline, current;
+		/** relative change in % - positive values are improvements, negative values deteriorations */
+		double change;
+		boolean significant, regression;
+	}
+
+	public static void main(String [] args) throws Exception {
+		if(args.length == 0 || !(args [0].equals("save") || args [0].equals("compare"))) {
+			printUsage();
+			System.exit(2);
+		}
+		File out = null, baselineFile = null, report = null;
+		ArrayList<File> jmhFiles = new ArrayList<File>(), e2eFiles = new ArrayList<File>();
+		double tolerance = DEFAULT_TOLERANCE;
+		for(int i = 1; i < args.length; i++) {
+			if(args [i].equals("-out"))				out = new File(args [++i]);
+			else if(args [i].equals("-baseline"))	baselineFile = new File(args [++i]);
+			else if(args [i].equals("-jmh"))		jmhFiles.add(new File(args [++i]));
+			else if(args [i].equals("-e2e"))		e2eFiles.add(new File(args [++i]));
+			else if(args [i].equals("-tolerance"))	tolerance = Double.parseDouble(args [++i]);
+			else if(args [i].equals("-report"))		report = new File(args [++i]);
+			else {
+				System.out.println("Unknown argument " + args [i]);
+				printUsage();
+				System.exit(2);
+			}
+		}
+
+		ArrayList<File> resultFiles = new ArrayList<File>(jmhFiles);
+		resultFiles.addAll(e2eFiles);
+		for(File file : resultFiles) {
+			if(!file.exists()) {
+				System.out.println("Result file " + file.getAbsolutePath() + " not found - run the benchmarks first"
+						+ " (see benchmarks/baseline/README.md).");
+				System.exit(2);
+			}
+		}
+
+		LinkedHashMap<String, Metric> current = new LinkedHashMap<String, Metric>();
+		for(File file : jmhFiles)	addAll(current, readJmhCsv(file));
+		for(File file : e2eFiles)	addAll(current, read(file));
+		if(current.isEmpty()) {
+			System.out.println("No results given - specify result files with -jmh and / or -e2e.");
+			System.exit(2);
+		}
+
+		if(args [0].equals("save")) {
+			if(out == null) {
+				System.out.println("No output file given (-out).");
+				System.exit(2);
+			}
+			write(out, new ArrayList<Metric>(current.values()));
+			System.out.println("Saved " + current.size() + " metrics as baseline " + out.getAbsolutePath());
+			return;
+		}
+
+		if(baselineFile == null || !baselineFile.exists()) {
+			System.out.println("Baseline file " + (baselineFile == null ? "" : baselineFile.getAbsolutePath() + " ")
+					+ "not found (-baseline) - create it with 'save' first (see benchmarks/baseline/README.md).");
+			System.exit(2);
+		}
+		LinkedHashMap<String, Metric> baseline = new LinkedHashMap<String, Metric>();
+		addAll(baseline, read(baselineFile));
+		String baselineVersion = readVersion(baselineFile);
+
+		ArrayList<String> lines = new ArrayList<String>();
+		if(baselineVersion != null && !baselineVersion.equals(AdipoQPreparatorMain.PLUGINVERSION)) {
+			lines.add("Note: baseline was measured with version " + baselineVersion + ", current version is "
+					+ AdipoQPreparatorMain.PLUGINVERSION + ".");
+		}
+		int regressions = compare(baseline, current, tolerance, lines);
+		for(String line : lines)	System.out.println(line);
+		if(report != null) {
+			PrintWriter pw = new PrintWriter(new FileWriter(report));
+			for(String line : lines)	pw.println(line);
+			pw.close();
+		}
+		if(regressions > 0)	System.exit(1);
+	}
+
+	static void printUsage() {
+		System.out.println("Usage: PerformanceBaseline save -out baseline.tsv [-jmh kernels.csv] [-e2e endtoend.tsv]");
+		System.out.println("       PerformanceBaseline compare -baseline baseline.tsv [-jmh kernels.csv] [-e2e endtoend.tsv]"
+				+ " [-tolerance " + DEFAULT_TOLERANCE + "] [-report diff.txt]");
+	}
+
+	/**
+	 * Compares all metrics of @param current with the @param baseline and adds a table of the differences
+	 * to @param lines. @param tolerance is the accepted deterioration in %.
+	 * @return the number of regressions
+	 * */
+	static int compare(LinkedHashMap<String, Metric> baseline, LinkedHashMap<String, Metric> current, double tolerance,
+			ArrayList<String> lines) {
+		int regressions = 0;
+		lines.add("metric	unit	baseline	current	change [%]	result");
+		for(String name : current.keySet()) {
+			Metric cur = current.get(name);
+			Metric base = baseline.get(name);
+			if(base == null) {
+				lines.add(name + "	" + cur.unit + "	-	" + format(cur) + "	-	NEW");
+				continue;
+			}
+			Comparison comparison = compare(base, cur, tolerance);
+			String result;
+			if(comparison.regression) {
+				result = "REGRESSION";
+				regressions++;
+			}else if(comparison.significant && comparison.change > tolerance) {
+				result = "improved";
+			}else {
+				result = "ok";
+			}
+			lines.add(name + "	" + cur.unit + "	" + format(base) + "	" + format(cur) + "	"
+					+ df1.format(comparison.change) + "	" + result);
+		}
+		for(String name : baseline.keySet()) {
+			if(!current.containsKey(name)) {
+				lines.add(name + "	" + baseline.get(name).unit + "	" + format(baseline.get(name)) + "	-	-	MISSING");
+			}
+		}
+		lines.add(regressions + " regression(s) beyond " + df1.format(tolerance) + "% tolerance.");
+		return regressions;
+	}
+
+	static Comparison compare(Metric baseline, Metric current, double tolerance) {
+		Comparison comparison = new Comparison();
+		comparison.baseline = baseline;
+		comparison.current = current;
+		if(baseline.mean == 0.0) {
+			comparison.change = 0.0;
+		}else if(baseline.higherIsBetter) {
+			comparison.change = 100.0 * (current.mean - baseline.mean) / Math.abs(baseline.mean);
+		}else {
+			comparison.change = 100.0 * (baseline.mean - current.mean) / Math.abs(baseline.mean);
+		}
+		//significant if the confidence intervals do not overlap
+		comparison.significant = Math.abs(current.mean - baseline.mean) > current.error + baseline.error;
+		comparison.regression = comparison.significant && comparison.change < -tolerance;
+		return comparison;
+	}
+
+	static String format(Metric metric) {
+		if(metric.error > 0.0)	return dfValue.format(metric.mean) + " ± " + dfValue.format(metric.error);
+		return dfValue.format(metric.mean);
+	}
+
+	static void addAll(LinkedHashMap<String, Metric> map, ArrayList<Metric> metrics) {
+		for(Metric metric : metrics)	map.put(metric.name, metric);
+	}
+
+	/**
+	 * Writes @param metrics to @param file, together with the plugin version and the date
+	 * */
+	static void write(File file, ArrayList<Metric> metrics) throws IOException {
+		if(file.getParentFile() != null)	file.getParentFile().mkdirs();
+		PrintWriter pw = new PrintWriter(new FileWriter(file));
+		pw.println(HEADER);
+		pw.println(VERSION_KEY + AdipoQPreparatorMain.PLUGINVERSION);
+		pw.println("# date=" + AdipoQPreparatorMain.FullDateFormatter2.format(new Date()));
+		pw.println("# java=" + System.getProperty("java.version") + ", os=" + System.getProperty("os.name")
+			+ ", processors=" + Runtime.getRuntime().availableProcessors());
+		pw.println(COLUMNS);
+		for(Metric metric : metrics)	pw.println(metric.toLine());
+		pw.close();
+	}
+
+	/**
+	 * Reads metrics written by write() (baseline files and EndToEndBenchmark results)
+	 * */
+	static ArrayList<Metric> read(File file) throws IOException {
+		ArrayList<Metric> metrics = new ArrayList<Metric>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith("#") || line.trim().length() == 0 || line.equals(COLUMNS))	continue;
+				String [] cells = line.split("	");
+				if(cells.length < 6)	continue;
+				metrics.add(new Metric(cells [0], cells [1], cells [2].equals("higher"), parseDouble(cells [3]),
+						parseDouble(cells [4]), Integer.parseInt(cells [5])));
+			}
+		}finally {
+			reader.close();
+		}
+		return metrics;
+	}
+
+	static String readVersion(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith(VERSION_KEY))	return line.substring(VERSION_KEY.length()).trim();
+			}
+		}finally {
+			reader.close();
+		}
+		return null;
+	}
+
+	/**
+	 * Reads a JMH result file in CSV format (-rf csv). The metric name consists of the benchmark name,
+	 * the parameters and, for secondary results (e.g., megaPixels), the result name.
+	 * */
+	static ArrayList<Metric> readJmhCsv(File file) throws IOException {
+		ArrayList<Metric> metrics = new ArrayList<Metric>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String [] columns = splitCSV(reader.readLine());
+			int benchmarkColumn = indexOf(columns, "Benchmark"), modeColumn = indexOf(columns, "Mode"),
+					samplesColumn = indexOf(columns, "Samples"), scoreColumn = indexOf(columns, "Score"),
+					errorColumn = indexOf(columns, "Score Error (99.9%)"), unitColumn = indexOf(columns, "Unit");
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.trim().length() == 0)	continue;
+				String [] cells = splitCSV(line);
+				String name = cells [benchmarkColumn];
+				if(name.startsWith(PACKAGE_PREFIX))	name = name.substring(PACKAGE_PREFIX.length());
+				name = "jmh/" + name;
+				for(int c = 0; c < columns.length; c++) {
+					if(columns [c].startsWith("Param: ")) {
+						name += " " + columns [c].substring(7) + "=" + cells [c];
+					}
+				}
+				String unit = cells [unitColumn];
+				//throughput: higher is better, average / sample / single shot time: lower is better
+				boolean higherIsBetter = cells [modeColumn].equals("thrpt");
+				metrics.add(new Metric(name, unit, higherIsBetter, parseDouble(cells [scoreColumn]),
+						parseDouble(cells [errorColumn]), Integer.parseInt(cells [samplesColumn])));
+			}
+		}finally {
+			reader.close();
+		}
+		return metrics;
+	}
+
+	static String [] splitCSV(String line) {
+		ArrayList<String> cells = new ArrayList<String>();
+		StringBuilder cell = new StringBuilder();
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"') {
+				quoted = !quoted;
+			}else if(c == ',' && !quoted) {
+				cells.add(cell.toString());
+				cell.setLength(0);
+			}else {
+				cell.append(c);
+			}
+		}
+		cells.add(cell.toString());
+		return cells.toArray(new String [cells.size()]);
+	}
+
+	static int indexOf(String [] columns, String column) throws IOException {
+		for(int i = 0; i < columns.length; i++) {
+			if(columns [i].equals(column))	return i;
+		}
+		throw new IOException("Column " + column + " missing in JMH result file.");
+	}
+
+	/**
+	 * Parses @param value, JMH writes NaN for the error of a single sample
+	 * */
+	static double parseDouble(String value) {
+		try {
+			double parsed = Double.parseDouble(value.trim());
+			if(Double.isNaN(parsed))	return 0.0;
+			return parsed;
+		}catch(NumberFormatException e) {
+			return 0.0;
+		}
+	}
+}
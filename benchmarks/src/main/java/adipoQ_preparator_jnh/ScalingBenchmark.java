@@ -0,0 +1,266 @@
+package adipoQ_preparator_jnh;
+/**
+ * Offline scaling benchmark of the complete AdipoQ Preparator batch processing (processTasks).
+ *
+ * Sweeps the image edge length, the number of segmented channels (numberOfChannels), all combinations of
+ * includeDuplicateChannel and deleteOtherChannels, and the number of worker threads (Prefs.setThreads, used by
+ * the ImageJ filters). For each point, the wall time, the CPU time of the process, the peak heap usage and the
+ * heap retained after processing are recorded and written as one line to a CSV file. Points that run out of
+ * memory are recorded with the status OOM; larger edge lengths of the same configuration are then skipped
+ * (status SKIPPED), unless -noSkip is given.
+ *
+ * The synthetic input images (see SyntheticImages) contain as many channels as the highest swept channel number,
+ * so that deleteOtherChannels has an effect whenever fewer channels are segmented. They are cached in the
+ * benchmark directory and reused in later runs.
+ *
+ * Run headless with the heap size that shall be tested:
+ * 		java -Djava.awt.headless=true -Xmx32g -cp target/benchmarks.jar adipoQ_preparator_jnh.ScalingBenchmark
+ * 			[-edges 1024,2048,4096,8192,16384,20480,32768,40960] [-channels 1,2,3] [-threads 1,2,4,8]
+ * 			[-type histology|cells] [-bits 16] [-dir path] [-csv file] [-noSkip]
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.HashSet;
+import java.util.Locale;
+
+import ij.Prefs;
+
+public class ScalingBenchmark {
+	static final DecimalFormat df3 = new DecimalFormat("#0.000", new DecimalFormatSymbols(Locale.US));
+	static final DecimalFormat df1 = new DecimalFormat("#0.0", new DecimalFormatSymbols(Locale.US));
+
+	static final String CSV_HEADER = "type,bitDepth,edge,megaPixels,imageChannels,channels,includeDuplicateChannel,deleteOtherChannels,"
+			+ "threads,status,wallSeconds,cpuSeconds,cpuUtilization,peakHeapMB,retainedHeapMB,maxHeapMB";
+
+	/** {includeDuplicateChannel, deleteOtherChannels} */
+	static final boolean [][] OUTPUT_VARIANTS = new boolean [][] {
+		{false, false},
+		{true, false},
+		{false, true},
+		{true, true}
+	};
+
+	static final String STATUS_OK = "OK", STATUS_OOM = "OOM", STATUS_SKIPPED = "SKIPPED", STATUS_NO_INPUT = "NO_INPUT";
+
+	/**
+	 * Measurement of one point of the sweep
+	 * */
+	static class Point {
+		String type;
+		int bitDepth, edge, imageChannels, channels, threads;
+		boolean includeDuplicateChannel, deleteOtherChannels;
+		String status = STATUS_OK;
+		long wallNanos = -1, cpuNanos = -1, peakHeapBytes = -1, retainedHeapBytes = -1;
+
+		String toCSV() {
+			String line = type + "," + bitDepth + "," + edge + "," + df3.format((double) edge * (double) edge / 1.0e6) + ","
+					+ imageChannels + "," + channels + "," + includeDuplicateChannel + "," + deleteOtherChannels + ","
+					+ threads + "," + status;
+			if(status.equals(STATUS_OK)) {
+				line += "," + df3.format(wallNanos / 1.0e9);
+				if(cpuNanos >= 0) {
+					line += "," + df3.format(cpuNanos / 1.0e9) + "," + df3.format((double) cpuNanos / (double) wallNanos);
+				}else {
+					line += ",,";
+				}
+				line += "," + df1.format(peakHeapBytes / 1048576.0) + "," + df1.format(retainedHeapBytes / 1048576.0);
+			}else if(status.equals(STATUS_OOM)) {
+				line += ",,,," + df1.format(peakHeapBytes / 1048576.0) + ",";
+			}else {
+				line += ",,,,,";
+			}
+			return line + "," + df1.format(Runtime.getRuntime().maxMemory() / 1048576.0);
+		}
+	}
+
+	public static void main(String [] args) throws Exception {
+		int [] edges = new int [] {1024, 2048, 4096, 8192, 16384, 20480, 32768, 40960};
+		int [] channels = new int [] {1, 2, 3};
+		int [] threads = getDefaultThreadCounts();
+		boolean histology = true, skipAfterOOM = true;
+		int bitDepth = 16;
+		File dir = new File(System.getProperty("java.io.tmpdir"), "AdipoQPreparatorBenchmark");
+		File csv = null;
+		for(int i = 0; i < args.length; i++) {
+			if(args [i].equals("-edges"))			edges = parseList(args [++i]);
+			else if(args [i].equals("-channels"))	channels = parseList(args [++i]);
+			else if(args [i].equals("-threads"))	threads = parseList(args [++i]);
+			else if(args [i].equals("-type"))		histology = !args [++i].equals("cells");
+			else if(args [i].equals("-bits"))		bitDepth = Integer.parseInt(args [++i]);
+			else if(args [i].equals("-dir"))		dir = new File(args [++i]);
+			else if(args [i].equals("-csv"))		csv = new File(args [++i]);
+			else if(args [i].equals("-noSkip"))		skipAfterOOM = false;
+			else {
+				System.out.println("Unknown argument " + args [i] + " - usage: [-edges 1024,2048,...] [-channels 1,2,3]"
+						+ " [-threads 1,2,4,...] [-type histology|cells] [-bits 16] [-dir path] [-csv file] [-noSkip]");
+				return;
+			}
+		}
+		if(csv == null) {
+			csv = new File(dir, "scaling.csv");
+		}
+
+		int imageChannels = 1;
+		for(int c = 0; c < channels.length; c++) {
+			imageChannels = Math.max(imageChannels, channels [c]);
+		}
+
+		File inputDir = new File(dir, "scaling-" + (histology ? "histology" : "cells"));
+		inputDir.mkdirs();
+		int threadsPref = Prefs.getThreads();
+		HashSet<String> failedConfigurations = new HashSet<String>();
+
+		PrintWriter out = new PrintWriter(new FileWriter(csv));
+		out.println(CSV_HEADER);
+		out.flush();
+		System.out.println(CSV_HEADER);
+		try {
+			for(int e = 0; e < edges.length; e++) {
+				String inputName = "edge" + edges [e] + "_c" + imageChannels + "_" + bitDepth + "bit.tif";
+				boolean inputAvailable = createInput(inputDir, inputName, histology, edges [e], imageChannels, bitDepth);
+				for(int c = 0; c < channels.length; c++) {
+					for(int v = 0; v < OUTPUT_VARIANTS.length; v++) {
+						for(int t = 0; t < threads.length; t++) {
+							Point point = new Point();
+							point.type = histology ? "histology" : "cells";
+							point.bitDepth = bitDepth;
+							point.edge = edges [e];
+							point.imageChannels = imageChannels;
+							point.channels = channels [c];
+							point.includeDuplicateChannel = OUTPUT_VARIANTS [v][0];
+							point.deleteOtherChannels = OUTPUT_VARIANTS [v][1];
+							point.threads = threads [t];
+
+							String configuration = channels [c] + "_" + v + "_" + threads [t];
+							if(!inputAvailable) {
+								point.status = STATUS_NO_INPUT;
+							}else if(skipAfterOOM && failedConfigurations.contains(configuration)) {
+								point.status = STATUS_SKIPPED;
+							}else {
+								run(point, inputDir, inputName);
+								if(point.status.equals(STATUS_OOM)) {
+									failedConfigurations.add(configuration);
+								}
+							}
+							out.println(point.toCSV());
+							out.flush();
+							System.out.println(point.toCSV());
+						}
+					}
+				}
+			}
+		}finally {
+			out.close();
+			Prefs.setThreads(threadsPref);
+		}
+		System.out.println("Results saved to " + csv.getAbsolutePath());
+	}
+
+	/**
+	 * Creates the synthetic input image @param name in @param dir, unless it already exists.
+	 * @return false if the image could not be created (e.g., not enough memory to generate it)
+	 * */
+	static boolean createInput(File dir, String name, boolean histology, int edge, int channels, int bitDepth) {
+		File file = new File(dir, name);
+		if(file.exists())	return true;
+		try {
+			SyntheticImages.saveTiff(EndToEndBenchmark.createImage(histology, edge, channels, bitDepth, 0), file.getAbsolutePath());
+		}catch(OutOfMemoryError e) {
+			System.out.println("Not enough memory to create the input image " + name);
+			file.delete();
+			return false;
+		}
+		return file.exists();
+	}
+
+	/**
+	 * Processes the file @param name in @param dir with the configuration given in @param point and
+	 * stores the measurements in @param point.
+	 * */
+	static void run(Point point, File dir, String name) {
+		Prefs.setThreads(point.threads);
+		AdipoQPreparatorMain main = EndToEndBenchmark.createPlugin(point.type.equals("histology") ? 0 : 1, false,
+				point.channels, point.bitDepth);
+		main.includeDuplicateChannel = point.includeDuplicateChannel;
+		main.deleteOtherChannels = point.deleteOtherChannels;
+		main.tasks = 1;
+
+		EndToEndBenchmark.resetPeakHeap();
+		long heapBefore = getUsedHeap();
+		long cpuStart = getProcessCpuTime();
+		long start = System.nanoTime();
+		try {
+			main.processTasks(new String [] {name}, new String [] {dir.getAbsolutePath() + System.getProperty("file.separator")}, null);
+		}catch(OutOfMemoryError e) {
+			point.status = STATUS_OOM;
+		}
+		long wall = System.nanoTime() - start;
+		long cpuEnd = getProcessCpuTime();
+		point.peakHeapBytes = EndToEndBenchmark.getPeakHeap();
+		if(point.status.equals(STATUS_OK)) {
+			point.wallNanos = wall;
+			if(cpuStart >= 0 && cpuEnd >= 0) {
+				point.cpuNanos = cpuEnd - cpuStart;
+			}
+			//the plugin instance is still referenced, so fields that keep images alive count as retained
+			point.retainedHeapBytes = getUsedHeap() - heapBefore;
+		}
+		main = null;
+		System.gc();
+	}
+
+	/**
+	 * @return the used heap after a garbage collection
+	 * */
+	static long getUsedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return the CPU time used by the whole process in ns, including threads that have already terminated,
+	 * or -1 if not supported by the JVM
+	 * */
+	static long getProcessCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return 1, 2, 4, ... up to the number of available processors (always included)
+	 * */
+	static int [] getDefaultThreadCounts() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int count = 1;
+		for(int n = 2; n < processors; n *= 2)	count++;
+		if(processors > 1)	count++;
+		int [] threads = new int [count];
+		threads [0] = 1;
+		int index = 1;
+		for(int n = 2; n < processors; n *= 2) {
+			threads [index] = n;
+			index++;
+		}
+		if(processors > 1)	threads [index] = processors;
+		return threads;
+	}
+
+	static int [] parseList(String list) {
+		String [] entries = list.split(",");
+		int [] values = new int [entries.length];
+		for(int i = 0; i < entries.length; i++) {
+			values [i] = Integer.parseInt(entries [i].trim());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,306 @@
+package adipoQ_preparator_jnh;
+/**
+ * Generates reproducible synthetic input images that resemble the data processed with the AdipoQ Preparator:
+ * 	- histology: adipose tissue with bright adipocyte lumens separated by darker membranes on a bright
+ * 		slide background, surrounded by zero-intensity pixels outside the scanned region (slide scanner).
+ * 	- fluorescence: cultured cells with bright nuclei (channel 1) and lipid droplets (channel 2)
+ * 		on a dark background.
+ * All structures are derived from hashes of the pixel grid position and the seed, so the same
+ * parameters always give the same image, independent of the image size in which they are placed.
+ */
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.services.OMEXMLService;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+public class SyntheticImages {
+	/** Pixel size of the generated images in micron */
+	static final double PIXEL_SIZE = 0.5;
+
+	/** Distance of adipocyte centers in pixel (80 micron) */
+	static final double ADIPOCYTE_SPACING = 160.0;
+	static final double MEMBRANE_WIDTH = 4.0;
+
+	/** Distance of cultured cells in pixel (20 micron) */
+	static final double CELL_SPACING = 40.0;
+
+	/**
+	 * @return a histology-like image (dark structures on bright background) with @param channels channels
+	 * */
+	public static ImagePlus createHistology(int width, int height, int channels, int bitDepth, long seed) {
+		ImagePlus imp = createImage("synthetic histology", width, height, channels, bitDepth);
+		double max = maxValue(bitDepth);
+		double [] row = new double [width];
+		for(int c = 0; c < channels; c++) {
+			Object pixels = imp.getStack().getPixels(imp.getStackIndex(c+1, 1, 1));
+			double membrane = 0.25 + 0.1 * c, lumen = 0.85 - 0.05 * c, background = 0.93;
+			for(int y = 0; y < height; y++) {
+				Random noise = new Random(seed * 7919L + c * 104729L + y);
+				double dyScan = (y - height / 2.0) / (height * 0.48);
+				double dyTissue = (y - height / 2.0) / (height * 0.36);
+				for(int x = 0; x < width; x++) {
+					double dxScan = (x - width / 2.0) / (width * 0.48);
+					if(dxScan * dxScan + dyScan * dyScan > 1.0) {
+						row [x] = 0.0;	//outside of the scanned region
+						continue;
+					}
+					double dxTissue = (x - width / 2.0) / (width * 0.36);
+					double value;
+					if(dxTissue * dxTissue + dyTissue * dyTissue > 1.0) {
+						value = background;
+					}else if(getVoronoiEdgeDistance(x, y, ADIPOCYTE_SPACING, seed) < MEMBRANE_WIDTH) {
+						value = membrane;
+					}else {
+						value = lumen;
+					}
+					row [x] = clip(max * (value + 0.02 * noise.nextGaussian()), max);
+				}
+				for(int x = 0; x < width; x++) {
+					setValue(pixels, y * width + x, row [x]);
+				}
+			}
+		}
+		return imp;
+	}
+
+	/**
+	 * @return a fluorescence-like image (bright structures on dark background) with @param channels channels:
+	 * nuclei in channel 1, lipid droplets (rings) in channel 2, diffuse cytoplasm in further channels
+	 * */
+	public static ImagePlus createFluorescence(int width, int height, int channels, int bitDepth, long seed) {
+		ImagePlus imp = createImage("synthetic fluorescence", width, height, channels, bitDepth);
+		double max = maxValue(bitDepth);
+		double [] row = new double [width];
+		for(int c = 0; c < channels; c++) {
+			Object pixels = imp.getStack().getPixels(imp.getStackIndex(c+1, 1, 1));
+			for(int y = 0; y < height; y++) {
+				Random noise = new Random(seed * 7919L + c * 104729L + y);
+				for(int x = 0; x < width; x++) {
+					double value = 0.03;
+					double distance = getNearestSeedDistance(x, y, CELL_SPACING, seed + c, 0.7);
+					double radius = 0.22 * CELL_SPACING;
+					if(c == 0) {
+						//nucleus: disc with soft edge
+						if(distance < radius) {
+							value += 0.7 * Math.min(1.0, (radius - distance) / 2.0);
+						}
+					}else if(c == 1) {
+						//lipid droplet: bright ring
+						if(Math.abs(distance - radius) < 2.0) {
+							value += 0.6;
+						}
+					}else if(distance < 0.45 * CELL_SPACING) {
+						//cytoplasm
+						value += 0.2;
+					}
+					row [x] = clip(max * (value + 0.01 * noise.nextGaussian()), max);
+				}
+				for(int x = 0; x < width; x++) {
+					setValue(pixels, y * width + x, row [x]);
+				}
+			}
+		}
+		return imp;
+	}
+
+	/**
+	 * Fills the @param channel (1-based) of @param imp with a tissue-like pattern: an elliptic tissue region
+	 * containing a regular grid of round cells plus noise, surrounded by pixels with zero intensity.
+	 * */
+	static void fillTissueLike(ImagePlus imp, int channel, long seed) {
+		Random random = new Random(seed);
+		int width = imp.getWidth(), height = imp.getHeight();
+		double max = maxValue(imp.getBitDepth());
+		double cellRadius = Math.max(4.0, width / 200.0);
+		double [] row = new double [width];
+		Object pixels = imp.getStack().getPixels(imp.getStackIndex(channel, 1, 1));
+		for(int y = 0; y < height; y++) {
+			double dy = (y - height / 2.0) / (height * 0.45);
+			for(int x = 0; x < width; x++) {
+				double dx = (x - width / 2.0) / (width * 0.45);
+				if(dx * dx + dy * dy > 1.0) {
+					row [x] = 0.0;
+					continue;
+				}
+				double cx = (x % (int)(4 * cellRadius)) - 2 * cellRadius;
+				double cy = (y % (int)(4 * cellRadius)) - 2 * cellRadius;
+				double cell = cx * cx + cy * cy < cellRadius * cellRadius ? 0.7 : 0.3;
+				row [x] = Math.min(max, Math.max(max / 255.0, max * (cell + 0.1 * random.nextGaussian())));
+			}
+			for(int x = 0; x < width; x++) {
+				setValue(pixels, y * width + x, row [x]);
+			}
+		}
+	}
+
+	/**
+	 * Saves @param imp as TIFF file to @param path.
+	 * */
+	public static void saveTiff(ImagePlus imp, String path) {
+		IJ.saveAsTiff(imp, path);
+	}
+
+	/**
+	 * Saves the images in @param series as individual series of one OME-TIFF file (BigTIFF) to @param path.
+	 * All images need to have the same number of channels and bit depth. Use the ending .ome.btf
+	 * so that the file is opened through Bio-Formats by the AdipoQ Preparator.
+	 * */
+	public static void saveMultiSeries(ImagePlus [] series, String path) throws Exception {
+		ServiceFactory factory = new ServiceFactory();
+		OMEXMLService service = factory.getInstance(OMEXMLService.class);
+		IMetadata meta = service.createOMEXMLMetadata();
+		int pixelType = getPixelType(series [0].getBitDepth());
+		for(int s = 0; s < series.length; s++) {
+			MetadataTools.populateMetadata(meta, s, series [s].getTitle() + " " + (s+1), false, "XYZCT",
+					FormatTools.getPixelTypeString(pixelType), series [s].getWidth(), series [s].getHeight(),
+					1, series [s].getNChannels(), 1, 1);
+			meta.setPixelsPhysicalSizeX(new Length(PIXEL_SIZE, UNITS.MICROMETER), s);
+			meta.setPixelsPhysicalSizeY(new Length(PIXEL_SIZE, UNITS.MICROMETER), s);
+		}
+		new File(path).delete();
+		OMETiffWriter writer = new OMETiffWriter();
+		writer.setMetadataRetrieve(meta);
+		writer.setBigTiff(true);
+		writer.setId(path);
+		for(int s = 0; s < series.length; s++) {
+			writer.setSeries(s);
+			for(int c = 0; c < series [s].getNChannels(); c++) {
+				writer.saveBytes(c, getBytes(series [s].getStack().getPixels(c+1)));
+			}
+		}
+		writer.close();
+	}
+
+	private static ImagePlus createImage(String title, int width, int height, int channels, int bitDepth) {
+		ImagePlus imp = IJ.createHyperStack(title, width, height, channels, 1, 1, bitDepth);
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = PIXEL_SIZE;
+		cal.pixelHeight = PIXEL_SIZE;
+		cal.pixelDepth = 1.0;
+		cal.setUnit("micron");
+		return imp;
+	}
+
+	/**
+	 * @return the difference between the distances to the nearest and to the second nearest seed point of
+	 * a jittered grid with the given @param spacing - small values indicate a border between Voronoi cells
+	 * */
+	static double getVoronoiEdgeDistance(int x, int y, double spacing, long seed) {
+		int gx = (int) Math.floor(x / spacing), gy = (int) Math.floor(y / spacing);
+		double nearest = Double.MAX_VALUE, second = Double.MAX_VALUE;
+		for(int ix = gx - 1; ix <= gx + 1; ix++) {
+			for(int iy = gy - 1; iy <= gy + 1; iy++) {
+				long hash = hash(ix, iy, seed);
+				double sx = (ix + 0.15 + 0.7 * toUnit(hash)) * spacing;
+				double sy = (iy + 0.15 + 0.7 * toUnit(hash >>> 21)) * spacing;
+				double d = Math.sqrt((sx - x) * (sx - x) + (sy - y) * (sy - y));
+				if(d < nearest) {
+					second = nearest;
+					nearest = d;
+				}else if(d < second) {
+					second = d;
+				}
+			}
+		}
+		return second - nearest;
+	}
+
+	/**
+	 * @return the distance to the nearest seed point of a jittered grid with the given @param spacing,
+	 * where each grid position holds a seed with probability @param occupancy
+	 * */
+	static double getNearestSeedDistance(int x, int y, double spacing, long seed, double occupancy) {
+		int gx = (int) Math.floor(x / spacing), gy = (int) Math.floor(y / spacing);
+		double nearest = Double.MAX_VALUE;
+		for(int ix = gx - 1; ix <= gx + 1; ix++) {
+			for(int iy = gy - 1; iy <= gy + 1; iy++) {
+				long hash = hash(ix, iy, seed);
+				if(toUnit(hash >>> 42) > occupancy)	continue;
+				double sx = (ix + 0.25 + 0.5 * toUnit(hash)) * spacing;
+				double sy = (iy + 0.25 + 0.5 * toUnit(hash >>> 21)) * spacing;
+				double d = Math.sqrt((sx - x) * (sx - x) + (sy - y) * (sy - y));
+				if(d < nearest)	nearest = d;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * splitmix64-based hash of a grid position
+	 * */
+	private static long hash(int x, int y, long seed) {
+		long z = seed + 0x9E3779B97F4A7C15L * (((long) x << 32) ^ (y & 0xffffffffL));
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * @return the lowest 21 bits of @param hash as a value between 0 and 1
+	 * */
+	private static double toUnit(long hash) {
+		return (hash & 0x1FFFFF) / (double) 0x1FFFFF;
+	}
+
+	private static double clip(double value, double max) {
+		if(value < 0.0)	return 0.0;
+		if(value > max)	return max;
+		return value;
+	}
+
+	static double maxValue(int bitDepth) {
+		if(bitDepth == 32)	return 1.0;
+		return Math.pow(2.0, bitDepth) - 1.0;
+	}
+
+	static double getValue(Object pixels, int i) {
+		if(pixels instanceof byte [])	return ((byte []) pixels)[i] & 0xff;
+		if(pixels instanceof short [])	return ((short []) pixels)[i] & 0xffff;
+		return ((float []) pixels)[i];
+	}
+
+	static void setValue(Object pixels, int i, double value) {
+		if(pixels instanceof byte []) {
+			((byte []) pixels)[i] = (byte) (int) value;
+		}else if(pixels instanceof short []) {
+			((short []) pixels)[i] = (short) (int) value;
+		}else {
+			((float []) pixels)[i] = (float) value;
+		}
+	}
+
+	private static int getPixelType(int bitDepth) {
+		if(bitDepth == 8)	return FormatTools.UINT8;
+		if(bitDepth == 16)	return FormatTools.UINT16;
+		return FormatTools.FLOAT;
+	}
+
+	/**
+	 * @return the @param pixels as big-endian byte array
+	 * */
+	private static byte [] getBytes(Object pixels) {
+		if(pixels instanceof byte [])	return (byte []) pixels;
+		if(pixels instanceof short []) {
+			short [] values = (short []) pixels;
+			ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+			buffer.asShortBuffer().put(values);
+			return buffer.array();
+		}
+		float [] values = (float []) pixels;
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+		buffer.asFloatBuffer().put(values);
+		return buffer.array();
+	}
+}
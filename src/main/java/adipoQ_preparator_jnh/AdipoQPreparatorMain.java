@@ -26,8 +26,16 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.text.*;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.UIManager;
 
 import ij.*;
@@ -35,14 +43,17 @@ import ij.gui.*;
 import ij.io.*;
 import ij.measure.*;
 import ij.plugin.*;
+import ij.plugin.filter.GaussianBlur;
 import ij.process.LUT;
-import ij.text.*;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
 import loci.plugins.BF;
 import loci.plugins.in.ImportProcess;
 import loci.plugins.in.ImporterOptions;
 import ij.process.AutoThresholder.Method;
 import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 public class AdipoQPreparatorMain implements PlugIn, Measurements {
@@ -58,14 +69,14 @@ public class AdipoQPreparatorMain implements PlugIn, Measurements {
 	static final Font InstructionsFont = new Font("Sansserif", 2, 12);
 	static final Font RoiFont = new Font("Sansserif", Font.PLAIN, 12);
 	
-	DecimalFormat df6 = new DecimalFormat("#0.000000");
-	DecimalFormat df3 = new DecimalFormat("#0.000");
-	DecimalFormat df0 = new DecimalFormat("#0");
-	DecimalFormat dfDialog = new DecimalFormat("#0.000000");
+	DecimalFormat df6 = new SynchronizedDecimalFormat("#0.000000");
+	DecimalFormat df3 = new SynchronizedDecimalFormat("#0.000");
+	DecimalFormat df0 = new SynchronizedDecimalFormat("#0");
+	DecimalFormat dfDialog = new SynchronizedDecimalFormat("#0.000000");
 		
-	static SimpleDateFormat NameDateFormatter = new SimpleDateFormat("yyMMdd_HHmmss");
-	static SimpleDateFormat FullDateFormatter = new SimpleDateFormat("yyyy-MM-dd	HH:mm:ss");
-	static SimpleDateFormat FullDateFormatter2 = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	static SimpleDateFormat NameDateFormatter = new SynchronizedDateFormat("yyMMdd_HHmmss");
+	static SimpleDateFormat FullDateFormatter = new SynchronizedDateFormat("yyyy-MM-dd	HH:mm:ss");
+	static SimpleDateFormat FullDateFormatter2 = new SynchronizedDateFormat("yyyy-MM-dd HH:mm:ss");
 		
 	//Fix LUTs
 	final static double STARDISTLUTNUMBERS [][] = new double [][] {{0.0,0.0,0.0},{175.0,153.0,230.0},{246.0,248.0,253.0},{79.0,178.0,215.0},
@@ -116,8 +127,23 @@ public class AdipoQPreparatorMain implements PlugIn, Measurements {
 		
 	//Progress Dialog
 	ProgressDialog progress;	
-	boolean processingDone = false;	
-	boolean continueProcessing = true;
+	StageTimer stageTimer = null;
+	volatile boolean processingDone = false;	
+	volatile boolean continueProcessing = true;
+	
+	//progress of the individual tasks, which may be processed at the same time (see parallelImages)
+	private InheritableThreadLocal<Integer> currentTask = new InheritableThreadLocal<Integer>();
+	private double [] taskProgress = null;
+	private boolean [] taskMoved = null;
+	private int nextTaskToMove = 0;
+	
+	//memory admission of the tasks (see MemoryBudget)
+	private MemoryBudget memoryBudget = null;
+	private long [] taskMemory = null;
+	private long [] taskSequentialMemory = null;
+	private double [] taskCost = null;
+	private boolean [] taskAdmitted = null;
+	private boolean [] taskSequentialChannels = null;
 	
 	//-----------------define params-----------------
 	static final String[] taskVariant = {"active image in FIJI","multiple images (open multi-task manager)", "all images open in FIJI"};
@@ -164,7 +190,44 @@ public class AdipoQPreparatorMain implements PlugIn, Measurements {
 	String chosenOutputName = outputVariant[0];
 	
 	static final String[] nrFormats = {"US (0.00...)", "Germany (0,00...)"};
-	String ChosenNumberFormat = nrFormats[0];		
+	String ChosenNumberFormat = nrFormats[0];
+	
+	static final String[] kernelVariant = {"vectorized (if supported by the Java VM)", "scalar (reference implementation)"};
+	String chosenKernelVariant = kernelVariant[0];
+	boolean useVectorKernels = false;
+	boolean fusedPasses = true;
+	boolean blurInOutput = true;
+	static final String[] blurEngineVariant = {"ImageJ (Gaussian kernel)", "recursive Gaussian (Deriche, cost independent of sigma)"};
+	String chosenBlurEngine = blurEngineVariant[0];
+	static final String[] backgroundEngineVariant = {"ImageJ rolling ball (reference)", "fast (downsampled paraboloid, multi-threaded)"};
+	String chosenBackgroundEngine = backgroundEngineVariant[0];
+	//validation only: runs the ImageJ reference on a sample of each channel in addition to the fast engines
+	boolean reportEngineDeviation = false;
+	boolean edtMorphology = true;
+	boolean runFillHoles = true;
+	boolean bitDespeckle = true;
+	boolean regionBitmask = true;
+	static final String[] roiOutlineVariant = {"ImageJ Create Selection (reference)", "contour tracing (linear pass)"};
+	String chosenRoiOutline = roiOutlineVariant[0];
+	boolean saveRegionRuns = false;
+	static final String[] watershedEngineVariant = {"ImageJ (reference)", "fast (exact distance map, single-pass flooding)"};
+	String chosenWatershedEngine = watershedEngineVariant[0];
+	
+	boolean parallelChannels = true;
+	int parallelImages = 1;
+	boolean pipelineIO = true;
+	static final String[] taskOrderVariant = {"as listed", "largest images first (best load balance when processing images in parallel)", 
+			"smallest images first (fast feedback)"};
+	String chosenTaskOrder = taskOrderVariant[0];
+	boolean autoTune = false;
+	String autoTuneResult = null;
+	//show the dialog with the engine settings that do not change the results (see enterEngineSettings)
+	boolean showEngineSettings = false;
+	//processing cost of a StarDist channel relative to a channel segmented with an intensity threshold (see estimateImageCost)
+	static final double STARDIST_COST_FACTOR = 20.0;
+	
+	//StarDist needs displayed images and returns a window named "Label Image", so only one task may run it at a time
+	private final Object starDistLock = new Object();
 
 	Robot robo;
 	boolean keepAwake = false;
@@ -212,7 +275,18 @@ public void run(String arg) {
 	gd.setInsets(10,0,0);	gd.addMessage("GENERAL SETTINGS:", HeadingFont);	
 	gd.setInsets(5,0,0);	gd.addChoice("Output image name: ", outputVariant, chosenOutputName);
 	gd.setInsets(5,0,0);	gd.addChoice("output number format", nrFormats, nrFormats[0]);
+	gd.setInsets(5,0,0);	gd.addChoice("Gaussian blur engine", blurEngineVariant, chosenBlurEngine);
+	gd.setInsets(5,0,0);	gd.addChoice("Background subtraction engine", backgroundEngineVariant, chosenBackgroundEngine);
+	gd.setInsets(5,0,0);	gd.addChoice("Outline of the non-zero-pixel ROI", roiOutlineVariant, chosenRoiOutline);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Also save the non-zero-pixel region as run-length mask (_ROI_C#_runs.txt)", saveRegionRuns);
+	gd.setInsets(5,0,0);	gd.addChoice("Watershed engine", watershedEngineVariant, chosenWatershedEngine);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Process segmentation channels in parallel (except StarDist)", parallelChannels);
+	gd.setInsets(5,0,0);	gd.addNumericField("Number of images processed in parallel", parallelImages, 0);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Read next / write previous image files during processing", pipelineIO);
+	gd.setInsets(5,0,0);	gd.addChoice("Task order", taskOrderVariant, chosenTaskOrder);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Auto-tune parallel processing on a sample of the first image", autoTune);
 	gd.setInsets(5,0,0);	gd.addCheckbox("Keep computer awake during processing", keepAwake);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Show advanced engine settings (results identical, for comparisons only)", showEngineSettings);
 	
 	gd.showDialog();
 	//show Dialog-----------------------------------------------------------------
@@ -233,10 +307,25 @@ public void run(String arg) {
 		df3.setDecimalFormatSymbols(new DecimalFormatSymbols(Locale.GERMANY));
 		df0.setDecimalFormatSymbols(new DecimalFormatSymbols(Locale.GERMANY));
 	}
+	chosenBlurEngine = gd.getNextChoice();
+	chosenBackgroundEngine = gd.getNextChoice();
+	chosenRoiOutline = gd.getNextChoice();
+	saveRegionRuns = gd.getNextBoolean();
+	chosenWatershedEngine = gd.getNextChoice();
+	parallelChannels = gd.getNextBoolean();
+	parallelImages = Math.max(1, (int) Math.round(gd.getNextNumber()));
+	pipelineIO = gd.getNextBoolean();
+	chosenTaskOrder = gd.getNextChoice();
+	autoTune = gd.getNextBoolean();
 	keepAwake = gd.getNextBoolean();
+	showEngineSettings = gd.getNextBoolean();
 	//read and process variables--------------------------------------------------
 	if (gd.wasCanceled()) return;
 	
+	if(showEngineSettings && !enterEngineSettings()) {
+		return;
+	}
+	
 	if(selectedSettingsVariant.equals(settingsMethod [0])){
 		/** HISTOLOGY */
 		if(!enterSettings(0)) {
@@ -330,6 +419,14 @@ public void run(String arg) {
 		}
 	}
 	
+	processTasks(name, dir, allImps);
+}
+
+/**
+ * Processes all tasks (files / images listed in @param name and @param dir or the images in @param allImps)
+ * with the current settings. Does not show any dialog if running headless (e.g., in benchmarks).
+ * */
+void processTasks(String name [], String dir [], ImagePlus allImps []) {
 	//For BioFormats - screen for series and add tasks accordingly
 	ImporterOptions bfOptions;
 	int series [] = new int [tasks];
@@ -539,7 +636,22 @@ public void run(String arg) {
 		return;
 	}
 	
+	//estimate memory demand and processing cost of the tasks from the image headers
+	estimateTasks(name, dir, series, totSeries, allImps);
+	if(!chosenTaskOrder.equals(taskOrderVariant[0])) {
+		int order [] = TaskOrder.getOrder(name, dir, taskCost, chosenTaskOrder.equals(taskOrderVariant[1]));
+		name = TaskOrder.apply(order, name);
+		dir = TaskOrder.apply(order, dir);
+		series = TaskOrder.apply(order, series);
+		totSeries = TaskOrder.apply(order, totSeries);
+		if(allImps != null && allImps.length == tasks)	allImps = TaskOrder.apply(order, allImps);
+		taskMemory = TaskOrder.apply(order, taskMemory);
+		taskSequentialMemory = TaskOrder.apply(order, taskSequentialMemory);
+		taskCost = TaskOrder.apply(order, taskCost);
+	}
+	
 	//add progressDialog
+	if(!GraphicsEnvironment.isHeadless()) {
 		progress = new ProgressDialog(name, series, tasks, 1);
 		progress.setLocation(0,0);
 		progress.setVisible(true);
@@ -552,798 +664,1395 @@ public void run(String arg) {
 	        	return;
 	        }
 		});
+	}
 		
 		if(removedFiles.length()>1) {
-			progress.notifyMessage("For some files, the series preference '" 
+			notifyProgress("For some files, the series preference '" 
 					+ loadSeries + "' did not fit - these files were excluded from analysis:" 
 					+ removedFiles + "", ProgressDialog.NOTIFICATION);			
 		}
 		
 //		if(selectedTaskVariant.equals(taskVariant[1])){
-//			progress.notifyMessage(filesList, ProgressDialog.LOG);	
+//			notifyProgress(filesList, ProgressDialog.LOG);	
 //		}
 	
 	
-   	ImagePlus imp, mask;
-   	ImagePlus [] tempImp;
-   	CompositeImage outImp;
-   	TextPanel tp1;
-   	double threshold;
-   	Date startDate;
-   	LUT [] originalLuts;
-   	LUT [] newLuts;
-   	String sliceLabels [][][];
-   	int indexOld, indexNew;
-
 	boolean backgroundPref = Prefs.blackBackground;
 
 	starDistLUT = getLUT(STARDISTLUTNUMBERS, false);
+	useVectorKernels = chosenKernelVariant.equals(kernelVariant[0]) && PixelKernels.isVectorizationSupported();
 	
 	if(keepAwake) {
    		try {
 			robo = new Robot();
 		} catch (AWTException e) {
 			keepAwake = false;
-			progress.notifyMessage("Robot that moves the mouse to keep the computer awake could not be hired - Stay-awake-mode was disabled.", ProgressDialog.NOTIFICATION);
+			notifyProgress("Robot that moves the mouse to keep the computer awake could not be hired - Stay-awake-mode was disabled.", ProgressDialog.NOTIFICATION);
 		}
    	}
 		
-	for(int task = 0; task < tasks; task++){
-		Prefs.blackBackground =  true;
-		running: while(continueProcessing){
-			startDate = new Date();
-			progress.updateBarText("in progress...");
-			//Check for problems
-			if(name[task].contains(".") && name[task].substring(name[task].lastIndexOf("."),name[task].length()).equals(".txt")){
-				progress.notifyMessage("Task " + (task+1) + "/" + tasks + ": A file is no image! Could not be processed!", ProgressDialog.ERROR);
-				progress.moveTask(task);	
-				break running;
+	final String [] taskNames = name, taskDirs = dir;
+	final int [] taskSeries = series, taskTotSeries = totSeries;
+	final ImagePlus [] taskImps = allImps;
+	startMemoryBudget(taskNames);
+	int threadsPref = Prefs.getThreads(), tileSizePref = RowBands.minPixelsPerBand;
+	try {
+		autoTuneResult = null;
+		if(autoTune) {
+			autoTune(taskNames, taskDirs, taskSeries, taskTotSeries, taskImps);
+		}
+		startTaskProgress(tasks);
+		if(pipelineIO && selectedTaskVariant.equals(taskVariant[1]) && tasks > 1) {
+			//read the next and write the previous images while processing
+			new TaskPipeline(this, taskNames, taskDirs, taskSeries, taskTotSeries, tasks, parallelImages).run();
+		}else if(parallelImages > 1 && tasks > 1) {
+			//process several images at the same time, results are written per task
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelImages, tasks));
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int task = 0; task < tasks; task++){
+				final int taskIndex = task;
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						processTask(taskIndex, taskNames, taskDirs, taskSeries, taskTotSeries, taskImps, null,
+								new TaskOutput(taskIndex, false));
+					}
+				}));
 			}
-			if(name[task].contains(".") && name[task].substring(name[task].lastIndexOf("."),name[task].length()).equals(".zip")){	
-				progress.notifyMessage("Task " + (task+1) + "/" + tasks + ": A file is no image! Could not be processed!", ProgressDialog.ERROR);
-				progress.moveTask(task);	
-				break running;
-			}					
-			//Check for problems
-
-			//open Image
-		   	try{
-		   		if(selectedTaskVariant.equals(taskVariant[1])){
-		   			if(name[task].contains(".tif") || name[task].contains(".tiff") || name[task].contains(".png") || name[task].contains(".jpeg")
-		   					|| name[task].contains(".JPEG") || name[task].contains(".jpg") || name[task].contains(".JPG") 
-		   					|| name[task].contains(".TIF") || name[task].contains(".TIFF") || name[task].contains(".PNG")){
-		   				//TIFF file
-		   				imp = IJ.openImage(""+dir[task]+name[task]+"");		
-		   			}else{
-		   				//bio format reader
-		   				bfOptions = new ImporterOptions();
-		   				bfOptions.setId(""+dir[task]+name[task]+"");
-		   				bfOptions.setVirtual(false);
-		   				bfOptions.setAutoscale(true);
-		   				bfOptions.setColorMode(ImporterOptions.COLOR_MODE_COMPOSITE);
-		   				for(int i = 0; i < totSeries[task]; i++) {
-		   					if(i==series[task]) {
-		   						bfOptions.setSeriesOn(i, true);
-		   					}else {
-		   						bfOptions.setSeriesOn(i, false);
-		   					}
-		   				}
-		   				ImagePlus [] imps = BF.openImagePlus(bfOptions);
+			executor.shutdown();
+			try {
+				for(int i = 0; i < futures.size(); i++) {
+					try {
+						futures.get(i).get();
+					}catch(ExecutionException e) {
+						throw getUncheckedCause(e);
+					}catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					}
+				}
+			}finally {
+				executor.shutdownNow();
+			}
+		}else {
+			for(int task = 0; task < tasks; task++){
+				processTask(task, taskNames, taskDirs, taskSeries, taskTotSeries, taskImps, null, new TaskOutput(task, false));
+			}
+		}
+	}finally {
+		//also restored if a task fails (e.g., OutOfMemoryError), the settings are global to ImageJ / FIJI
+		currentTask.remove();
+		Prefs.blackBackground = backgroundPref;
+		Prefs.setThreads(threadsPref);
+		RowBands.minPixelsPerBand = tileSizePref;
+	}
+}
+
+/**
+ * @return true if the file @param name of a task is no image (.txt or .zip file)
+ * */
+boolean isNoImageFile(String name) {
+	if(!name.contains("."))	return false;
+	String suffix = name.substring(name.lastIndexOf("."),name.length());
+	return suffix.equals(".txt") || suffix.equals(".zip");
+}
+
+/**
+ * @return the image of the task with index @param task: opened from the file (TIFF/PNG/JPEG via ImageJ, other formats
+ * via BioFormats), the active image or the image from @param allImps, depending on the selected task variant
+ * */
+ImagePlus openTaskImage(int task, String name [], String dir [], int series [], int totSeries [], ImagePlus allImps []) 
+		throws Exception {
+	ImporterOptions bfOptions;
+	ImagePlus imp;
+	if(selectedTaskVariant.equals(taskVariant[1])){
+		if(name[task].contains(".tif") || name[task].contains(".tiff") || name[task].contains(".png") || name[task].contains(".jpeg")
+				|| name[task].contains(".JPEG") || name[task].contains(".jpg") || name[task].contains(".JPG") 
+				|| name[task].contains(".TIF") || name[task].contains(".TIFF") || name[task].contains(".PNG")){
+			//TIFF file
+			imp = IJ.openImage(""+dir[task]+name[task]+"");		
+		}else{
+			//bio format reader
+			bfOptions = new ImporterOptions();
+			bfOptions.setId(""+dir[task]+name[task]+"");
+			bfOptions.setVirtual(false);
+			bfOptions.setAutoscale(true);
+			bfOptions.setColorMode(ImporterOptions.COLOR_MODE_COMPOSITE);
+			for(int i = 0; i < totSeries[task]; i++) {
+				if(i==series[task]) {
+					bfOptions.setSeriesOn(i, true);
+				}else {
+					bfOptions.setSeriesOn(i, false);
+				}
+			}
+			ImagePlus [] imps = BF.openImagePlus(bfOptions);
 //		   				IJ.run("Bio-Formats", "open=[" +dir[task] + name[task]
 //		   						+ "] autoscale color_mode=Default rois_import=[ROI manager] view=Hyperstack stack_order=XYCZT");
-		   				imp = imps [0];	
-		   				imp.setDisplayMode(IJ.COMPOSITE);
-		   			}
-		   			imp.hide();
-					imp.deleteRoi();
+			imp = imps [0];	
+			imp.setDisplayMode(IJ.COMPOSITE);
+		}
+		imp.hide();
+		imp.deleteRoi();
 //		   			imp = IJ.openImage(""+dir[task]+name[task]+"");			   			
 //					imp.deleteRoi();
-		   		}else if(selectedTaskVariant.equals(taskVariant[0])){
-		   			imp = WindowManager.getCurrentImage();
-		   			imp.deleteRoi();
-		   		}else{
-		   			imp = allImps[task];
-		   			imp.deleteRoi();
-		   		}
-		   	}catch (Exception e) {
-		   		progress.notifyMessage("Task " + (task+1) + "/" + tasks + ": file is no image - could not be processed!", ProgressDialog.ERROR);
-				progress.moveTask(task);	
-				break running;
-			}
-		   	//open Image
-		   	
-		   	//Check for problems with the image
-		   	if(imp.getNFrames()>1){	
-				progress.notifyMessage("Task " + (task+1) + "/" + tasks + ": Could not be processed. Analysis of multi-frame images not yet implemented!", ProgressDialog.ERROR);
-				progress.moveTask(task);	
-				break running;
-			}			
-			if(imp.getNSlices()>1){	
-				progress.notifyMessage("Task " + (task+1) + "/" + tasks + ": Could not be processed. Analysis of 3D images not yet implemented!", ProgressDialog.ERROR);
-				progress.moveTask(task);	
-				break running;
-			}			
-			if(imp.getBitDepth() == 24) {
-				//RGB image > Convert to RGB stack
-				imp = CompositeConverter.makeComposite(imp);
-				progress.notifyMessage("Task " + (task+1) + "/" + tasks + ": Images was in RGB format. Thus, images was automatically converted into a 3-channel stack image.", ProgressDialog.LOG);	
-			}
-			if(channelIDs [0] < 1 || channelIDs [0] > imp.getNChannels()) {
-				progress.notifyMessage("Task " + (task+1) + "/" + tasks + ": Could not be processed. Selected channel does not exist in the image!"
-						+ " Select a channel number between 1 and the total number of channels in the image.", ProgressDialog.ERROR);
-				progress.moveTask(task);	
-				break running;
-			}			
-		   	//Check for problems with the image
-		   	
-		   	//Create Outputfilename
-		   	progress.updateBarText("Create output filename");				
-			String filePrefix;
-			if(name[task].contains(".")){
-				filePrefix = name[task].substring(0,name[task].lastIndexOf("."));
-			}else{
-				filePrefix = name[task];
-			}
-			if(totSeries [task] > 1) {
-				filePrefix += "_s" + (series[task] + 1);
-			}
-			
-			filePrefix += "_AQP";
-			
-			if(chosenOutputName.equals(outputVariant[1])){
-				//saveDate
-				filePrefix += "_" + NameDateFormatter.format(startDate);
+	}else if(selectedTaskVariant.equals(taskVariant[0])){
+		imp = WindowManager.getCurrentImage();
+		imp.deleteRoi();
+	}else{
+		imp = allImps[task];
+		imp.deleteRoi();
+	}
+	return imp;
+}
+
+/**
+ * Determines the number of images processed in parallel, the threads per image, the minimum tile size of the row bands
+ * and whether segmentation channels are processed in parallel with the AutoTuner on a sample of the first image
+ * that can be processed and uses the best configuration within the memory budget for the batch (logged in the metadata via autoTuneResult).
+ * Segmentation channels are only tested in parallel if parallelChannels is set, as the memory estimates of the tasks 
+ * (see estimateImageMemory) depend on this setting. Not available for StarDist, which needs displayed images.
+ * */
+private void autoTune(String name [], String dir [], int series [], int totSeries [], ImagePlus allImps []) {
+	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		if(chosenAlgorithm [segmC].equals("StarDist")) {
+			notifyProgress("Auto-tuning is not available for StarDist segmentation - parallel processing settings were not changed.", ProgressDialog.NOTIFICATION);
+			return;
+		}
+	}
+	updateProgress("Auto-tuning parallel processing ...");
+	
+	ImagePlus sample [] = null;
+	long maxTaskMemory = 0;
+	for(int task = 0; task < tasks; task++) {
+		maxTaskMemory = Math.max(maxTaskMemory, taskMemory [task]);
+		if(sample != null || isNoImageFile(name [task]) || !memoryBudget.fits(taskMemory [task]))	continue;
+		ImagePlus imp;
+		try {
+			imp = openTaskImage(task, name, dir, series, totSeries, allImps);
+		}catch(Exception e) {
+			continue;
+		}
+		sample = AutoTuner.getSample(imp, channelIDs, numberOfChannels);
+		if(selectedTaskVariant.equals(taskVariant[1])){
+			imp.changes = false;
+			imp.close();
+		}
+	}
+	if(sample == null) {
+		notifyProgress("Auto-tuning not possible - no image could be used as sample. Parallel processing settings were not changed.", ProgressDialog.NOTIFICATION);
+		return;
+	}
+	
+	int maxImages = tasks;
+	if(maxTaskMemory > 0) {
+		maxImages = (int) Math.max(1, Math.min(tasks, memoryBudget.capacity / maxTaskMemory));
+	}
+	Prefs.blackBackground = true;
+	AutoTuner.Configuration best = new AutoTuner(this).tune(sample, 
+			AutoTuner.getCandidates(Runtime.getRuntime().availableProcessors(), maxImages, numberOfChannels > 1 && parallelChannels),
+			memoryBudget.capacity);
+	if(best == null) {
+		return;
+	}
+	parallelImages = best.images;
+	Prefs.setThreads(best.threads);
+	RowBands.minPixelsPerBand = best.tileSize;
+	parallelChannels = best.parallelChannels;
+	autoTuneResult = best.toString() + " (sample: " + df3.format(best.pixelsPerSecond / 1.0e6) + " megapixels/s, peak heap " 
+			+ df0.format(MemoryBudget.toMB(best.peakHeapBytes)) + " MB"
+			+ (best.peakHeapBytes > memoryBudget.capacity ? ", no configuration fits into the memory budget)" : ")");
+	notifyProgress("Auto-tuning: " + autoTuneResult, ProgressDialog.LOG);
+}
+
+/**
+ * Processes copies of the segmentation channel images in @param sample (see AutoTuner) with the current settings,
+ * without reporting progress and without writing any output.
+ * */
+void processSample(ImagePlus sample []) {
+	ImagePlus copies [] = new ImagePlus [sample.length];
+	for(int segmC = 0; segmC < sample.length; segmC++) {
+		copies [segmC] = sample [segmC].duplicate();
+	}
+	Integer task = currentTask.get();
+	currentTask.set(-1);
+	try {
+		processSegmentationChannels(copies, "sample", sample [0].getCalibration().pixelWidth, sample [0].getCalibration().pixelHeight,
+				sample [0].getCalibration().getUnit(), new MetadataText(), new TaskOutput(-1, true));
+	}finally {
+		if(task == null) {
+			currentTask.remove();
+		}else {
+			currentTask.set(task);
+		}
+		for(int segmC = 0; segmC < copies.length; segmC++) {
+			copies [segmC].changes = false;
+			copies [segmC].close();
+		}
+	}
+}
+
+/**
+ * Estimates the memory demand (see estimateImageMemory) and the processing cost (see estimateImageCost) of all tasks
+ * from the image dimensions (see getTaskImageDimensions) before any image is opened. Unknown values are set to -1.
+ * The memory demand is estimated for the channel concurrency of processSegmentationChannels (taskMemory; with auto-tuning
+ * for all threads of the processors, as the AutoTuner may raise the number of threads) and for sequentially processed
+ * segmentation channels (taskSequentialMemory, see startMemoryBudget).
+ * */
+private void estimateTasks(String name [], String dir [], int series [], int totSeries [], ImagePlus allImps []) {
+	taskMemory = new long [tasks];
+	taskSequentialMemory = new long [tasks];
+	taskCost = new double [tasks];
+	boolean concurrentChannels = processesChannelsConcurrently(autoTune ? Math.max(Prefs.getThreads(), 
+			Runtime.getRuntime().availableProcessors()) : Prefs.getThreads());
+	for(int task = 0; task < tasks; task++) {
+		if(isNoImageFile(name [task])) {
+			taskMemory [task] = 0;
+			taskSequentialMemory [task] = 0;
+			taskCost [task] = 0.0;
+			continue;
+		}
+		int dimensions [];
+		try {
+			dimensions = getTaskImageDimensions(task, name, dir, series, totSeries, allImps);
+		}catch(Exception e) {
+			dimensions = null;
+		}
+		if(dimensions == null) {
+			taskMemory [task] = -1;
+			taskSequentialMemory [task] = -1;
+			taskCost [task] = -1.0;
+			continue;
+		}
+		taskMemory [task] = estimateImageMemory(dimensions [0], dimensions [1], dimensions [2], dimensions [3], dimensions [4], 
+				selectedTaskVariant.equals(taskVariant[1]), concurrentChannels);
+		taskSequentialMemory [task] = estimateImageMemory(dimensions [0], dimensions [1], dimensions [2], dimensions [3], dimensions [4], 
+				selectedTaskVariant.equals(taskVariant[1]), false);
+		taskCost [task] = estimateImageCost(dimensions [0], dimensions [1], dimensions [2], dimensions [3], dimensions [4]);
+	}
+}
+
+/**
+ * Creates the memory budget of the batch (see MemoryBudget) and reports the memory estimates (see estimateTasks)
+ * and the tasks that will not be processed. Tasks that only fit into the budget with sequentially processed segmentation
+ * channels (taskSequentialMemory) are marked in taskSequentialChannels and processed that way (see processSegmentationChannels).
+ * */
+private void startMemoryBudget(String name []) {
+	memoryBudget = MemoryBudget.forAvailableHeap();
+	taskAdmitted = new boolean [tasks];
+	taskSequentialChannels = new boolean [tasks];
+	int largest = 0, tooLarge = 0, unknown = 0, sequential = 0;
+	for(int task = 0; task < tasks; task++) {
+		if(taskMemory [task] < 0) {
+			unknown++;
+		}else if(!memoryBudget.fits(taskMemory [task])) {
+			if(memoryBudget.fits(taskSequentialMemory [task])) {
+				taskMemory [task] = taskSequentialMemory [task];
+				taskSequentialChannels [task] = true;
+				sequential++;
+			}else {
+				tooLarge++;
 			}
-			
-			filePrefix = dir[task] + filePrefix;
-		   	
-			
-		/******************************************************************
-		*** 						Processing							***	
-		*******************************************************************/
-			//start logging metadata
-			tp1 = new TextPanel("results");
-			addSettingsBlockToPanel(tp1,  startDate, name[task], totSeries[task]>1, series[task], imp);
-			tp1.append("");
-			
-			//processing			
-			progress.updateBarText("Extract channel " + channelIDs [0] + " ...");
-			
-			originalLuts = new LUT [imp.getNChannels()];
-			imp.setDisplayMode(IJ.COMPOSITE);
-		   	for(int c = 0; c < imp.getNChannels(); c++){
-		   		imp.setC(c+1);
-		   		originalLuts [c] = imp.getChannelProcessor().getLut();
-		   	}
-		   	
-		   	sliceLabels = new String [imp.getNChannels()][imp.getNFrames()][imp.getNSlices()];
-		   	for(int c = 0; c < imp.getNChannels(); c++) {
-		   		for(int s = 0; s < imp.getNSlices(); s++){
-					for(int f = 0; f < imp.getNFrames(); f++){
-					indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
-						try{
-							if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
-	   						sliceLabels [c][f][s] = "C" + (c+1) + "/" + imp.getNChannels() + " S" + (s+1) + "/" + imp.getNSlices() 
-	   							+  " T" + (f+1) + "/" + imp.getNFrames();
-		   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
-		   						sliceLabels [c][f][s] = "C" + (c+1) + "/" + imp.getNChannels() + " S" + (s+1) + "/" + imp.getNSlices() 
-									+  " T" + (f+1) + "/" + imp.getNFrames();
-		   					}else{
-		   						sliceLabels [c][f][s] = imp.getStack().getSliceLabel(indexOld+1);
-		   					}
-						}catch(Exception e){
-							sliceLabels [c][f][s] =  "C" + (c+1) + "/" + imp.getNChannels() + " S" + (s+1) + "/" + imp.getNSlices() 
-							+  " T" + (f+1) + "/" + imp.getNFrames();
-						}
-					}
-		   		}
-		   	}
-		   	
-		   	
-		   	/*
-		   	 * Process image
-		   	 * */
-		   	tempImp = new ImagePlus [numberOfChannels];
-		   	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
-		   		tempImp [segmC] = copyChannel(imp, channelIDs [segmC], false, false);
-		   		if(keepAwake) {
-					stayAwake();
-				}
-		   	}
-		   	
-		   	/*
-		   	 * Calculate 
-		   	 * */
-		   	double pixelWidth = imp.getCalibration().pixelWidth;
-		   	double pixelHeight = imp.getCalibration().pixelHeight;
-		   	double pixelDepth = imp.getCalibration().pixelDepth;
-		   	String pixelUnit = imp.getCalibration().getUnit();
-		   	
-		   	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
-//	   			tempImp [segmC].show();
-//				new WaitForUserDialog("before treatment").show();
-//				tempImp [segmC].hide();
-		   		
-		   		if(subtractBackground [segmC]) {
-		   			progress.updateBarText("Subtract background " + dfDialog.format(subtractBGRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + "");		
-		   			if(darkBackground [segmC]) {
-		   				IJ.run(tempImp [segmC], "Subtract Background...", "rolling=" + (subtractBGRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + "");
-		   			}else {
-			   			IJ.run(tempImp [segmC], "Subtract Background...", "rolling=" + (subtractBGRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " light");
-		   			}					
-					progress.addToBar(1.0/(double)numberOfChannels*0.1);					
+		}
+		if(taskMemory [task] > taskMemory [largest])	largest = task;
+	}
+	
+	String message = "Memory available for processing: " + MemoryBudget.toMB(memoryBudget.capacity) + " MB.";
+	if(taskMemory [largest] >= 0) {
+		message += " Largest estimated memory demand of an image: " + MemoryBudget.toMB(taskMemory [largest]) + " MB (task " + (largest+1) 
+				+ "/" + tasks + ": " + name [largest] + ").";
+	}
+	if(tooLarge > 0) {
+		message += " " + tooLarge + " image(s) exceed the available memory and will not be processed"
+				+ " - increase the memory in Edit > Options > Memory & Threads.";
+	}
+	if(sequential > 0) {
+		message += " " + sequential + " image(s) only fit into the available memory with sequentially processed segmentation channels"
+				+ " and will be processed that way.";
+	}
+	if(unknown > 0) {
+		message += " The memory demand of " + unknown + " image(s) could not be estimated from the file header.";
+	}
+	notifyProgress(message, tooLarge > 0 ? ProgressDialog.NOTIFICATION : ProgressDialog.LOG);
+}
 
-//					tempImp [segmC].show();
-//					new WaitForUserDialog("sbgd").show();
-//					tempImp [segmC].hide();
-		   		}
-				
-				if(preBlur [segmC]) {
-					progress.updateBarText("Bluring image ... " + dfDialog.format(preBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + "");
-					tempImp [segmC].getProcessor().blurGaussian(preBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight));
-					progress.addToBar(1.0/(double)numberOfChannels*0.05);
-					
-//					tempImp [segmC].show();
-//					new WaitForUserDialog("blurred").show();
-//					tempImp [segmC].hide();
-				}
-				
-				if(subtractBluredImage [segmC]) {
-					progress.updateBarText("Subtract blured image ... " + dfDialog.format(subtractBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + "");
-					tempImp [segmC] = subtractABluredImage(tempImp [segmC], subtractBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight));
-					progress.addToBar(1.0/(double)numberOfChannels*0.05);
+/**
+ * Waits until the memory budget admits the task with index @param task, i.e., until its estimated memory demand
+ * is available (tasks with unknown memory demand are admitted immediately).
+ * @return false if the estimated memory demand exceeds the memory available for processing at all
+ * */
+boolean admitTask(int task) {
+	if(memoryBudget == null)	return true;
+	if(!memoryBudget.fits(taskMemory [task]))	return false;
+	try {
+		memoryBudget.acquire(Math.max(0, taskMemory [task]));
+	}catch(InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new RuntimeException(e);
+	}
+	synchronized(this) {
+		taskAdmitted [task] = true;
+	}
+	return true;
+}
 
-//					tempImp.show();
-//					new WaitForUserDialog("blur substr").show();
-//					tempImp.hide();
+/**
+ * Releases the memory reserved for the task with index @param task, if the task was admitted (see admitTask)
+ * */
+synchronized void releaseTask(int task) {
+	if(taskAdmitted == null || !taskAdmitted [task])	return;
+	taskAdmitted [task] = false;
+	memoryBudget.release(Math.max(0, taskMemory [task]));
+}
+
+/**
+ * @return width, height, number of channels, number of planes per channel (slices x frames) and bit depth (24 = RGB)
+ * of the image of the task with index @param task, read from the file header (TIFF: TiffDecoder, PNG/JPEG: ImageIO, 
+ * other formats: BioFormats, without reading the pixel data) or from the open image. Returns null if unknown.
+ * */
+int [] getTaskImageDimensions(int task, String name [], String dir [], int series [], int totSeries [], ImagePlus allImps []) 
+		throws Exception {
+	if(!selectedTaskVariant.equals(taskVariant[1])){
+		ImagePlus imp;
+		if(selectedTaskVariant.equals(taskVariant[0])){
+			imp = WindowManager.getCurrentImage();
+		}else{
+			imp = allImps[task];
+		}
+		if(imp == null)	return null;
+		return new int [] {imp.getWidth(), imp.getHeight(), imp.getNChannels(), imp.getNSlices() * imp.getNFrames(), imp.getBitDepth()};
+	}
+	
+	String suffix = "";
+	if(name[task].contains("."))	suffix = name[task].substring(name[task].lastIndexOf(".")).toLowerCase();
+	if(suffix.equals(".tif") || suffix.equals(".tiff")) {
+		FileInfo info [] = new TiffDecoder(dir[task], name[task]).getTiffInfo();
+		if(info == null || info.length == 0)	return null;
+		int planes = info.length > 1 ? info.length : Math.max(1, info[0].nImages);
+		int channels = 1;
+		if(info[0].description != null) {
+			//ImageJ hyperstack
+			String lines [] = info[0].description.split("\n");
+			for(int i = 0; i < lines.length; i++) {
+				if(lines [i].startsWith("channels=")) {
+					channels = Math.max(1, Integer.parseInt(lines [i].substring(9).trim()));
 				}
-			
-	   			if(keepAwake) {
-					stayAwake();
+			}
+		}
+		int bitDepth, bytes = info[0].getBytesPerPixel();
+		if(info[0].fileType == FileInfo.RGB) {
+			bitDepth = 24;
+		}else if(bytes > 4) {
+			//48-bit RGB, opened as 16-bit 3-channel image
+			channels *= bytes / 2;
+			bitDepth = 16;
+		}else {
+			bitDepth = bytes * 8;
+		}
+		return new int [] {info[0].width, info[0].height, channels, Math.max(1, planes / channels), bitDepth};
+	}else if(suffix.equals(".png") || suffix.equals(".jpg") || suffix.equals(".jpeg")) {
+		ImageInputStream stream = ImageIO.createImageInputStream(new File(dir[task] + name[task]));
+		if(stream == null)	return null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if(!readers.hasNext())	return null;
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream);
+				//color images are opened as RGB images, gray images as 8- or 16-bit images
+				int bitDepth = 24;
+				ImageTypeSpecifier type = reader.getRawImageType(0);
+				if(type != null && type.getNumBands() < 3) {
+					bitDepth = type.getSampleModel().getSampleSize(0) > 8 ? 16 : 8;
 				}
-				
-	   			
-				Roi regionsAboveZero = null;
-				if(excludeZeroRegions [segmC]) {
-					progress.updateBarText("get non-zero-pixel ROI (close-gaps radius = " + dfDialog.format(closeGapsRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + ")...");
-					regionsAboveZero = getRegionsAboveZeroAsROI(tempImp [segmC], 1, closeGapsRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight));	
-					tempImp [segmC].setRoi(regionsAboveZero);
-					//save ROI
-					RoiEncoder re;
-					try{	
-						re = new RoiEncoder(filePrefix + "_ROI_C" + (segmC+1) + ".roi");					
-						re.write(regionsAboveZero);				
+				return new int [] {reader.getWidth(0), reader.getHeight(0), 1, 1, bitDepth};
+			}finally {
+				reader.dispose();
+			}
+		}finally {
+			stream.close();
+		}
+	}else {
+		//bio format reader
+		ImporterOptions bfOptions = new ImporterOptions();
+		bfOptions.setId(""+dir[task]+name[task]+"");
+		bfOptions.setVirtual(true);
+		ImportProcess process = new ImportProcess(bfOptions);
+		if(!process.execute())	return null;
+		IFormatReader reader = process.getReader();
+		reader.setSeries(series[task]);
+		int bytes = FormatTools.getBytesPerPixel(reader.getPixelType());
+		return new int [] {reader.getSizeX(), reader.getSizeY(), reader.getSizeC(), reader.getSizeZ() * reader.getSizeT(),
+				bytes == 1 ? 8 : (bytes == 2 ? 16 : 32)};
+	}
+}
+
+/**
+ * @return the estimated memory demand (bytes) for processing an image of @param width x @param height pixels with
+ * @param channels channels, @param planes planes per channel and @param bitDepth (24 = RGB) with the current settings:
+ * 	- the image itself (only if @param includeImage; RGB images are converted into 3-channel 8-bit images),
+ * 	- the copies of the segmentation channels (tempImp),
+ * 	- the intermediate images of the channel processing: the 32-bit image and (unless blurInOutput) the blurred plane of subtractABluredImage,
+ * 	the float copy of the background subtraction, the 8-bit images for the non-zero-pixel ROI and the mask conversion,
+ * 	the mask duplicate of getFillHolesAndRemoveNoise (which also takes the inverted AND result, see
+ * 	setInvertedAndInMask) and the clamped vertical distances of the binary
+ * 	maximum / minimum (edtMorphology), the background runs of the fill holes (runFillHoles), the packed rows of the
+ * 	despeckle (bitDespeckle), the buffers of the fast watershed, the traced edges of the contour tracing
+ * 	(chosenRoiOutline) - summed over all segmentation channels
+ * 	if @param concurrentChannels (see processesChannelsConcurrently), otherwise for the channel with the largest demand,
+ * 	- the output image (outImp).
+ * Images that are already open in FIJI (@param includeImage false) only count with the images created during processing.
+ * Memory used by StarDist is not included.
+ * */
+long estimateImageMemory(int width, int height, int channels, int planes, int bitDepth, boolean includeImage,
+		boolean concurrentChannels) {
+	long pixels = (long) width * (long) height * (long) planes;
+	long bytes = 0;
+	if(bitDepth == 24) {
+		if(includeImage)	bytes += pixels * 4L * channels;
+		channels *= 3;
+		bitDepth = 8;
+	}
+	long channelBytes = pixels * (bitDepth / 8);
+	if(includeImage)	bytes += channelBytes * channels;
+	
+	bytes += channelBytes * numberOfChannels;
+	
+	long channelsWorkingSet = 0;
+	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		long workingSet = 0;
+		if(subtractBackground [segmC])	workingSet += pixels * 4L;
+		if(subtractBluredImage [segmC]) {
+			workingSet += pixels * 4L;
+			if(!blurInOutput)	workingSet += (long) width * (long) height * (bitDepth / 8);
+		}
+		if(excludeZeroRegions [segmC])	workingSet += pixels;
+		//traced edges of the contour tracing
+		if(excludeZeroRegions [segmC] && chosenRoiOutline.equals(roiOutlineVariant[1]))	workingSet += MaskOutline.getTracedBytes(width, height);
+		if(despeckle [segmC] || removeParticles [segmC] || fillHoles [segmC] || watershed [segmC])	workingSet += pixels;
+		//mask, the inverted image is combined in place in the mask
+		if(removeParticles [segmC])	workingSet += pixels;
+		//clamped vertical distances of the binary maximum / minimum (one byte per pixel for radii below 255 pixels)
+		if(edtMorphology && (excludeZeroRegions [segmC] || removeParticles [segmC]))	workingSet += pixels;
+		//background runs of the fill holes (at most one run per two pixels, 21 bytes per run)
+		if(runFillHoles && (fillHoles [segmC] || removeParticles [segmC]))	workingSet += 11L * pixels;
+		//packed rows of the bit-parallel despeckle
+		if(bitDespeckle && despeckle [segmC])	workingSet += pixels / 8L;
+		//distance map, order and labels of the fast watershed
+		if(watershed [segmC] && chosenWatershedEngine.equals(watershedEngineVariant[1]))	workingSet += 16L * pixels;
+		if(concurrentChannels) {
+			channelsWorkingSet += workingSet;
+		}else {
+			channelsWorkingSet = Math.max(channelsWorkingSet, workingSet);
+		}
+	}
+	bytes += channelsWorkingSet;
+	
+	int outChannels = 0;
+	if(deleteOtherChannels) {
+		outChannels = includeDuplicateChannel ? 2 * numberOfChannels : numberOfChannels;
+	}else if(includeDuplicateChannel) {
+		outChannels = channels + numberOfChannels;
+	}
+	bytes += channelBytes * outChannels;
+	return bytes;
+}
+
+/**
+ * @return the estimated processing cost (in pixels processed) of an image of @param width x @param height pixels with
+ * @param channels channels, @param planes planes per channel and @param bitDepth (24 = RGB) with the current settings:
+ * the pixels of all channels (reading, copying and writing the image) plus the pixels of each segmentation channel,
+ * weighted with STARDIST_COST_FACTOR for StarDist channels
+ * */
+double estimateImageCost(int width, int height, int channels, int planes, int bitDepth) {
+	double pixels = (double) width * (double) height * (double) planes;
+	if(bitDepth == 24)	channels *= 3;
+	double cost = pixels * channels;
+	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		if(chosenAlgorithm [segmC].equals("StarDist")) {
+			cost += pixels * STARDIST_COST_FACTOR;
+		}else {
+			cost += pixels;
+		}
+	}
+	return cost;
+}
+
+/**
+ * Opens, processes and saves the image of the task with index @param task (0 <= task < tasks).
+ * All image and metadata state of the task is kept in local variables, so several tasks can be processed
+ * at the same time (see parallelImages). If @param input is not null, the image was already opened by the
+ * reader stage of the TaskPipeline. Output files are written via @param output.
+ * */
+void processTask(final int task, String name [], String dir [], int series [], int totSeries [], ImagePlus allImps [],
+		TaskPipeline.Input input, TaskOutput output) {
+   	ImagePlus imp;
+   	ImagePlus [] tempImp;
+   	CompositeImage outImp;
+   	MetadataText tp1;
+   	Date startDate;
+   	LUT [] originalLuts;
+   	LUT [] newLuts;
+   	String sliceLabels [][][];
+   	int indexOld, indexNew;
+   	
+	currentTask.set(task);
+	Prefs.blackBackground =  true;
+	running: while(continueProcessing){
+		startDate = new Date();
+		updateProgress("in progress...");
+		//Check for problems
+		if(isNoImageFile(name[task])){
+			notifyProgress("Task " + (task+1) + "/" + tasks + ": A file is no image! Could not be processed!", ProgressDialog.ERROR);
+			moveProgressTask(task);	
+			break running;
+		}					
+		//Check for problems
+		
+		//Wait until the estimated memory demand of the task fits into the memory budget
+		updateProgress("Wait for memory ...");
+		if(input != null ? !input.admitted : !admitTask(task)){
+			notifyProgress("Task " + (task+1) + "/" + tasks + ": Could not be processed. The estimated memory demand of the image ("
+					+ MemoryBudget.toMB(taskMemory [task]) + " MB) exceeds the memory available for processing ("
+					+ MemoryBudget.toMB(memoryBudget.capacity) + " MB)! Increase the memory in Edit > Options > Memory & Threads.", ProgressDialog.ERROR);
+			moveProgressTask(task);	
+			break running;
+		}
+
+		updateProgress("Open image ...");
+	   	//open Image
+	   	try{
+	   		if(input != null) {
+	   			//opened by the reader stage of the pipeline
+	   			if(input.error != null)	throw input.error;
+	   			imp = input.imp;
+	   		}else {
+	   			imp = openTaskImage(task, name, dir, series, totSeries, allImps);
+	   		}
+	   	}catch (Exception e) {
+	   		notifyProgress("Task " + (task+1) + "/" + tasks + ": file is no image - could not be processed!", ProgressDialog.ERROR);
+			moveProgressTask(task);	
+			break running;
+		}
+	   	//open Image
+	   	
+	   	//Check for problems with the image
+	   	if(imp.getNFrames()>1){	
+			notifyProgress("Task " + (task+1) + "/" + tasks + ": Could not be processed. Analysis of multi-frame images not yet implemented!", ProgressDialog.ERROR);
+			moveProgressTask(task);	
+			break running;
+		}			
+		if(imp.getNSlices()>1){	
+			notifyProgress("Task " + (task+1) + "/" + tasks + ": Could not be processed. Analysis of 3D images not yet implemented!", ProgressDialog.ERROR);
+			moveProgressTask(task);	
+			break running;
+		}			
+		if(imp.getBitDepth() == 24) {
+			//RGB image > Convert to RGB stack
+			imp = CompositeConverter.makeComposite(imp);
+			notifyProgress("Task " + (task+1) + "/" + tasks + ": Images was in RGB format. Thus, images was automatically converted into a 3-channel stack image.", ProgressDialog.LOG);	
+		}
+		if(channelIDs [0] < 1 || channelIDs [0] > imp.getNChannels()) {
+			notifyProgress("Task " + (task+1) + "/" + tasks + ": Could not be processed. Selected channel does not exist in the image!"
+					+ " Select a channel number between 1 and the total number of channels in the image.", ProgressDialog.ERROR);
+			moveProgressTask(task);	
+			break running;
+		}			
+	   	//Check for problems with the image
+	   	
+	   	//Create Outputfilename
+	   	updateProgress("Create output filename");				
+		String filePrefix;
+		if(name[task].contains(".")){
+			filePrefix = name[task].substring(0,name[task].lastIndexOf("."));
+		}else{
+			filePrefix = name[task];
+		}
+		if(totSeries [task] > 1) {
+			filePrefix += "_s" + (series[task] + 1);
+		}
+		
+		filePrefix += "_AQP";
+		
+		if(chosenOutputName.equals(outputVariant[1])){
+			//saveDate
+			filePrefix += "_" + NameDateFormatter.format(startDate);
+		}
+		
+		filePrefix = dir[task] + filePrefix;
+	   	
+		
+	/******************************************************************
+	*** 						Processing							***	
+	*******************************************************************/
+		//start logging metadata
+		tp1 = new MetadataText();
+		addSettingsBlockToPanel(tp1,  startDate, name[task], totSeries[task]>1, series[task], imp);
+		tp1.append("");
+		
+		//processing			
+		updateProgress("Extract channel " + channelIDs [0] + " ...");
+		
+		originalLuts = new LUT [imp.getNChannels()];
+		imp.setDisplayMode(IJ.COMPOSITE);
+	   	for(int c = 0; c < imp.getNChannels(); c++){
+	   		imp.setC(c+1);
+	   		originalLuts [c] = imp.getChannelProcessor().getLut();
+	   	}
+	   	
+	   	sliceLabels = new String [imp.getNChannels()][imp.getNFrames()][imp.getNSlices()];
+	   	for(int c = 0; c < imp.getNChannels(); c++) {
+	   		for(int s = 0; s < imp.getNSlices(); s++){
+				for(int f = 0; f < imp.getNFrames(); f++){
+				indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
+					try{
+						if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
+   						sliceLabels [c][f][s] = "C" + (c+1) + "/" + imp.getNChannels() + " S" + (s+1) + "/" + imp.getNSlices() 
+   							+  " T" + (f+1) + "/" + imp.getNFrames();
+	   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
+	   						sliceLabels [c][f][s] = "C" + (c+1) + "/" + imp.getNChannels() + " S" + (s+1) + "/" + imp.getNSlices() 
+								+  " T" + (f+1) + "/" + imp.getNFrames();
+	   					}else{
+	   						sliceLabels [c][f][s] = imp.getStack().getSliceLabel(indexOld+1);
+	   					}
 					}catch(Exception e){
-						IJ.error("Failed to correctly save rois!");
+						sliceLabels [c][f][s] =  "C" + (c+1) + "/" + imp.getNChannels() + " S" + (s+1) + "/" + imp.getNSlices() 
+						+  " T" + (f+1) + "/" + imp.getNFrames();
 					}
 				}
-				
-				if(chosenAlgorithm [segmC].equals("CUSTOM threshold")) {
-					progress.updateBarText("Set custom threshold " + customThr + " ...");
-					threshold = customThr [segmC];
-					tp1.append("Used " + chosenAlgorithm + " as intensity threshold - threshold value:	" + df6.format(threshold));
+	   		}
+	   	}
+	   	
+	   	
+	   	/*
+	   	 * Process image
+	   	 * */
+	   	tempImp = new ImagePlus [numberOfChannels];
+	   	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+	   		tempImp [segmC] = copyChannel(imp, channelIDs [segmC], false, false);
+	   		if(keepAwake) {
+				stayAwake();
+			}
+	   	}
+	   	
+	   	/*
+	   	 * Calculate 
+	   	 * */
+	   	double pixelWidth = imp.getCalibration().pixelWidth;
+	   	double pixelHeight = imp.getCalibration().pixelHeight;
+	   	double pixelDepth = imp.getCalibration().pixelDepth;
+	   	String pixelUnit = imp.getCalibration().getUnit();
+	   	
+	   	processSegmentationChannels(tempImp, filePrefix, pixelWidth, pixelHeight, pixelUnit, tp1, output);
+	   	
+	   	/*
+	   	 * Generate output image
+	   	 * */
+	   	updateProgress("Generate output image ...");
+
+	   	tp1.append("");
+		if(deleteOtherChannels) {
+			if(includeDuplicateChannel){
+				updateProgress("Add duplicated channel");
+		   		outImp = (CompositeImage) IJ.createHyperStack(imp.getTitle() + " cq", imp.getWidth(), imp.getHeight(), 
+		   				2*numberOfChannels, imp.getNSlices(), imp.getNFrames(), imp.getBitDepth());
+		   		outImp.setCalibration(imp.getCalibration());
+		   		outImp.setDisplayMode(IJ.COMPOSITE);
+		   		
+		   		int c = 0;
+			   	newLuts = new LUT [outImp.getNChannels()];
+
+			   	tp1.append("Channels in output image:");
+		   		for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		   			newLuts [c] = originalLuts [channelIDs [segmC]-1];
+		   			if(chosenAlgorithm[segmC].equals("StarDist")) {
+		   				newLuts [c] = starDistLUT;
+	   					outImp.setC(c+1);
+	   					outImp.getProcessor().resetMinAndMax();
+	   					outImp.setDisplayRange(outImp.getProcessor().getMin(), outImp.getProcessor().getMax());	
+		   			}
+			   		newLuts [c+1] = originalLuts [channelIDs [segmC]-1];
 
-					progress.addToBar(1.0/(double)numberOfChannels*0.5);
-					
-					progress.updateBarText("Segment image with threshold " + dfDialog.format(threshold) + " ...");
-					segmentImage(tempImp [segmC], threshold, 0, tempImp [segmC], 0, false, darkBackground [segmC]);
-
-					progress.addToBar(1.0/(double)numberOfChannels*0.1);
-				}else if (chosenAlgorithm [segmC].equals("StarDist")){
-					tempImp [segmC].show();
-					progress.updateBarText("StarDist detection running ...");
-					String runText = ("command=[de.csbdresden.stardist.StarDist2D], "
-							+ "args=['input':'" + tempImp[segmC].getTitle() +"', 'modelChoice':'" + selectedStarDistModel [segmC] + "', ");
-							if(starDistNormalizeImage[segmC]) {
-								runText += "'normalizeInput':'true', ";
-							}else {
-								runText += "'normalizeInput':'false', ";
-							}							
-							runText += "'percentileBottom':'" + dfDialog.format(starDistPercentileLow[segmC]) + "', 'percentileTop':'" + dfDialog.format(starDistPercentileHigh[segmC]) + "', "
-									+ "'probThresh':'" + dfDialog.format(starDistProbabilityScore[segmC]) + "', " + "'nmsThresh':'" + dfDialog.format(starDistOverlapThreshold[segmC]) 
-									+ "', 'outputType':'Label Image', ";
-							if(selectedStarDistModel [segmC].equals("Model (.zip) from File")){
-								runText += "'modelFile':'" + starDistModelPath [segmC] + "', ";
-							}
-							runText += "'nTiles':'" + starDistNTiles [segmC] + "', 'excludeBoundary':'2', 'roiPosition':'Automatic', "
-							+ "'verbose':'false', 'showCsbdeepProgress':'false', 'showProbAndDist':'false'], process=[false]";
+			   		tp1.append("Channel " + (c+1) + ":	" + "previous channel " + (channelIDs [segmC]) + " (segmented)");
+					tp1.append("Channel " + (c+2) + ":	" + "previous channel " + (channelIDs [segmC]) + " (unsegmented)");
 					
-					IJ.run(tempImp[segmC], "Command From Macro",runText);
+	   				for(int s = 0; s < imp.getNSlices(); s++){
+	   					for(int f = 0; f < imp.getNFrames(); f++){
+   								indexOld = tempImp[segmC].getStackIndex(1, s+1, f+1)-1;
+	   						indexNew = outImp.getStackIndex(c+1, s+1, f+1)-1;
+		   					outImp.getStack().setSliceLabel("segm " + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
+		   					
+	   						copyPlane(tempImp [segmC], indexOld, outImp, indexNew);
+	   						
+	   						indexOld = imp.getStackIndex(channelIDs [segmC], s+1, f+1)-1;
+	   						indexNew = outImp.getStackIndex(c+2, s+1, f+1)-1;
+		   					outImp.getStack().setSliceLabel("" + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
+		   					
+	   						copyPlane(imp, indexOld, outImp, indexNew);
+			   			}
+			   		}
+		   			tempImp [segmC].changes = false;
+					tempImp [segmC].close();					
 					
-					tempImp [segmC].changes = false;
+					c += 2;
+		   		}
+		   		
+				outImp.setDisplayMode(IJ.COMPOSITE);
+				outImp.setLuts(newLuts);
+   					outImp.updateAllChannelsAndDraw();
+				output.saveAsTiff(outImp, filePrefix + ".tif");
+				output.close(outImp);
+		   	}else{
+		   		outImp = (CompositeImage) IJ.createHyperStack(imp.getTitle() + " cq", imp.getWidth(), imp.getHeight(), 
+		   				numberOfChannels, imp.getNSlices(), imp.getNFrames(), imp.getBitDepth());
+		   		outImp.setCalibration(imp.getCalibration());
+		   		outImp.setDisplayMode(IJ.COMPOSITE);
+		   		
+		   		int c = 0;
+			   	newLuts = new LUT [outImp.getNChannels()];
+
+			   	tp1.append("Channels in output image:");
+		   		for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		   			newLuts [c] = originalLuts [channelIDs [segmC]-1];
+		   			if(chosenAlgorithm[segmC].equals("StarDist")) {
+		   				newLuts [c] = starDistLUT;
+	   					outImp.setC(c+1);
+	   					outImp.getProcessor().resetMinAndMax();
+	   					outImp.setDisplayRange(outImp.getProcessor().getMin(), outImp.getProcessor().getMax());
+		   			}
+
+			   		tp1.append("Channel " + (c+1) + ":	" + "previous channel " + (channelIDs [segmC]) + " (segmented)");			   			
+	   				for(int s = 0; s < imp.getNSlices(); s++){
+	   					for(int f = 0; f < imp.getNFrames(); f++){
+   								indexOld = tempImp[segmC].getStackIndex(1, s+1, f+1)-1;
+	   						indexNew = outImp.getStackIndex(c+1, s+1, f+1)-1;
+	   						copyPlane(tempImp [segmC], indexOld, outImp, indexNew);
+		   					outImp.getStack().setSliceLabel("segm " + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
+			   			}
+			   		}
+		   			tempImp [segmC].changes = false;
 					tempImp [segmC].close();
-					tempImp [segmC] = WindowManager.getImage("Label Image").duplicate();
-					tempImp [segmC].hide();
-					WindowManager.getImage("Label Image").changes = false;
-					WindowManager.getImage("Label Image").close();
-					
-					progress.addToBar(1.0/(double)numberOfChannels*0.6);
-				}else {
-//					tempImp.show();
-//					new WaitForUserDialog("before thr").show();
-//					tempImp.hide();
-					progress.updateBarText("Determine threshold using " + chosenAlgorithm [segmC] + " ...");
-					if(darkBackground [segmC]) {
-						threshold = getSingleSliceImageThresholds(tempImp [segmC], 1, chosenAlgorithm [segmC], darkBackground [segmC])[0];
-					}else {
-						threshold = getSingleSliceImageThresholds(tempImp [segmC], 1, chosenAlgorithm [segmC], darkBackground [segmC])[1];					
-					}
-					tp1.append("Used " + chosenAlgorithm [segmC] + " to determine the intensity threshold - threshold value:	" + df6.format(threshold));
-					
-					progress.addToBar(1.0/(double)numberOfChannels*0.1);
 					
-//					tempImp.show();
-//					new WaitForUserDialog("after thr").show();
-//					tempImp.hide();
-					
-					progress.updateBarText("Segment image with threshold " + dfDialog.format(threshold) + " ...");
-					segmentImage(tempImp [segmC], threshold, 0, tempImp [segmC], 0, false, darkBackground [segmC]);
-					
-//					tempImp.show();
-//					new WaitForUserDialog("bin").show();
-//					tempImp.hide();
-					
-					progress.addToBar(1.0/(double)numberOfChannels*0.1);				
-					
-				}			
-				
-				if(excludeZeroRegions [segmC]) {
-					progress.updateBarText("Set pixels outside non-zero-Pixel ROI to zero in mask...");
-					setRegionsOutsideRoiToZero(tempImp [segmC], 1, regionsAboveZero);
-				}
-				progress.addToBar(1.0/(double)numberOfChannels*0.1);
+					c++;
+		   		}
 
-	   			if(keepAwake) {
-					stayAwake();
-				}
-				
-	   			if(despeckle [segmC] || removeParticles [segmC] || fillHoles [segmC] || watershed [segmC]) {
-	   				tempImp [segmC].deleteRoi();							   	
-				   	if(tempImp [segmC].getBitDepth()!=8) {
-						tempImp [segmC] = getOtherBitImageFromBinary32bit(tempImp [segmC], false, 8);
-//					   	tempImp [segmC].show();
-//						new WaitForUserDialog("bitconv").show();
-//						tempImp [segmC].hide();	
-					}		   	
+				outImp.setDisplayMode(IJ.COMPOSITE);
+				outImp.setLuts(newLuts);
+   					outImp.updateAllChannelsAndDraw();
+				output.saveAsTiff(outImp, filePrefix + ".tif");
+				output.close(outImp);
+		   	}
+		}else {
+			if(includeDuplicateChannel){
+				outImp = (CompositeImage) IJ.createHyperStack(imp.getTitle() + " lq", imp.getWidth(), imp.getHeight(), 
+		   				imp.getNChannels()+numberOfChannels,
+		   				imp.getNSlices(), imp.getNFrames(), imp.getBitDepth());
+		   		outImp.setCalibration(imp.getCalibration());
+		   		outImp.setDisplayMode(IJ.COMPOSITE);
+		   		
+		   		int cNew = 0;
+		   		assembleOutputWithDuplicateChannels(imp, tempImp, outImp);
+		   		
+			   	newLuts = new LUT [outImp.getNChannels()];
 			   	
-					if(despeckle [segmC]) {
-						progress.updateBarText("Despeckle mask");
-						IJ.run(tempImp [segmC], "Despeckle", "");
-					}
-	
-					progress.addToBar(1.0/(double)numberOfChannels*0.1);
-	
+			   	tp1.append("Channels in output image:");
+			   	cNew = 0;
+			   	String copyStr;
+			   	boolean search;
+		   		for(int c = 0; c < imp.getNChannels(); c++){
 		   			if(keepAwake) {
 						stayAwake();
 					}
-					if(removeParticles [segmC]) {
-						if(keepAwake) {
-							stayAwake();
+					newLuts [c+cNew] = originalLuts [c];
+		   			
+		   			search = false;
+					for(int i = 0; i < channelIDs.length; i++){
+						if(c+1 == channelIDs [i]){
+   							search = true;
+   							break;
 						}
-						
-						progress.updateBarText("Get mask with filled holes and closed gaps (radius " + dfDialog.format(removeRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + ")...");
-						mask = getFillHolesAndRemoveNoise(tempImp [segmC], linkGapsForRemoveRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight), removeRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight), segmC);
-						
-						progress.addToBar(1.0/(double)numberOfChannels*0.1);
-	
-//					   	tempImp [segmC].show();
-//						new WaitForUserDialog("calc").show();
-//						tempImp [segmC].hide();	
-					
-					   	progress.updateBarText("Invert image...");
-//						IJ.run(tempImp, "Invert", "");
-						tempImp [segmC].getProcessor().invert();
-	
-			   			if(keepAwake) {
-							stayAwake();
-						}
-			   			
-//					   	tempImp [segmC].show();
-//						new WaitForUserDialog("calc").show();
-//						tempImp [segmC].hide();	
-						
-						progress.addToBar(1.0/(double)numberOfChannels*0.1);
-						
-						ImageCalculator ic = new ImageCalculator();
-						tempImp [segmC] = ic.run("AND create", tempImp [segmC], mask);
-	
-						mask.changes = false;
-						mask.close();
-						progress.addToBar(1.0/(double)numberOfChannels*0.1);
-					}else {
-						progress.addToBar(1.0/(double)numberOfChannels*0.3);
 					}
-							
-//			   		tempImp [segmC].show();
-//					new WaitForUserDialog("Prefill").show();
-//					tempImp [segmC].hide();	
-				
-					if(fillHoles [segmC]) {
-			   			if(keepAwake) {
-							stayAwake();
-						}
-						progress.updateBarText("Fill holes...");
-						IJ.run(tempImp [segmC], "Fill Holes", "");
-					}
-	
-					if(watershed [segmC]) {
-			   			if(keepAwake) {
-							stayAwake();
-						}
-						progress.updateBarText("Watershed...");
-						IJ.run(tempImp [segmC], "Watershed", "");
-					}
-
-//				   	tempImp [segmC].show();
-//					new WaitForUserDialog("calc").show();
-//					tempImp [segmC].hide();
-	   			}else {
-	   				progress.addToBar(1.0/(double)numberOfChannels*0.4);
-	   			}
-				
-	   			if(keepAwake) {
-					stayAwake();
-				}
-		   	}
-		   	
-		   	/*
-		   	 * Generate output image
-		   	 * */
-
-		   	tp1.append("");
-			if(deleteOtherChannels) {
-				if(includeDuplicateChannel){
-					progress.updateBarText("Add duplicated channel");
-			   		outImp = (CompositeImage) IJ.createHyperStack(imp.getTitle() + " cq", imp.getWidth(), imp.getHeight(), 
-			   				2*numberOfChannels, imp.getNSlices(), imp.getNFrames(), imp.getBitDepth());
-			   		outImp.setCalibration(imp.getCalibration());
-			   		outImp.setDisplayMode(IJ.COMPOSITE);
-			   		
-			   		int c = 0;
-				   	newLuts = new LUT [outImp.getNChannels()];
-
-				   	tp1.append("Channels in output image:");
-			   		for(int segmC = 0; segmC < numberOfChannels; segmC++) {
-			   			newLuts [c] = originalLuts [channelIDs [segmC]-1];
-			   			if(chosenAlgorithm[segmC].equals("StarDist")) {
-			   				newLuts [c] = starDistLUT;
-		   					outImp.setC(c+1);
-		   					outImp.getProcessor().resetMinAndMax();
-		   					outImp.setDisplayRange(outImp.getProcessor().getMin(), outImp.getProcessor().getMax());	
-			   			}
-				   		newLuts [c+1] = originalLuts [channelIDs [segmC]-1];
-
-				   		tp1.append("Channel " + (c+1) + ":	" + "previous channel " + (channelIDs [segmC]) + " (segmented)");
-						tp1.append("Channel " + (c+2) + ":	" + "previous channel " + (channelIDs [segmC]) + " (unsegmented)");
-						
-		   				for(int s = 0; s < imp.getNSlices(); s++){
-		   					for(int f = 0; f < imp.getNFrames(); f++){
-   								indexOld = tempImp[segmC].getStackIndex(1, s+1, f+1)-1;
-		   						indexNew = outImp.getStackIndex(c+1, s+1, f+1)-1;
-			   					outImp.getStack().setSliceLabel("segm " + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
-			   					
-		   						for(int x = 0; x < imp.getWidth(); x++){
-						   			for(int y = 0; y < imp.getHeight(); y++){
-								   		outImp.getStack().setVoxel(x, y, indexNew, tempImp [segmC].getStack().getVoxel(x, y, indexOld));
-						   			}
-		   						}
-		   						
-		   						indexOld = imp.getStackIndex(channelIDs [segmC], s+1, f+1)-1;
-		   						indexNew = outImp.getStackIndex(c+2, s+1, f+1)-1;
-			   					outImp.getStack().setSliceLabel("" + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
-			   					
-		   						for(int x = 0; x < imp.getWidth(); x++){
-						   			for(int y = 0; y < imp.getHeight(); y++){
-				   						outImp.getStack().setVoxel(x, y, indexNew, imp.getStack().getVoxel(x, y, indexOld));
-				   					}					
-				   				}
-				   			}
-				   		}
-			   			tempImp [segmC].changes = false;
-						tempImp [segmC].close();					
-						
-						c += 2;
-			   		}
-			   		
-					outImp.setDisplayMode(IJ.COMPOSITE);
-					outImp.setLuts(newLuts);
-   					outImp.updateAllChannelsAndDraw();
-					IJ.saveAsTiff(outImp, filePrefix + ".tif");
-					outImp.changes = false;
-					outImp.close();
-			   	}else{
-			   		outImp = (CompositeImage) IJ.createHyperStack(imp.getTitle() + " cq", imp.getWidth(), imp.getHeight(), 
-			   				numberOfChannels, imp.getNSlices(), imp.getNFrames(), imp.getBitDepth());
-			   		outImp.setCalibration(imp.getCalibration());
-			   		outImp.setDisplayMode(IJ.COMPOSITE);
-			   		
-			   		int c = 0;
-				   	newLuts = new LUT [outImp.getNChannels()];
-
-				   	tp1.append("Channels in output image:");
-			   		for(int segmC = 0; segmC < numberOfChannels; segmC++) {
-			   			newLuts [c] = originalLuts [channelIDs [segmC]-1];
-			   			if(chosenAlgorithm[segmC].equals("StarDist")) {
-			   				newLuts [c] = starDistLUT;
-		   					outImp.setC(c+1);
-		   					outImp.getProcessor().resetMinAndMax();
-		   					outImp.setDisplayRange(outImp.getProcessor().getMin(), outImp.getProcessor().getMax());
-			   			}
-
-				   		tp1.append("Channel " + (c+1) + ":	" + "previous channel " + (channelIDs [segmC]) + " (segmented)");			   			
-		   				for(int s = 0; s < imp.getNSlices(); s++){
-		   					for(int f = 0; f < imp.getNFrames(); f++){
-   								indexOld = tempImp[segmC].getStackIndex(1, s+1, f+1)-1;
-		   						indexNew = outImp.getStackIndex(c+1, s+1, f+1)-1;
-		   						for(int x = 0; x < imp.getWidth(); x++){
-						   			for(int y = 0; y < imp.getHeight(); y++){
-				   						outImp.getStack().setVoxel(x, y, indexNew, tempImp [segmC].getStack().getVoxel(x, y, indexOld));
-				   					}					
-				   				}
-			   					outImp.getStack().setSliceLabel("segm " + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
-				   			}
-				   		}
-			   			tempImp [segmC].changes = false;
-						tempImp [segmC].close();
-						
-						c++;
-			   		}
-
-					outImp.setDisplayMode(IJ.COMPOSITE);
-					outImp.setLuts(newLuts);
-   					outImp.updateAllChannelsAndDraw();
-					IJ.saveAsTiff(outImp, filePrefix + ".tif");
-					outImp.changes = false;
-					outImp.close();
-			   	}
-			}else {
-				if(includeDuplicateChannel){
-					double maxValue = Math.pow(2.0, imp.getBitDepth())-1.0;
 					
-					outImp = (CompositeImage) IJ.createHyperStack(imp.getTitle() + " lq", imp.getWidth(), imp.getHeight(), 
-			   				imp.getNChannels()+numberOfChannels,
-			   				imp.getNSlices(), imp.getNFrames(), imp.getBitDepth());
-			   		outImp.setCalibration(imp.getCalibration());
-			   		outImp.setDisplayMode(IJ.COMPOSITE);
-			   		
-			   		int cNew = 0;
-			   		for(int x = 0; x < imp.getWidth(); x++){
-			   			for(int y = 0; y < imp.getHeight(); y++){
-			   				for(int s = 0; s < imp.getNSlices(); s++){
-			   					for(int f = 0; f < imp.getNFrames(); f++){
-		   							cNew = 0;
-			   						for(int c = 0; c < imp.getNChannels(); c++){
-			   							for(int segmC = 0; segmC < channelIDs.length; segmC++){
-			   								if(c+1 == channelIDs [segmC]){
-			   									indexOld = tempImp [segmC].getStackIndex(1, s+1, f+1)-1;
-						   						indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
-				   								if(outImp.getBitDepth() != tempImp[segmC].getBitDepth()) {
-							   						if(tempImp [segmC].getStack().getVoxel(x, y, indexOld) != 0.0) {
-							   							outImp.getStack().setVoxel(x, y, indexNew, maxValue);
-							   						}							   						
-				   						   		}else {
-				   						   			outImp.getStack().setVoxel(x, y, indexNew, tempImp [segmC].getStack().getVoxel(x, y, indexOld));
-				   						   		}
-				   								cNew ++;
-						   						break;						   						
-				   							}
-			   							}
-			   							indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
-				   						indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
-				   						outImp.getStack().setVoxel(x, y, indexNew, imp.getStack().getVoxel(x, y, indexOld));
-			   						}
-			   					}					
-			   				}
-			   			}
-			   		}
-			   		
-				   	newLuts = new LUT [outImp.getNChannels()];
-				   	
-				   	tp1.append("Channels in output image:");
-				   	cNew = 0;
-				   	String copyStr;
-				   	boolean search;
-			   		for(int c = 0; c < imp.getNChannels(); c++){
-			   			if(keepAwake) {
-							stayAwake();
-						}
-						newLuts [c+cNew] = originalLuts [c];
-			   			
-			   			search = false;
-						for(int i = 0; i < channelIDs.length; i++){
-							if(c+1 == channelIDs [i]){
-	   							search = true;
-	   							break;
-							}
-						}
-						
-						if(search){
-							tp1.append("Channel " + (c+1+cNew) + ":	" + "previous channel " + (c+1) + " (segmented)");
-							for(int s = 0; s < imp.getNSlices(); s++){
-			   					for(int f = 0; f < imp.getNFrames(); f++){
-			   						indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
-				   					indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
-				   					try{
-				   						if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
-					   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
-					   							+  " T" + (f+1) + "/" + imp.getNFrames();
-					   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
-					   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
+					if(search){
+						tp1.append("Channel " + (c+1+cNew) + ":	" + "previous channel " + (c+1) + " (segmented)");
+						for(int s = 0; s < imp.getNSlices(); s++){
+		   					for(int f = 0; f < imp.getNFrames(); f++){
+		   						indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
+			   					indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
+			   					try{
+			   						if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
+				   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
 				   							+  " T" + (f+1) + "/" + imp.getNFrames();
-					   					}else{
-					   						copyStr = imp.getStack().getSliceLabel(indexOld+1);
-					   					}
-				   					}catch(Exception e){
+				   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
 				   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
 			   							+  " T" + (f+1) + "/" + imp.getNFrames();
-				   					}				   					
-				   					outImp.getStack().setSliceLabel("segm " + copyStr, indexNew+1);
-			   					}
-							}
-							
-							for(int i = 0; i < channelIDs.length; i++){
-								if(c+1 == channelIDs [i]){
-									if(chosenAlgorithm[i].equals("StarDist")) {
-							   			newLuts [c+cNew] = starDistLUT;
-							   		}
-									cNew ++;
-	   								newLuts [c+cNew] = originalLuts [c];	   								
-	   								tp1.append("Channel " + (c+1+cNew) + ":	" + "previous channel " + (c+1) + "");
-	   								
-	   								for(int s = 0; s < imp.getNSlices(); s++){
-	   				   					for(int f = 0; f < imp.getNFrames(); f++){
-		   				   					indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
-						   					indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
-						   					try{
-						   						if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
-							   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
-							   							+  " T" + (f+1) + "/" + imp.getNFrames();
-							   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
-							   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
+				   					}else{
+				   						copyStr = imp.getStack().getSliceLabel(indexOld+1);
+				   					}
+			   					}catch(Exception e){
+			   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
+		   							+  " T" + (f+1) + "/" + imp.getNFrames();
+			   					}				   					
+			   					outImp.getStack().setSliceLabel("segm " + copyStr, indexNew+1);
+		   					}
+						}
+						
+						for(int i = 0; i < channelIDs.length; i++){
+							if(c+1 == channelIDs [i]){
+								if(chosenAlgorithm[i].equals("StarDist")) {
+						   			newLuts [c+cNew] = starDistLUT;
+						   		}
+								cNew ++;
+   								newLuts [c+cNew] = originalLuts [c];	   								
+   								tp1.append("Channel " + (c+1+cNew) + ":	" + "previous channel " + (c+1) + "");
+   								
+   								for(int s = 0; s < imp.getNSlices(); s++){
+   				   					for(int f = 0; f < imp.getNFrames(); f++){
+	   				   					indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
+					   					indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
+					   					try{
+					   						if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
+						   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
 						   							+  " T" + (f+1) + "/" + imp.getNFrames();
-							   					}else{
-							   						copyStr = imp.getStack().getSliceLabel(indexOld+1);
-							   					}
-						   					}catch(Exception e){
+						   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
 						   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
 					   							+  " T" + (f+1) + "/" + imp.getNFrames();
-						   					}					   					
-						   					outImp.getStack().setSliceLabel(copyStr, indexNew+1);
-	   				   					}
-	   								}  
-	   								break;
-								}
-							}
-						}else{
-							tp1.append("Channel " + (c+1+cNew) + ":	" + "previous channel " + (c+1) + "");
-							for(int s = 0; s < imp.getNSlices(); s++){
-			   					for(int f = 0; f < imp.getNFrames(); f++){
-			   						indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
-				   					indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
-				   					try{
-				   						if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
-					   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
-					   							+  " T" + (f+1) + "/" + imp.getNFrames();
-					   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
+						   					}else{
+						   						copyStr = imp.getStack().getSliceLabel(indexOld+1);
+						   					}
+					   					}catch(Exception e){
 					   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
 				   							+  " T" + (f+1) + "/" + imp.getNFrames();
-					   					}else{
-					   						copyStr = imp.getStack().getSliceLabel(indexOld+1);
-					   					}
-				   					}catch(Exception e){
-				   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
-			   							+  " T" + (f+1) + "/" + imp.getNFrames();
-				   					}			   					
-				   					outImp.getStack().setSliceLabel(copyStr, indexNew+1);
-			   					}
+					   					}					   					
+					   					outImp.getStack().setSliceLabel(copyStr, indexNew+1);
+   				   					}
+   								}  
+   								break;
 							}
 						}
-						
-					}
-			   		CompositeImage ci = (CompositeImage) outImp;
-		   			ci.setDisplayMode(IJ.COMPOSITE);
-		   			ci.setLuts(newLuts);
-		   			for(int segmC = 0; segmC < channelIDs.length; segmC++) {
-		   				if(chosenAlgorithm[segmC].equals("StarDist")) {
-		   					ci.setC(channelIDs[segmC]);
-							ci.getProcessor().resetMinAndMax();
-							ci.setDisplayRange(ci.getProcessor().getMin(), ci.getProcessor().getMax());	
-							ci.updateAllChannelsAndDraw();
-		   				}						
-					}
-					IJ.saveAsTiff(ci, filePrefix + ".tif");
-			   		outImp.changes = false;
-					outImp.close();
-
-					ci.changes = false;
-					ci.close();				
-			   	}else{
-				   	tp1.append("Channels in output image: no change of order");
-					for(int segmC = 0; segmC < channelIDs.length; segmC++){
+					}else{
+						tp1.append("Channel " + (c+1+cNew) + ":	" + "previous channel " + (c+1) + "");
 						for(int s = 0; s < imp.getNSlices(); s++){
 		   					for(int f = 0; f < imp.getNFrames(); f++){
-		   						indexOld = tempImp [segmC].getStackIndex(1, s+1, f+1)-1;
-	   							indexNew = imp.getStackIndex(channelIDs[segmC], s+1, f+1)-1;
-		   						for(int x = 0; x < imp.getWidth(); x++){
-		   							for(int y = 0; y < imp.getHeight(); y++){		
-				   						imp.getStack().setVoxel(x, y, indexNew, tempImp [segmC].getStack().getVoxel(x, y, indexOld));
-			   						}
-			   					}	
-		   	   					imp.getStack().setSliceLabel("segm " + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
-			   				}
-			   			}
-						tempImp [segmC].changes = false;
-						tempImp [segmC].close();
-					}
-					for(int segmC = 0; segmC < numberOfChannels; segmC++) {
-						if(chosenAlgorithm[segmC].equals("StarDist")) {
-							imp.setC(channelIDs[segmC]);
-							imp.getProcessor().setLut(starDistLUT);
+		   						indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
+			   					indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
+			   					try{
+			   						if(imp.getStack().getSliceLabel(indexOld+1).equals(null)){
+				   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
+				   							+  " T" + (f+1) + "/" + imp.getNFrames();
+				   					}else if(imp.getStack().getSliceLabel(indexOld+1).isEmpty()){
+				   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
+			   							+  " T" + (f+1) + "/" + imp.getNFrames();
+				   					}else{
+				   						copyStr = imp.getStack().getSliceLabel(indexOld+1);
+				   					}
+			   					}catch(Exception e){
+			   						copyStr = "C" + (c+1) + " S" + (s+1) + "/" + imp.getNSlices() 
+		   							+  " T" + (f+1) + "/" + imp.getNFrames();
+			   					}			   					
+			   					outImp.getStack().setSliceLabel(copyStr, indexNew+1);
+		   					}
 						}
 					}
-			   		IJ.saveAsTiff(imp, filePrefix + ".tif");
-			   	}	
+					
+				}
+		   		CompositeImage ci = (CompositeImage) outImp;
+	   			ci.setDisplayMode(IJ.COMPOSITE);
+	   			ci.setLuts(newLuts);
+	   			for(int segmC = 0; segmC < channelIDs.length; segmC++) {
+	   				if(chosenAlgorithm[segmC].equals("StarDist")) {
+	   					ci.setC(channelIDs[segmC]);
+						ci.getProcessor().resetMinAndMax();
+						ci.setDisplayRange(ci.getProcessor().getMin(), ci.getProcessor().getMax());	
+						ci.updateAllChannelsAndDraw();
+	   				}						
+				}
+				output.saveAsTiff(ci, filePrefix + ".tif");
+				output.close(ci);
+		   	}else{
+			   	tp1.append("Channels in output image: no change of order");
+				for(int segmC = 0; segmC < channelIDs.length; segmC++){
+					for(int s = 0; s < imp.getNSlices(); s++){
+	   					for(int f = 0; f < imp.getNFrames(); f++){
+	   						indexOld = tempImp [segmC].getStackIndex(1, s+1, f+1)-1;
+   							indexNew = imp.getStackIndex(channelIDs[segmC], s+1, f+1)-1;
+	   						copyPlane(tempImp [segmC], indexOld, imp, indexNew);
+	   	   					imp.getStack().setSliceLabel("segm " + sliceLabels [channelIDs[segmC]-1][f][s], indexNew+1);
+		   				}
+		   			}
+					tempImp [segmC].changes = false;
+					tempImp [segmC].close();
+				}
+				for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+					if(chosenAlgorithm[segmC].equals("StarDist")) {
+						imp.setC(channelIDs[segmC]);
+						imp.getProcessor().setLut(starDistLUT);
+					}
+				}
+		   		output.saveAsTiff(imp, filePrefix + ".tif");
+		   	}	
+		}
+   		
+   		if(keepAwake) {
+			stayAwake();
+		}
+		
+	   	addFooter(tp1, startDate);				
+		output.saveMetadata(tp1, filePrefix + ".txt");
+
+		updateProgress("Finished ...");
+		
+		/******************************************************************
+		*** 							Finish							***	
+		*******************************************************************/			
+		{
+			imp.unlock();	
+			if(selectedTaskVariant.equals(taskVariant[1])){
+				output.close(imp);
 			}
-	   		
-	   		if(keepAwake) {
+			processingDone = true;
+			break running;
+		}				
+	}	
+	updateProgress("finished!");
+	setProgress(1.0);
+	output.add(new Runnable() {
+		public void run() {
+			releaseTask(task);
+			moveProgressTask(task);
+		}
+	});
+	//the output may be written by another thread, which cannot stop the stages of this thread (see StageTimer)
+	if(stageTimer != null)	stageTimer.stop();
+}
+
+/**
+ * @return true if segmentation channels are processed concurrently with @param threads threads per image
+ * (see processSegmentationChannels): parallelChannels is set, more than one thread is allowed and at least two
+ * channels are not segmented with StarDist
+ * */
+boolean processesChannelsConcurrently(int threads) {
+	if(!parallelChannels || threads <= 1)	return false;
+	int concurrent = 0;
+	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		if(!chosenAlgorithm [segmC].equals("StarDist"))	concurrent++;
+	}
+	return concurrent >= 2;
+}
+
+/**
+ * Runs the preprocessing, threshold / StarDist segmentation and mask cleanup for all segmentation channels.
+ * The images in @param tempImp (one copy per segmentation channel) are replaced by the processed masks.
+ * If the channels are processed concurrently (see processesChannelsConcurrently with Prefs.getThreads()) and the 
+ * current task is not restricted to sequential channels by the memory budget (see startMemoryBudget), channels that 
+ * are not segmented with StarDist are processed concurrently, while StarDist channels (which need displayed windows)
+ * run one after the other in the calling thread. Metadata lines of each channel are appended to
+ * @param tp in the order of the channels, so the output does not depend on the processing order.
+ * ROI files are saved via @param output.
+ * */
+void processSegmentationChannels(final ImagePlus [] tempImp, final String filePrefix, final double pixelWidth,
+		final double pixelHeight, final String pixelUnit, MetadataText tp, final TaskOutput output) {
+	final MetadataText [] channelLogs = new MetadataText [numberOfChannels];
+	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		channelLogs [segmC] = new MetadataText();
+	}
+	
+	ArrayList<Integer> concurrentChannels = new ArrayList<Integer>();
+	Integer task = currentTask.get();
+	boolean sequential = task != null && task >= 0 && taskSequentialChannels != null && taskSequentialChannels [task];
+	if(!sequential && processesChannelsConcurrently(Prefs.getThreads())) {
+		for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+			if(!chosenAlgorithm [segmC].equals("StarDist"))	concurrentChannels.add(segmC);
+		}
+	}
+	
+	ExecutorService executor = null;
+	ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+	if(!concurrentChannels.isEmpty()) {
+		executor = Executors.newFixedThreadPool(Math.min(concurrentChannels.size(), Prefs.getThreads()));
+		for(final int segmC : concurrentChannels) {
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					processSegmentationChannel(tempImp, segmC, filePrefix, pixelWidth, pixelHeight, pixelUnit, channelLogs [segmC], output);
+				}
+			}));
+		}
+		executor.shutdown();
+	}
+	
+	try {
+		for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+			if(concurrentChannels.contains(segmC))	continue;
+			processSegmentationChannel(tempImp, segmC, filePrefix, pixelWidth, pixelHeight, pixelUnit, channelLogs [segmC], output);
+		}
+		for(int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			}catch(ExecutionException e) {
+				throw getUncheckedCause(e);
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+	}finally {
+		if(executor != null)	executor.shutdownNow();
+	}
+	
+	for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+		for(int i = 0; i < channelLogs [segmC].getLineCount(); i++) {
+			tp.append(channelLogs [segmC].getLine(i));
+		}
+	}
+}
+
+/**
+ * Preprocessing, segmentation and mask cleanup for the segmentation channel @param segmC: tempImp [segmC]
+ * is replaced by the processed mask. Metadata lines are written to @param log, the ROI file is saved via @param output.
+ * */
+private void processSegmentationChannel(ImagePlus [] tempImp, int segmC, String filePrefix, double pixelWidth,
+		double pixelHeight, String pixelUnit, MetadataText log, TaskOutput output) {
+	double threshold;
+	ImagePlus mask;
+	ImagePlus aboveZeroMask = null;
+	boolean regionsZeroed = false;
+	
+//	   			tempImp [segmC].show();
+//				new WaitForUserDialog("before treatment").show();
+//				tempImp [segmC].hide();
+
+	if(subtractBackground [segmC]) {
+		updateProgress("Subtract background " + dfDialog.format(subtractBGRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + "");		
+		if(chosenBackgroundEngine.equals(backgroundEngineVariant[1])) {
+			double radius = subtractBGRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight);
+			if(reportEngineDeviation) {
+				double deviation [] = FastBackground.getDeviation(tempImp [segmC].getProcessor(), radius, !darkBackground [segmC]);
+				log.append("Subtracted background with " + backgroundEngineVariant[1] + " - deviation from the rolling ball on the central "
+						+ df0.format(deviation [2]) + " x " + df0.format(deviation [3]) + " px - maximum:	" + df6.format(deviation [0])
+						+ "	mean:	" + df6.format(deviation [1]));
+			}
+			FastBackground.subtract(tempImp [segmC].getProcessor(), radius, !darkBackground [segmC]);
+		}else if(darkBackground [segmC]) {
+			IJ.run(tempImp [segmC], "Subtract Background...", "rolling=" + (subtractBGRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + "");
+		}else {
+			IJ.run(tempImp [segmC], "Subtract Background...", "rolling=" + (subtractBGRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " light");
+		}					
+		addProgress(1.0/(double)numberOfChannels*0.1);					
+
+//					tempImp [segmC].show();
+//					new WaitForUserDialog("sbgd").show();
+//					tempImp [segmC].hide();
+	}
+
+	if(preBlur [segmC]) {
+		updateProgress("Bluring image ... " + dfDialog.format(preBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + "");
+		blurGaussian(tempImp [segmC].getProcessor(), preBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight));
+		addProgress(1.0/(double)numberOfChannels*0.05);
+
+//					tempImp [segmC].show();
+//					new WaitForUserDialog("blurred").show();
+//					tempImp [segmC].hide();
+	}
+
+	if(subtractBluredImage [segmC]) {
+		updateProgress("Subtract blured image ... " + dfDialog.format(subtractBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + "");
+		if(fusedPasses && excludeZeroRegions [segmC] && tempImp [segmC].getStackSize() == 1) {
+			//the mask of the non-zero-pixel ROI is written in the same pass as the subtraction
+			aboveZeroMask = IJ.createHyperStack("divided image temp", tempImp [segmC].getWidth(), tempImp [segmC].getHeight(), 1, 1, 1, 8);
+		}
+		tempImp [segmC] = subtractABluredImage(tempImp [segmC], subtractBlurSigma [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight), aboveZeroMask);
+		addProgress(1.0/(double)numberOfChannels*0.05);
+
+//					tempImp.show();
+//					new WaitForUserDialog("blur substr").show();
+//					tempImp.hide();
+	}
+
+	if(keepAwake) {
+		stayAwake();
+	}
+
+
+	Roi regionsAboveZero = null;
+	//the pixels of the non-zero-pixel ROI (regionBitmask), used instead of the ROI for the histogram and zeroing
+	ImageProcessor regionMask = null;
+	if(excludeZeroRegions [segmC]) {
+		updateProgress("get non-zero-pixel ROI (close-gaps radius = " + dfDialog.format(closeGapsRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + ")...");
+		if(aboveZeroMask == null) {
+			aboveZeroMask = getAboveZeroMask(tempImp [segmC], 1);
+		}
+		regionsAboveZero = getRoiFromAboveZeroMask(aboveZeroMask, closeGapsRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight));
+		if(regionBitmask) {
+			regionMask = aboveZeroMask.getStack().getProcessor(1);
+		}
+		tempImp [segmC].setRoi(regionsAboveZero);
+		//save ROI
+		if(regionsAboveZero != null) {
+			output.saveRoi(regionsAboveZero, filePrefix + "_ROI_C" + (segmC+1) + ".roi");
+		}else {
+			log.append("Non-zero-pixel ROI:	empty (no pixels above zero) - _ROI_C" + (segmC+1) + ".roi not saved");
+		}
+		if(saveRegionRuns) {
+			output.saveRuns(MaskOutline.getRuns((byte []) aboveZeroMask.getStack().getPixels(1), aboveZeroMask.getWidth(),
+					aboveZeroMask.getHeight()), aboveZeroMask.getWidth(), aboveZeroMask.getHeight(),
+					filePrefix + "_ROI_C" + (segmC+1) + "_runs.txt");
+		}
+	}
+
+	if(chosenAlgorithm [segmC].equals("CUSTOM threshold")) {
+		updateProgress("Set custom threshold " + customThr + " ...");
+		threshold = customThr [segmC];
+		log.append("Used " + chosenAlgorithm + " as intensity threshold - threshold value:	" + df6.format(threshold));
+
+		addProgress(1.0/(double)numberOfChannels*0.5);
+
+		updateProgress("Segment image with threshold " + dfDialog.format(threshold) + " ...");
+		regionsZeroed = segmentImage(tempImp [segmC], threshold, regionsAboveZero, regionMask, darkBackground [segmC]);
+
+		addProgress(1.0/(double)numberOfChannels*0.1);
+	}else if (chosenAlgorithm [segmC].equals("StarDist")){
+		//input and output images are found by their window titles - only one StarDist run at a time
+		synchronized(starDistLock) {
+			tempImp [segmC].show();
+			updateProgress("StarDist detection running ...");
+			String runText = ("command=[de.csbdresden.stardist.StarDist2D], "
+					+ "args=['input':'" + tempImp[segmC].getTitle() +"', 'modelChoice':'" + selectedStarDistModel [segmC] + "', ");
+					if(starDistNormalizeImage[segmC]) {
+						runText += "'normalizeInput':'true', ";
+					}else {
+						runText += "'normalizeInput':'false', ";
+					}							
+					runText += "'percentileBottom':'" + dfDialog.format(starDistPercentileLow[segmC]) + "', 'percentileTop':'" + dfDialog.format(starDistPercentileHigh[segmC]) + "', "
+							+ "'probThresh':'" + dfDialog.format(starDistProbabilityScore[segmC]) + "', " + "'nmsThresh':'" + dfDialog.format(starDistOverlapThreshold[segmC]) 
+							+ "', 'outputType':'Label Image', ";
+					if(selectedStarDistModel [segmC].equals("Model (.zip) from File")){
+						runText += "'modelFile':'" + starDistModelPath [segmC] + "', ";
+					}
+					runText += "'nTiles':'" + starDistNTiles [segmC] + "', 'excludeBoundary':'2', 'roiPosition':'Automatic', "
+					+ "'verbose':'false', 'showCsbdeepProgress':'false', 'showProbAndDist':'false'], process=[false]";
+
+			IJ.run(tempImp[segmC], "Command From Macro",runText);
+
+			tempImp [segmC].changes = false;
+			tempImp [segmC].close();
+			tempImp [segmC] = WindowManager.getImage("Label Image").duplicate();
+			tempImp [segmC].hide();
+			WindowManager.getImage("Label Image").changes = false;
+			WindowManager.getImage("Label Image").close();
+		}
+
+		addProgress(1.0/(double)numberOfChannels*0.6);
+	}else {
+//					tempImp.show();
+//					new WaitForUserDialog("before thr").show();
+//					tempImp.hide();
+		updateProgress("Determine threshold using " + chosenAlgorithm [segmC] + " ...");
+		if(darkBackground [segmC]) {
+			threshold = getSingleSliceImageThresholds(tempImp [segmC], 1, chosenAlgorithm [segmC], darkBackground [segmC], regionMask)[0];
+		}else {
+			threshold = getSingleSliceImageThresholds(tempImp [segmC], 1, chosenAlgorithm [segmC], darkBackground [segmC], regionMask)[1];					
+		}
+		log.append("Used " + chosenAlgorithm [segmC] + " to determine the intensity threshold - threshold value:	" + df6.format(threshold));
+
+		addProgress(1.0/(double)numberOfChannels*0.1);
+
+//					tempImp.show();
+//					new WaitForUserDialog("after thr").show();
+//					tempImp.hide();
+
+		updateProgress("Segment image with threshold " + dfDialog.format(threshold) + " ...");
+		regionsZeroed = segmentImage(tempImp [segmC], threshold, regionsAboveZero, regionMask, darkBackground [segmC]);
+
+//					tempImp.show();
+//					new WaitForUserDialog("bin").show();
+//					tempImp.hide();
+
+		addProgress(1.0/(double)numberOfChannels*0.1);				
+
+	}			
+
+	if(regionsZeroed) {
+		//pixels outside the non-zero-pixel ROI were set to zero during segmentation
+		addProgress(1.0/(double)numberOfChannels*0.1);
+	}else if(excludeZeroRegions [segmC]) {
+		updateProgress("Set pixels outside non-zero-Pixel ROI to zero in mask...");
+		if(regionMask != null) {
+			setRegionsOutsideMaskToZero(tempImp [segmC], 1, (byte []) regionMask.getPixels());
+		}else {
+			setRegionsOutsideRoiToZero(tempImp [segmC], 1, regionsAboveZero);
+		}
+	}
+	if(aboveZeroMask != null) {
+		aboveZeroMask.changes = false;
+		aboveZeroMask.close();
+	}
+	addProgress(1.0/(double)numberOfChannels*0.1);
+
+	if(keepAwake) {
+		stayAwake();
+	}
+
+	if(despeckle [segmC] || removeParticles [segmC] || fillHoles [segmC] || watershed [segmC]) {
+		tempImp [segmC].deleteRoi();							   	
+		if(tempImp [segmC].getBitDepth()!=8) {
+			tempImp [segmC] = getOtherBitImageFromBinary32bit(tempImp [segmC], false, 8);
+//					   	tempImp [segmC].show();
+//						new WaitForUserDialog("bitconv").show();
+//						tempImp [segmC].hide();	
+		}		   	
+
+		if(despeckle [segmC]) {
+			updateProgress("Despeckle mask");
+			despeckle(tempImp [segmC]);
+		}
+
+		addProgress(1.0/(double)numberOfChannels*0.1);
+
+		if(keepAwake) {
+			stayAwake();
+		}
+		if(removeParticles [segmC]) {
+			if(keepAwake) {
 				stayAwake();
 			}
-			
-		   	addFooter(tp1, startDate);				
-			tp1.saveAs(filePrefix + ".txt");			
 
-			progress.updateBarText("Finished ...");
-			
-			/******************************************************************
-			*** 							Finish							***	
-			*******************************************************************/			
-			{
-				imp.unlock();	
-				if(selectedTaskVariant.equals(taskVariant[1])){
-					imp.changes = false;
-					imp.close();
+			updateProgress("Get mask with filled holes and closed gaps (radius " + dfDialog.format(removeRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight)) + " " + pixelUnit + ")...");
+			mask = getFillHolesAndRemoveNoise(tempImp [segmC], linkGapsForRemoveRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight), removeRadius [segmC] / (0.5 * pixelWidth + 0.5 * pixelHeight), segmC);
+
+			addProgress(1.0/(double)numberOfChannels*0.1);
+
+//					   	tempImp [segmC].show();
+//						new WaitForUserDialog("calc").show();
+//						tempImp [segmC].hide();	
+
+			updateProgress("Invert image...");
+			if(setInvertedAndInMask(tempImp [segmC], mask)) {
+				//inverted and combined in one pass in place in the mask (no result image)
+				tempImp [segmC] = mask;
+				mask = null;
+				addProgress(1.0/(double)numberOfChannels*0.1);
+			}else {
+//							IJ.run(tempImp, "Invert", "");
+				tempImp [segmC].getProcessor().invert();
+
+				if(keepAwake) {
+					stayAwake();
 				}
-				processingDone = true;
-				break running;
-			}				
-		}	
-		progress.updateBarText("finished!");
-		progress.setBar(1.0);
-		progress.moveTask(task);
+
+//						   	tempImp [segmC].show();
+//							new WaitForUserDialog("calc").show();
+//							tempImp [segmC].hide();	
+
+				addProgress(1.0/(double)numberOfChannels*0.1);
+
+				ImageCalculator ic = new ImageCalculator();
+				tempImp [segmC] = ic.run("AND create", tempImp [segmC], mask);
+			}
+
+			if(mask != null) {
+				mask.changes = false;
+				mask.close();
+			}
+			addProgress(1.0/(double)numberOfChannels*0.1);
+		}else {
+			addProgress(1.0/(double)numberOfChannels*0.3);
+		}
+
+//			   		tempImp [segmC].show();
+//					new WaitForUserDialog("Prefill").show();
+//					tempImp [segmC].hide();	
+
+		if(fillHoles [segmC]) {
+			if(keepAwake) {
+				stayAwake();
+			}
+			updateProgress("Fill holes...");
+			fillHoles(tempImp [segmC]);
+		}
+
+		if(watershed [segmC]) {
+			if(keepAwake) {
+				stayAwake();
+			}
+			updateProgress("Watershed...");
+			if(chosenWatershedEngine.equals(watershedEngineVariant[1]) && tempImp [segmC].getStackSize() == 1
+					&& BinaryMorphology.isBinary(tempImp [segmC].getProcessor())) {
+				byte background = (byte) (255 - getBinaryForeground(tempImp [segmC]));
+				if(reportEngineDeviation) {
+					double deviation [] = FastWatershed.getDeviation(tempImp [segmC].getProcessor(), background);
+					log.append("Applied watershed with " + watershedEngineVariant[1] + " - deviation from ImageJ's watershed on the central "
+							+ df0.format(deviation [2]) + " x " + df0.format(deviation [3]) + " px - pixels:	" + df0.format(deviation [0])
+							+ "	fraction:	" + df6.format(deviation [1]));
+				}
+				FastWatershed.segment((byte []) tempImp [segmC].getProcessor().getPixels(), tempImp [segmC].getWidth(),
+						tempImp [segmC].getHeight(), background);
+			}else {
+				IJ.run(tempImp [segmC], "Watershed", "");
+			}
+		}
+
+//				   	tempImp [segmC].show();
+//					new WaitForUserDialog("calc").show();
+//					tempImp [segmC].hide();
+	}else {
+		addProgress(1.0/(double)numberOfChannels*0.4);
+	}
+
+	if(keepAwake) {
+		stayAwake();
 	}
-	Prefs.blackBackground = backgroundPref;
 }
 
 /**
  * @return a ROI that contains the pixels in the image @param imp with non-zero intensity 
  * in the @param channel (1 <= channel <= number of channels in imp).
  * */
-private Roi getRegionsAboveZeroAsROI(ImagePlus imp, int channel, double closeHolesRadius) {
+Roi getRegionsAboveZeroAsROI(ImagePlus imp, int channel, double closeHolesRadius) {
+	ImagePlus tempImp = getAboveZeroMask(imp, channel);
+	Roi roi = getRoiFromAboveZeroMask(tempImp, closeHolesRadius);
+	tempImp.changes = false;
+	tempImp.close();
+	return roi;
+}
+
+/**
+ * @return an 8-bit image with the planes of the @param channel (1 <= channel <= number of channels) of @param imp,
+ * 255 where the intensity is above zero and 0 elsewhere.
+ * */
+ImagePlus getAboveZeroMask(ImagePlus imp, int channel) {
 	ImagePlus tempImp =  IJ.createHyperStack(imp.getTitle() + " temp", imp.getWidth(), imp.getHeight(), 1,
 				imp.getNSlices(), imp.getNFrames(), 8);
 	int index = 0;
 	int indexTemp = 0;
-	for(int x = 0; x < imp.getWidth(); x++){
-		for(int y = 0; y < imp.getHeight(); y++){
-			for(int s = 0; s < imp.getNSlices(); s++){
-				for(int f = 0; f < imp.getNFrames(); f++){
-					index = imp.getStackIndex(channel, s+1, f+1)-1;
-					indexTemp = tempImp.getStackIndex(1, s+1, f+1)-1;
-					if(imp.getStack().getVoxel(x,y,index)>0) {
-						tempImp.getStack().setVoxel(x, y, indexTemp, 255.0);
-					}else {
-						tempImp.getStack().setVoxel(x, y, indexTemp, 0.0);
-					}
-				}					
-			}
+	for(int s = 0; s < imp.getNSlices(); s++){
+		for(int f = 0; f < imp.getNFrames(); f++){
+			index = imp.getStackIndex(channel, s+1, f+1)-1;
+			indexTemp = tempImp.getStackIndex(1, s+1, f+1)-1;
+			new Plane(imp, index).writeAboveZeroMask(new Plane(tempImp, indexTemp), 255.0);
 		}
 	}
 	
 //	tempImp.duplicate().show();
 //	new WaitForUserDialog("binarized").show();
 	
-	IJ.run(tempImp, "Maximum...", "radius=" + dfDialog.format(closeHolesRadius));
-	IJ.run(tempImp, "Minimum...", "radius=" + dfDialog.format(closeHolesRadius));
+	return tempImp;
+}
+
+/**
+ * @return a ROI that contains the pixels above zero in the 8-bit @param tempImp (255 above zero, 0 elsewhere)
+ * after closing gaps with @param closeHolesRadius. The gaps are closed in @param tempImp, so that its first plane
+ * afterwards holds the pixels contained in the ROI; @param tempImp is not closed.
+ * The ROI is created by ImageJ's "Create Selection" or, depending on chosenRoiOutline, traced by MaskOutline.
+ * Returns null (and logs this) if the mask contains no pixels above zero.
+ * */
+Roi getRoiFromAboveZeroMask(ImagePlus tempImp, double closeHolesRadius) {
+	rankFilter(tempImp, closeHolesRadius, true);
+	rankFilter(tempImp, closeHolesRadius, false);
+	
+	if(chosenRoiOutline.equals(roiOutlineVariant[1])) {
+		//outline of the first plane, as for "Create Selection"
+		Roi roi = MaskOutline.getRoi((byte []) tempImp.getStack().getPixels(1), tempImp.getWidth(), tempImp.getHeight());
+		if(roi == null)	notifyEmptyRoi();
+		return roi;
+	}
 
 	tempImp.getProcessor().setAutoThreshold(AutoThresholder.Method.Default, true);
 	tempImp.getProcessor().setThreshold(1, 255, ImageProcessor.NO_LUT_UPDATE);
@@ -1351,6 +2060,10 @@ private Roi getRegionsAboveZeroAsROI(ImagePlus imp, int channel, double closeHol
 	IJ.run(tempImp, "Create Selection", "");
 	
 	Roi roi = tempImp.getRoi();
+	if(roi == null) {
+		notifyEmptyRoi();
+		return null;
+	}
 	if(roi.contains(0,0)) {
 		if(tempImp.getStack().getVoxel(0,0,0) == 0) {
 			IJ.run(tempImp, "Make Inverse", "");
@@ -1366,32 +2079,103 @@ private Roi getRegionsAboveZeroAsROI(ImagePlus imp, int channel, double closeHol
 //	tempImp.duplicate().show();
 //	new WaitForUserDialog("MinMaxedWithSelection " + "radius=" + dfDialog.format(closeHolesRadius)).show();	
 	
-	tempImp.changes = false;
-	tempImp.close();
-	
 	return roi;	
 }
 
+private void notifyEmptyRoi() {
+	Integer task = currentTask.get();
+	notifyProgress((task != null && task >= 0 ? "Task " + (task+1) + "/" + tasks + ": " : "")
+			+ "No pixels above zero - the non-zero-pixel ROI is empty and is not saved.", ProgressDialog.NOTIFICATION);
+}
+
+/**
+ * Sets all pixels in the @param channel (1 <= channel <= number of channels) of @param imp that are zero in the
+ * 8-bit @param regionMask (same size as a plane of @param imp) to zero - same result as setRegionsOutsideRoiToZero
+ * with the ROI created from @param regionMask (see getRoiFromAboveZeroMask), without a ROI lookup per pixel.
+ * */
+void setRegionsOutsideMaskToZero(ImagePlus imp, int channel, final byte [] regionMask) {
+	int index = 0;
+	Plane [] planes = new Plane [imp.getNSlices()*imp.getNFrames()];
+	for(int s = 0; s < imp.getNSlices(); s++){
+		for(int f = 0; f < imp.getNFrames(); f++){
+			index = imp.getStackIndex(channel, s+1, f+1)-1;
+			planes [s*imp.getNFrames()+f] = new Plane(imp, index);
+		}
+	}
+	final int width = imp.getWidth();
+	final Plane [] bandPlanes = planes;
+	RowBands.run(width, imp.getHeight(), new RowBands.Task() {
+		public void run(int band, int yStart, int yEnd) {
+			for(int i = yStart*width; i < yEnd*width; i++){
+				if(regionMask [i] != 0)	continue;
+				for(int p = 0; p < bandPlanes.length; p++){
+					bandPlanes [p].set(i, 0.0);
+				}
+			}
+		}
+	});
+	addProgress(1.0/(double)numberOfChannels*0.1);
+}
+
 /**
  * Sets all pixels in the @param channel (1 <= channel <= number of channels) of @param imp that are
  * not contained in the @param regionRoi to zero.
  * */
-private void setRegionsOutsideRoiToZero(ImagePlus imp, int channel, Roi regionRoi) {
+void setRegionsOutsideRoiToZero(ImagePlus imp, int channel, Roi regionRoi) {
 	int index = 0;
-	double add = (1.0/(double)numberOfChannels*0.1/imp.getWidth());
-	for(int x = 0; x < imp.getWidth(); x++){
-		for(int y = 0; y < imp.getHeight(); y++){
-			for(int s = 0; s < imp.getNSlices(); s++){
-				for(int f = 0; f < imp.getNFrames(); f++){
-					index = imp.getStackIndex(channel, s+1, f+1)-1;
-					if(!regionRoi.contains(x,y)) {
-						imp.getStack().setVoxel(x, y, index, 0.0);
+	double add = (1.0/(double)numberOfChannels*0.1/imp.getHeight());
+	//no ROI (empty region): all pixels are outside
+	Rectangle bounds = regionRoi != null ? regionRoi.getBounds() : new Rectangle();
+	Plane [] planes = new Plane [imp.getNSlices()*imp.getNFrames()];
+	for(int s = 0; s < imp.getNSlices(); s++){
+		for(int f = 0; f < imp.getNFrames(); f++){
+			index = imp.getStackIndex(channel, s+1, f+1)-1;
+			planes [s*imp.getNFrames()+f] = new Plane(imp, index);
+		}
+	}
+	final int width = imp.getWidth();
+	final Plane [] bandPlanes = planes;
+	final Rectangle roiBounds = bounds;
+	final Roi roi = regionRoi;
+	final boolean vectorized = useVectorKernels;
+	RowBands.run(width, imp.getHeight(), new RowBands.Task() {
+		public void run(int band, int yStart, int yEnd) {
+			//each band uses its own copy of the roi since contains() may cache state (e.g., a mask) lazily
+			Roi bandRoi = roi != null ? (Roi) roi.clone() : null;
+			int xStart = 0, xEnd = width;
+			boolean inside;
+			for(int y = yStart; y < yEnd; y++){
+				if(vectorized) {
+					//fill the row parts outside the bounding rectangle at once
+					if(y < roiBounds.y || y >= roiBounds.y + roiBounds.height) {
+						for(int p = 0; p < bandPlanes.length; p++){
+							PixelKernels.fillZero(bandPlanes [p], y*width, (y+1)*width);
+						}
+						continue;
 					}
-				}					
+					xStart = Math.min(width, Math.max(0, roiBounds.x));
+					xEnd = Math.max(xStart, Math.min(width, roiBounds.x + roiBounds.width));
+					for(int p = 0; p < bandPlanes.length; p++){
+						PixelKernels.fillZero(bandPlanes [p], y*width, y*width + xStart);
+						PixelKernels.fillZero(bandPlanes [p], y*width + xEnd, (y+1)*width);
+					}
+				}
+				for(int x = xStart; x < xEnd; x++){
+					//pixels outside the bounding rectangle cannot be contained in the roi
+					inside = y >= roiBounds.y && y < roiBounds.y + roiBounds.height
+							&& x >= roiBounds.x && x < roiBounds.x + roiBounds.width
+							&& bandRoi.contains(x,y);
+					if(!inside) {
+						for(int p = 0; p < bandPlanes.length; p++){
+							bandPlanes [p].set(y*width+x, 0.0);
+						}
+					}
+				}
 			}
 		}
-		progress.addToBar(add);
-	}
+	});
+	//progress is updated once all bands are processed, since the bands may run in other threads
+	addProgress(add*imp.getHeight());
 }
 
 /**
@@ -1401,22 +2185,142 @@ private ImagePlus getFillHolesAndRemoveNoise(ImagePlus imp, double closeGapsRadi
 	ImagePlus tempImp = imp.duplicate();
 
 	if(linkForROI [segmC]) {
-		IJ.run(tempImp, "Maximum...", "radius=" + dfDialog.format(closeGapsRadius));
+		rankFilter(tempImp, closeGapsRadius, true);
 	}
 	
-	IJ.run(tempImp, "Fill Holes", "");
+	fillHoles(tempImp);
 	
 	if(linkForROI [segmC]) {
-		IJ.run(tempImp, "Minimum...", "radius=" + dfDialog.format(closeGapsRadius));
+		rankFilter(tempImp, closeGapsRadius, false);
 		
 	}
 	
-	IJ.run(tempImp, "Minimum...", "radius=" + dfDialog.format(closeHolesRadius));
-	IJ.run(tempImp, "Maximum...", "radius=" + dfDialog.format(closeHolesRadius));
+	rankFilter(tempImp, closeHolesRadius, false);
+	rankFilter(tempImp, closeHolesRadius, true);
 	
 	return tempImp;
 }
 
+/**
+ * Runs ImageJ's rank filter "Maximum..." (if @param maximum) or "Minimum..." with @param radius on @param imp.
+ * If edtMorphology is set, single-plane binary masks (0 / 255, normal LUT) are processed by BinaryMorphology instead,
+ * with the same result in a time that does not depend on the radius.
+ * */
+void rankFilter(ImagePlus imp, double radius, boolean maximum) {
+	String radiusText = dfDialog.format(radius);
+	if(edtMorphology && imp.getStackSize() == 1 && !imp.isInvertedLut() && BinaryMorphology.isBinary(imp.getProcessor())) {
+		//the radius as passed to ImageJ
+		try {
+			radius = dfDialog.parse(radiusText).doubleValue();
+		}catch(ParseException e) {
+			throw new IllegalArgumentException("Invalid radius " + radiusText, e);
+		}
+		if(maximum) {
+			BinaryMorphology.dilate(imp.getProcessor(), radius);
+		}else {
+			BinaryMorphology.erode(imp.getProcessor(), radius);
+		}
+		return;
+	}
+	if(maximum) {
+		IJ.run(imp, "Maximum...", "radius=" + radiusText);
+	}else {
+		IJ.run(imp, "Minimum...", "radius=" + radiusText);
+	}
+}
+
+/**
+ * Runs ImageJ's "Despeckle" (3x3 median) on @param imp. If bitDespeckle is set, single-plane binary masks (0 / 255)
+ * are processed by BinaryMorphology.despeckle instead, with the same result.
+ * */
+void despeckle(ImagePlus imp) {
+	if(bitDespeckle && imp.getStackSize() == 1 && BinaryMorphology.isBinary(imp.getProcessor())) {
+		BinaryMorphology.despeckle(imp.getProcessor());
+		return;
+	}
+	IJ.run(imp, "Despeckle", "");
+}
+
+/**
+ * Runs ImageJ's "Fill Holes" on @param imp. If runFillHoles is set, single-plane binary masks (0 / 255) are processed
+ * by FillHoles instead, with the same result (foreground see getBinaryForeground).
+ * */
+void fillHoles(ImagePlus imp) {
+	if(runFillHoles && imp.getStackSize() == 1 && BinaryMorphology.isBinary(imp.getProcessor())) {
+		int foreground = getBinaryForeground(imp);
+		FillHoles.fill((byte []) imp.getProcessor().getPixels(), imp.getWidth(), imp.getHeight(),
+				(byte) foreground, (byte) (255 - foreground));
+		return;
+	}
+	IJ.run(imp, "Fill Holes", "");
+}
+
+/**
+ * @return the foreground value (0 or 255) of the binary 8-bit @param imp as in ImageJ's binary commands:
+ * 255 with black background, swapped for an inverted LUT
+ * */
+int getBinaryForeground(ImagePlus imp) {
+	int foreground = Prefs.blackBackground ? 255 : 0;
+	if(imp.isInvertedLut())	foreground = 255 - foreground;
+	return foreground;
+}
+
+/**
+ * Sets the 8-bit @param mask in place to the inverted 8-bit @param imp AND @param mask (mask AND NOT imp) - same
+ * pixels as inverting @param imp and running the ImageCalculator with "AND create", but in one pass and without
+ * allocating a result image. @param mask takes the title ("Result of ...") and calibration of that result;
+ * @param imp is not modified. Independent of the kernel variant, as it only saves the allocation.
+ * @return false (nothing done) for other bit depths or stacks
+ * */
+boolean setInvertedAndInMask(ImagePlus imp, ImagePlus mask){
+	if(imp.getBitDepth() != 8 || mask.getBitDepth() != 8 || imp.getStackSize() != 1 || mask.getStackSize() != 1) {
+		return false;
+	}
+	byte [] maskPixels = (byte []) mask.getProcessor().getPixels();
+	PixelKernels.invertAnd((byte []) imp.getProcessor().getPixels(), maskPixels, maskPixels, imp.getWidth());
+	mask.setTitle("Result of " + imp.getShortTitle());
+	mask.setCalibration(imp.getCalibration());
+	return true;
+}
+
+/**
+ * Shows the dialog with the advanced engine settings: implementation choices that give results identical to the
+ * ImageJ reference by construction and only exist to compare the implementations (e.g., with the EquivalenceHarness),
+ * and the validation of the fast engines against ImageJ.
+ * @return false if the dialog was canceled
+ * */
+private boolean enterEngineSettings() {
+	GenericDialog gd = new GenericDialog(PLUGINNAME + " on " + System.getProperty("os.name") + " - advanced engine settings");	
+	//show Dialog-----------------------------------------------------------------
+	//.setInsets(top, left, bottom)
+	gd.setInsets(0,0,0);	gd.addMessage(PLUGINNAME + ", Version " + PLUGINVERSION + ", \u00a9 2019-2022 JN Hansen", SuperHeadingFont);
+	gd.setInsets(10,0,0);	gd.addMessage("ADVANCED ENGINE SETTINGS:", HeadingFont);
+	gd.setInsets(0,0,0);	gd.addMessage("These settings do not change the results, only how they are computed.", InstructionsFont);
+	gd.setInsets(5,0,0);	gd.addChoice("Pixel kernels", kernelVariant, chosenKernelVariant);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Fuse consecutive pixel passes (subtract blurred image + non-zero mask, threshold + ROI)", fusedPasses);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Blur the copy to subtract directly in the 32-bit output (no temporary image per plane)", blurInOutput);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Maximum / minimum of binary masks via distance transform (time independent of radius)", edtMorphology);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Fill holes of binary masks in linear time (multi-threaded)", runFillHoles);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Despeckle binary masks bit-parallel (3x3 majority, 64 pixels per operation)", bitDespeckle);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Exclude zero regions via bitmask (no ROI lookup per pixel)", regionBitmask);
+	gd.setInsets(5,0,0);	gd.addCheckbox("Report deviation of the fast engines from ImageJ on a central sample of each image (slower)", reportEngineDeviation);
+	
+	gd.showDialog();
+	//show Dialog-----------------------------------------------------------------
+
+	//read and process variables--------------------------------------------------
+	chosenKernelVariant = gd.getNextChoice();
+	fusedPasses = gd.getNextBoolean();
+	blurInOutput = gd.getNextBoolean();
+	edtMorphology = gd.getNextBoolean();
+	runFillHoles = gd.getNextBoolean();
+	bitDespeckle = gd.getNextBoolean();
+	regionBitmask = gd.getNextBoolean();
+	reportEngineDeviation = gd.getNextBoolean();
+	//read and process variables--------------------------------------------------
+	return !gd.wasCanceled();
+}
+
 /**
  * Import settings from existing file
  */
@@ -2002,20 +2906,120 @@ private boolean enterSettings(int defaultType) {
 		gd.showDialog();
 		//show Dialog-----------------------------------------------------------------
 
-		//read and process variables--------------------------------------------------	
-		{
-			numberOfChannels = (int) gd.getNextNumber();
-			includeDuplicateChannel = gd.getNextBoolean();
-			deleteOtherChannels = gd.getNextBoolean();
-		}
-		//read and process variables--------------------------------------------------
-		
-		if (gd.wasCanceled()) return false;	
-	}
-		
-	/*
-		Depending on set variant show default settings for one or the other
-	*/
+		//read and process variables--------------------------------------------------	
+		{
+			numberOfChannels = (int) gd.getNextNumber();
+			includeDuplicateChannel = gd.getNextBoolean();
+			deleteOtherChannels = gd.getNextBoolean();
+		}
+		//read and process variables--------------------------------------------------
+		
+		if (gd.wasCanceled()) return false;	
+	}
+		
+	/*
+		Depending on set variant show default settings for one or the other
+	*/
+	setDefaultChannelSettings(defaultType);
+	
+	for(int i = 0; i < numberOfChannels; i++) {
+		while(true) {
+			/*
+			 * Show dialog
+			 * */
+			GenericDialog gd = new GenericDialog(PLUGINNAME + " on " + System.getProperty("os.name") + " - set parameters");	
+			//show Dialog-----------------------------------------------------------------
+			//.setInsets(top, left, bottom)
+			gd.setInsets(0,0,0);			gd.addMessage(PLUGINNAME + ", Version " + PLUGINVERSION + ", \u00a9 2019-2022 JN Hansen", SuperHeadingFont);
+			gd.setInsets(0,0,0);			gd.addMessage("Settings for channel #" + (i+1), HeadingFont);			
+			
+			gd.setInsets(10,5,0);		gd.addNumericField("Channel Nr (>= 1 & <= nr of channels) to be segmented", channelIDs [i], 0);
+			gd.setInsets(0,0,0);			gd.addCheckbox("Subtract background before analysis - radius (calibrated unit, e.g., µm)", subtractBackground [i]);
+			gd.setInsets(-23,330,0);		gd.addNumericField("", subtractBGRadius [i], 3);
+			
+			gd.setInsets(0,0,0);			gd.addCheckbox("Blur image before analysis - Gaussian sigma (calibrated unit, e.g., µm)", preBlur [i]);
+			gd.setInsets(-23,330,0);		gd.addNumericField("", preBlurSigma [i], 3);
+			
+			gd.setInsets(0,0,0);			gd.addCheckbox("Subtract blurred copy of image (to normalize) - Gauss sigma (calibrated unit, e.g., µm)", subtractBluredImage [i]);
+			gd.setInsets(-23,330,0);		gd.addNumericField("", subtractBlurSigma [i], 3);
+			
+			
+			gd.setInsets(0,0,0);			gd.addChoice("Segmentation method", algorithm, chosenAlgorithm [i]);
+			gd.setInsets(0,5,0);			gd.addNumericField("If 'CUSTOM threshold' selected, specify threshold here", customThr [i], 2);
+			gd.setInsets(0,0,0);			gd.addChoice("Background definition", bgMethod, selectedBgVariant [i]);
+			gd.setInsets(0,0,0);			gd.addCheckbox("Exclude zero-pixels in threshold calc. - tolerated gap radius (calibrated unit, e.g., µm)", excludeZeroRegions [i]);
+			gd.setInsets(-23,330,0);		gd.addNumericField("", closeGapsRadius [i], 3);
+			
+			gd.setInsets(0,0,0);			gd.addCheckbox("Despeckle segmented image", despeckle [i]);
+
+			gd.setInsets(0,0,0);			gd.addCheckbox("Detect tissue regions and remove smaller regions | minimum radius (calibrated unit, e.g., µm)", removeParticles [i]);
+			gd.setInsets(-23,330,0);		gd.addNumericField("", removeRadius [i], 2);
+			
+			gd.setInsets(0,0,0);			gd.addCheckbox("During detecting tissue regions, close gaps | distance (calibrated unit, e.g., µm)", linkForROI [i]);
+			gd.setInsets(-23,330,0);		gd.addNumericField("", linkGapsForRemoveRadius [i], 2);
+			
+			gd.setInsets(0,0,0);			gd.addCheckbox("Fill holes in segmented image", fillHoles [i]);
+			
+			gd.setInsets(0,0,0);			gd.addCheckbox("Apply Watershed algorithm", watershed [i]);
+			
+			gd.setInsets(10,0,0);		gd.addMessage("NOTE: When using StarDist as segmentation method, we recommend to disable any post-processing of the segmentation (despecling, ..., watershed).", InstructionsFont);		
+			gd.setInsets(0,0,0);		gd.addMessage("Pre-processing may disturb segmentation, as well. Thus, if you try StarDist, we recommend to first try it while disabling all checkboxes in this dialog.", InstructionsFont);
+			
+			gd.showDialog();
+			//show Dialog-----------------------------------------------------------------
+
+			//read and process variables--------------------------------------------------	
+			{
+				channelIDs [i] = (int) gd.getNextNumber();
+				subtractBackground [i] = gd.getNextBoolean();
+				subtractBGRadius [i] = (double) gd.getNextNumber();
+				preBlur [i] = gd.getNextBoolean();
+				preBlurSigma [i] = (double) gd.getNextNumber();
+				subtractBluredImage [i] = gd.getNextBoolean();
+				subtractBlurSigma [i] = (double) gd.getNextNumber();			
+				
+				chosenAlgorithm [i] = gd.getNextChoice();
+				customThr [i] = gd.getNextNumber();
+				selectedBgVariant [i] = gd.getNextChoice();
+				if(selectedBgVariant [i] == bgMethod[0]) {
+					darkBackground [i] = true;
+				}else{
+					darkBackground [i] = false;
+				}
+				
+				excludeZeroRegions [i] = gd.getNextBoolean();
+				closeGapsRadius [i] = (double) gd.getNextNumber();				
+				despeckle [i] = gd.getNextBoolean();
+				removeParticles [i] = gd.getNextBoolean();
+				removeRadius [i] = gd.getNextNumber();
+				linkForROI [i] = gd.getNextBoolean();
+				linkGapsForRemoveRadius [i] = gd.getNextNumber();
+				fillHoles [i] = gd.getNextBoolean();			
+				watershed [i] = gd.getNextBoolean();
+			}
+			//read and process variables--------------------------------------------------
+			
+			if (gd.wasCanceled()) return false;	
+			
+			if(chosenAlgorithm [i].equals("StarDist")) {
+				configureStarDist(i,channelIDs[i]);
+			}
+			
+			if (linkForROI [i] && !removeParticles [i]) {
+				new WaitForUserDialog("'Close gaps ...' option is only available when 'Detect tissue regions ...' option selected. Change of settings required. Dialog will be shown again!").show();
+			}else {
+				break;
+			}
+		}	
+	}	
+	return true;
+}
+
+/**
+ * Initializes the settings arrays for numberOfChannels channels with the default settings
+ * @param defaultType: 0 = histology, 1 = cell culture
+ * */
+void setDefaultChannelSettings(int defaultType) {
 	channelIDs = new int [numberOfChannels];
 	subtractBackground = new boolean [numberOfChannels];
 	subtractBGRadius = new double [numberOfChannels];
@@ -2120,99 +3124,6 @@ private boolean enterSettings(int defaultType) {
 			selectedBgVariant [i] = bgMethod[1];
 		}
 	}
-	
-
-	for(int i = 0; i < numberOfChannels; i++) {
-		while(true) {
-			/*
-			 * Show dialog
-			 * */
-			GenericDialog gd = new GenericDialog(PLUGINNAME + " on " + System.getProperty("os.name") + " - set parameters");	
-			//show Dialog-----------------------------------------------------------------
-			//.setInsets(top, left, bottom)
-			gd.setInsets(0,0,0);			gd.addMessage(PLUGINNAME + ", Version " + PLUGINVERSION + ", \u00a9 2019-2022 JN Hansen", SuperHeadingFont);
-			gd.setInsets(0,0,0);			gd.addMessage("Settings for channel #" + (i+1), HeadingFont);			
-			
-			gd.setInsets(10,5,0);		gd.addNumericField("Channel Nr (>= 1 & <= nr of channels) to be segmented", channelIDs [i], 0);
-			gd.setInsets(0,0,0);			gd.addCheckbox("Subtract background before analysis - radius (calibrated unit, e.g., µm)", subtractBackground [i]);
-			gd.setInsets(-23,330,0);		gd.addNumericField("", subtractBGRadius [i], 3);
-			
-			gd.setInsets(0,0,0);			gd.addCheckbox("Blur image before analysis - Gaussian sigma (calibrated unit, e.g., µm)", preBlur [i]);
-			gd.setInsets(-23,330,0);		gd.addNumericField("", preBlurSigma [i], 3);
-			
-			gd.setInsets(0,0,0);			gd.addCheckbox("Subtract blurred copy of image (to normalize) - Gauss sigma (calibrated unit, e.g., µm)", subtractBluredImage [i]);
-			gd.setInsets(-23,330,0);		gd.addNumericField("", subtractBlurSigma [i], 3);
-			
-			
-			gd.setInsets(0,0,0);			gd.addChoice("Segmentation method", algorithm, chosenAlgorithm [i]);
-			gd.setInsets(0,5,0);			gd.addNumericField("If 'CUSTOM threshold' selected, specify threshold here", customThr [i], 2);
-			gd.setInsets(0,0,0);			gd.addChoice("Background definition", bgMethod, selectedBgVariant [i]);
-			gd.setInsets(0,0,0);			gd.addCheckbox("Exclude zero-pixels in threshold calc. - tolerated gap radius (calibrated unit, e.g., µm)", excludeZeroRegions [i]);
-			gd.setInsets(-23,330,0);		gd.addNumericField("", closeGapsRadius [i], 3);
-			
-			gd.setInsets(0,0,0);			gd.addCheckbox("Despeckle segmented image", despeckle [i]);
-
-			gd.setInsets(0,0,0);			gd.addCheckbox("Detect tissue regions and remove smaller regions | minimum radius (calibrated unit, e.g., µm)", removeParticles [i]);
-			gd.setInsets(-23,330,0);		gd.addNumericField("", removeRadius [i], 2);
-			
-			gd.setInsets(0,0,0);			gd.addCheckbox("During detecting tissue regions, close gaps | distance (calibrated unit, e.g., µm)", linkForROI [i]);
-			gd.setInsets(-23,330,0);		gd.addNumericField("", linkGapsForRemoveRadius [i], 2);
-			
-			gd.setInsets(0,0,0);			gd.addCheckbox("Fill holes in segmented image", fillHoles [i]);
-			
-			gd.setInsets(0,0,0);			gd.addCheckbox("Apply Watershed algorithm", watershed [i]);
-			
-			gd.setInsets(10,0,0);		gd.addMessage("NOTE: When using StarDist as segmentation method, we recommend to disable any post-processing of the segmentation (despecling, ..., watershed).", InstructionsFont);		
-			gd.setInsets(0,0,0);		gd.addMessage("Pre-processing may disturb segmentation, as well. Thus, if you try StarDist, we recommend to first try it while disabling all checkboxes in this dialog.", InstructionsFont);
-			
-			gd.showDialog();
-			//show Dialog-----------------------------------------------------------------
-
-			//read and process variables--------------------------------------------------	
-			{
-				channelIDs [i] = (int) gd.getNextNumber();
-				subtractBackground [i] = gd.getNextBoolean();
-				subtractBGRadius [i] = (double) gd.getNextNumber();
-				preBlur [i] = gd.getNextBoolean();
-				preBlurSigma [i] = (double) gd.getNextNumber();
-				subtractBluredImage [i] = gd.getNextBoolean();
-				subtractBlurSigma [i] = (double) gd.getNextNumber();			
-				
-				chosenAlgorithm [i] = gd.getNextChoice();
-				customThr [i] = gd.getNextNumber();
-				selectedBgVariant [i] = gd.getNextChoice();
-				if(selectedBgVariant [i] == bgMethod[0]) {
-					darkBackground [i] = true;
-				}else{
-					darkBackground [i] = false;
-				}
-				
-				excludeZeroRegions [i] = gd.getNextBoolean();
-				closeGapsRadius [i] = (double) gd.getNextNumber();				
-				despeckle [i] = gd.getNextBoolean();
-				removeParticles [i] = gd.getNextBoolean();
-				removeRadius [i] = gd.getNextNumber();
-				linkForROI [i] = gd.getNextBoolean();
-				linkGapsForRemoveRadius [i] = gd.getNextNumber();
-				fillHoles [i] = gd.getNextBoolean();			
-				watershed [i] = gd.getNextBoolean();
-			}
-			//read and process variables--------------------------------------------------
-			
-			if (gd.wasCanceled()) return false;	
-			
-			if(chosenAlgorithm [i].equals("StarDist")) {
-				configureStarDist(i,channelIDs[i]);
-			}
-			
-			if (linkForROI [i] && !removeParticles [i]) {
-				new WaitForUserDialog("'Close gaps ...' option is only available when 'Detect tissue regions ...' option selected. Change of settings required. Dialog will be shown again!").show();
-			}else {
-				break;
-			}
-		}	
-	}	
-	return true;
 }
 
 /**
@@ -2275,7 +3186,7 @@ private boolean configureStarDist(int id, int channelID) {
 	return true;
 }
 
-private void addFooter(TextPanel tp, Date currentDate){
+private void addFooter(MetadataText tp, Date currentDate){
 	tp.append("");
 	tp.append("Datafile was generated on " + FullDateFormatter2.format(currentDate) + " by '"
 			+PLUGINNAME+"', an ImageJ plug-in by Jan Niklas Hansen (jan.hansen@uni-bonn.de, https://github.com/hansenjn/AdipoQ_Preparator).");
@@ -2288,19 +3199,15 @@ private void addFooter(TextPanel tp, Date currentDate){
 /**
  * @param channel: 1 <= channel <= # channels
  * */
-private static ImagePlus copyChannel(ImagePlus imp, int channel, boolean adjustDisplayRangeTo16bit, boolean copyOverlay){
+static ImagePlus copyChannel(ImagePlus imp, int channel, boolean adjustDisplayRangeTo16bit, boolean copyOverlay){
 	ImagePlus impNew = IJ.createHyperStack("channel image", imp.getWidth(), imp.getHeight(), 1, imp.getNSlices(), imp.getNFrames(), imp.getBitDepth());
 	int index = 0, indexNew = 0;
 	
-	for(int x = 0; x < imp.getWidth(); x++){
-		for(int y = 0; y < imp.getHeight(); y++){
-			for(int s = 0; s < imp.getNSlices(); s++){
-				for(int f = 0; f < imp.getNFrames(); f++){
-					index = imp.getStackIndex(channel, s+1, f+1)-1;
-					indexNew = impNew.getStackIndex(1, s+1, f+1)-1;
-					impNew.getStack().setVoxel(x, y, indexNew, imp.getStack().getVoxel(x, y, index));
-				}					
-			}
+	for(int s = 0; s < imp.getNSlices(); s++){
+		for(int f = 0; f < imp.getNFrames(); f++){
+			index = imp.getStackIndex(channel, s+1, f+1)-1;
+			indexNew = impNew.getStackIndex(1, s+1, f+1)-1;
+			new Plane(imp, index).copyTo(new Plane(impNew, indexNew));
 		}
 	}
 	if(adjustDisplayRangeTo16bit)	impNew.setDisplayRange(0, 4095);
@@ -2313,14 +3220,63 @@ private static ImagePlus copyChannel(ImagePlus imp, int channel, boolean adjustD
 	return impNew;
 }
 
+/**
+ * Copies the plane at @param sourceIndex (0-based stack index) of @param source into the plane
+ * at @param targetIndex (0-based stack index) of @param target (same width and height required).
+ * */
+static void copyPlane(ImagePlus source, int sourceIndex, ImagePlus target, int targetIndex){
+	new Plane(source, sourceIndex).copyTo(new Plane(target, targetIndex));
+}
+
+/**
+ * Writes all channels of @param imp to @param outImp and inserts the segmented image from @param tempImp
+ * in front of each channel listed in channelIDs. If the bit depth of a segmented image differs from the 
+ * bit depth of @param outImp, non-zero pixels are written with the maximum value of the output bit depth.
+ * */
+void assembleOutputWithDuplicateChannels(ImagePlus imp, ImagePlus [] tempImp, ImagePlus outImp){
+	double maxValue = Math.pow(2.0, imp.getBitDepth())-1.0;
+	int indexOld, indexNew, cNew;
+	for(int s = 0; s < imp.getNSlices(); s++){
+		for(int f = 0; f < imp.getNFrames(); f++){
+			cNew = 0;
+			for(int c = 0; c < imp.getNChannels(); c++){
+				for(int segmC = 0; segmC < channelIDs.length; segmC++){
+					if(c+1 == channelIDs [segmC]){
+						indexOld = tempImp [segmC].getStackIndex(1, s+1, f+1)-1;
+						indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
+						if(outImp.getBitDepth() != tempImp[segmC].getBitDepth()) {
+							new Plane(tempImp [segmC], indexOld).copyNonZeroAsValue(new Plane(outImp, indexNew), maxValue);
+						}else {
+							new Plane(tempImp [segmC], indexOld).copyTo(new Plane(outImp, indexNew));
+						}
+						cNew ++;
+						break;
+					}
+				}
+				indexOld = imp.getStackIndex(c+1, s+1, f+1)-1;
+				indexNew = outImp.getStackIndex(c+cNew+1, s+1, f+1)-1;
+				new Plane(imp, indexOld).copyTo(new Plane(outImp, indexNew));
+			}
+		}
+	}
+}
+
 /**
  * @return a threshold for the slice image <s> in the ImagePlus <parImp> for the image <imp>
  * range: 1 <= z <= stacksize
+ * If @param regionMask (8-bit, size of the image) is not null, the histogram contains the pixels that are not zero in
+ * @param regionMask instead of the pixels in the ROI of @param imp.
  * */
-private double[] getSingleSliceImageThresholds (ImagePlus imp, int s, String chosenAlg, boolean darkBackground){
+private double[] getSingleSliceImageThresholds (ImagePlus imp, int s, String chosenAlg, boolean darkBackground,
+		ImageProcessor regionMask){
 	//calculate thresholds	
 	imp.setSlice(s);
-	imp.getProcessor().setRoi(imp.getRoi());
+	if(regionMask != null) {
+		imp.getProcessor().setRoi(new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
+		imp.getProcessor().setMask(regionMask);
+	}else {
+		imp.getProcessor().setRoi(imp.getRoi());
+	}
 	imp.getProcessor().setSliceNumber(s);
 	imp.getProcessor().setAutoThreshold(Method.valueOf(Method.class, chosenAlg), darkBackground);
 	//Before: IJ.setAutoThreshold(imp, (chosenAlg + " dark"));
@@ -2328,36 +3284,41 @@ private double[] getSingleSliceImageThresholds (ImagePlus imp, int s, String cho
 	return new double [] {imp.getProcessor().getMinThreshold(),imp.getProcessor().getMaxThreshold()};
 }
 
-private void segmentImage(ImagePlus imp, double threshold, int z, ImagePlus impTemp, int zTemp, 
-		boolean keepIntensities, boolean darkbackground){
-	double maxValue = Math.pow(2.0, imp.getBitDepth()) - 1;		
-	if(darkbackground) {
-		for(int x = 0; x < imp.getWidth(); x++){
-			for(int y = 0; y < imp.getHeight(); y++){
-				double pxintensity = impTemp.getStack().getVoxel(x,y,zTemp);
-				if(pxintensity < threshold){
-					imp.getStack().setVoxel( x, y, z, 0.0);
-				}else if(!keepIntensities){
-					imp.getStack().setVoxel( x, y, z, maxValue);
-				}
-			}
-		}		
+/**
+ * Segments @param imp in place with @param threshold (see segmentImage below). If fusedPasses is set, @param regionRoi
+ * is not null and @param imp has a single plane, the pixels outside @param regionRoi are set to zero in the same pass
+ * (see FusedPasses) - same result as a subsequent setRegionsOutsideRoiToZero. If @param regionMask (the pixels of
+ * @param regionRoi, 8-bit) is not null, it is used instead of @param regionRoi.
+ * @return true if the pixels outside @param regionRoi were set to zero
+ * */
+boolean segmentImage(ImagePlus imp, double threshold, Roi regionRoi, ImageProcessor regionMask, boolean darkBackground){
+	if(!fusedPasses || regionRoi == null || imp.getStackSize() != 1) {
+		segmentImage(imp, threshold, 0, imp, 0, false, darkBackground);
+		return false;
+	}
+	double maxValue = Math.pow(2.0, imp.getBitDepth()) - 1;
+	Plane plane = new Plane(imp, 0);
+	if(regionMask != null) {
+		FusedPasses.segmentInsideMask(plane, plane, threshold, darkBackground, false, maxValue, (byte []) regionMask.getPixels(),
+				useVectorKernels);
 	}else {
-		for(int x = 0; x < imp.getWidth(); x++){
-			for(int y = 0; y < imp.getHeight(); y++){
-				double pxintensity = impTemp.getStack().getVoxel(x,y,zTemp);
-				if(pxintensity > threshold){
-					imp.getStack().setVoxel( x, y, z, 0.0);
-				}else if(!keepIntensities){
-					imp.getStack().setVoxel( x, y, z, maxValue);
-				}
-			}
-		}	
+		FusedPasses.segmentInsideRoi(plane, plane, threshold, darkBackground, false, maxValue, regionRoi, useVectorKernels);
 	}
+	return true;
+}
+
+void segmentImage(ImagePlus imp, double threshold, int z, ImagePlus impTemp, int zTemp, 
+		boolean keepIntensities, boolean darkbackground){
+	double maxValue = Math.pow(2.0, imp.getBitDepth()) - 1;
+	Plane plane = new Plane(imp, z), source = new Plane(impTemp, zTemp);
+	if(useVectorKernels && PixelKernels.segment(plane, source, threshold, darkbackground, keepIntensities, maxValue)) {
+		return;
+	}
+	plane.segment(source, threshold, darkbackground, keepIntensities, maxValue);
 	
 }
 
-private void addSettingsBlockToPanel(TextPanel tp, Date startDate, String name, boolean multiSeries, int series, ImagePlus imp) {
+private void addSettingsBlockToPanel(MetadataText tp, Date startDate, String name, boolean multiSeries, int series, ImagePlus imp) {
 	tp.append("Starting date:	" + FullDateFormatter.format(startDate));
 	if(multiSeries) {
 		tp.append("Image name:	" + name + "	series:	" + (series+1));
@@ -2386,6 +3347,104 @@ private void addSettingsBlockToPanel(TextPanel tp, Date startDate, String name,
 		if(deleteOtherChannels){
 			tp.append("	Deleted all channels except the channel(s) to be segmented.");
 		}else{tp.append("");}
+		
+		if(useVectorKernels){
+			tp.append("	Pixel kernels:	" + kernelVariant[0]);
+		}else if(chosenKernelVariant.equals(kernelVariant[0])){
+			tp.append("	Pixel kernels:	" + kernelVariant[1] + " - vectorized kernels not supported by the Java VM");
+		}else{
+			tp.append("	Pixel kernels:	" + kernelVariant[1]);
+		}
+		
+		if(fusedPasses){
+			tp.append("	Pixel passes:	fused");
+		}else{
+			tp.append("	Pixel passes:	separate");
+		}
+		
+		if(blurInOutput){
+			tp.append("	Blurred copy for subtraction:	blurred in the 32-bit output image");
+		}else{
+			tp.append("	Blurred copy for subtraction:	blurred in a temporary image");
+		}
+		
+		if(chosenBlurEngine.equals(blurEngineVariant[1])){
+			tp.append("	Gaussian blur engine:	" + blurEngineVariant[1] + " - for sigma >= " + df3.format(RecursiveGaussian.MIN_SIGMA)
+				+ " px (smaller sigma: ImageJ), max. deviation from the exact Gaussian kernel < " + df3.format(RecursiveGaussian.MAX_DEVIATION * 100.0)
+				+ "% of the intensity range");
+		}else{
+			tp.append("	Gaussian blur engine:	" + blurEngineVariant[0]);
+		}
+		
+		if(chosenBackgroundEngine.equals(backgroundEngineVariant[1])){
+			tp.append("	Background subtraction engine:	" + backgroundEngineVariant[1] + " - provisional bound of the deviation from the rolling ball: mean < "
+					+ df3.format(FastBackground.MAX_MEAN_DEVIATION * 100.0) + "%, max. < " + df3.format(FastBackground.MAX_DEVIATION * 100.0) 
+					+ "% of the intensity range" + (reportEngineDeviation ? ", measured deviation: see segmentation channel results" : ""));
+		}else{
+			tp.append("	Background subtraction engine:	" + backgroundEngineVariant[0]);
+		}
+		
+		if(edtMorphology){
+			tp.append("	Maximum / minimum of binary masks:	distance transform");
+		}else{
+			tp.append("	Maximum / minimum of binary masks:	ImageJ rank filters");
+		}
+		
+		if(runFillHoles){
+			tp.append("	Fill holes:	run-length union-find (multi-threaded)");
+		}else{
+			tp.append("	Fill holes:	ImageJ Binary > Fill Holes");
+		}
+		
+		if(regionBitmask){
+			tp.append("	Non-zero region lookup:	bitmask");
+		}else{
+			tp.append("	Non-zero region lookup:	ROI");
+		}
+		
+		tp.append("	Outline of the non-zero-pixel ROI:	" + chosenRoiOutline);
+		if(saveRegionRuns){
+			tp.append("	Non-zero-pixel region also saved as run-length mask:	_ROI_C#_runs.txt");
+		}
+		
+		if(bitDespeckle){
+			tp.append("	Despeckle of binary masks:	bit-parallel 3x3 majority");
+		}else{
+			tp.append("	Despeckle of binary masks:	ImageJ Despeckle");
+		}
+		
+		if(chosenWatershedEngine.equals(watershedEngineVariant[1])){
+			tp.append("	Watershed engine:	" + watershedEngineVariant[1] + " - provisional bound of the pixels deviating from ImageJ's watershed: < "
+					+ df3.format(FastWatershed.MAX_DEVIATING_FRACTION * 100.0) + "%"
+					+ (reportEngineDeviation ? ", measured deviation: see segmentation channel results" : ""));
+		}else{
+			tp.append("	Watershed engine:	" + watershedEngineVariant[0]);
+		}
+		
+		Integer task = currentTask.get();
+		if(task != null && task >= 0 && taskSequentialChannels != null && taskSequentialChannels [task]){
+			tp.append("	Segmentation channels:	processed sequentially (parallel processing exceeds the available memory)");
+		}else if(processesChannelsConcurrently(Prefs.getThreads())){
+			tp.append("	Segmentation channels:	processed in parallel (except StarDist)");
+		}else{
+			tp.append("	Segmentation channels:	processed sequentially");
+		}
+		tp.append("	Images processed in parallel:	" + df0.format(parallelImages));
+		tp.append("	Task order:	" + chosenTaskOrder);
+		tp.append("	Threads per image:	" + df0.format(Prefs.getThreads()));
+		tp.append("	Minimum tile size (pixels per row band):	" + df0.format(RowBands.minPixelsPerBand));
+		if(autoTuneResult != null){
+			tp.append("	Auto-tuning:	" + autoTuneResult);
+		}else if(autoTune){
+			tp.append("	Auto-tuning:	not possible - settings not changed");
+		}else{
+			tp.append("	Auto-tuning:	off");
+		}
+		if(pipelineIO && selectedTaskVariant.equals(taskVariant[1])){
+			tp.append("	Image file input / output:	pipelined (reading, processing and writing overlap)");
+		}else{
+			tp.append("	Image file input / output:	sequential");
+		}
 	}
 	
 	for(int i = 0; i < channelIDs.length; i++) {
@@ -2467,27 +3526,78 @@ private void addSettingsBlockToPanel(TextPanel tp, Date startDate, String name,
 	tp.append("");
 }
 
-private ImagePlus subtractABluredImage(ImagePlus imp, double radius) {
+/**
+ * @return true if a Gaussian blur with @param sigma (pixels) is computed by the RecursiveGaussian: if the recursive
+ * engine is chosen and @param sigma is large enough for the approximation (RecursiveGaussian.MIN_SIGMA)
+ * */
+boolean isRecursiveBlur(double sigma) {
+	return chosenBlurEngine.equals(blurEngineVariant[1]) && sigma >= RecursiveGaussian.MIN_SIGMA;
+}
+
+/**
+ * Blurs @param ip in place with a Gaussian of @param sigma (pixels) using the chosen blur engine (see isRecursiveBlur).
+ * 8- and 16-bit images are blurred as float copy and rounded, as in ImageJ.
+ * */
+void blurGaussian(ImageProcessor ip, double sigma) {
+	if(!isRecursiveBlur(sigma)) {
+		ip.blurGaussian(sigma);
+		return;
+	}
+	ip.resetRoi();
+	for(int c = 0; c < ip.getNChannels(); c++) {
+		FloatProcessor fp = ip.toFloat(c, null);
+		RecursiveGaussian.blur(fp, sigma);
+		ip.setPixels(c, fp);
+	}
+}
+
+ImagePlus subtractABluredImage(ImagePlus imp, double radius) {
+	return subtractABluredImage(imp, radius, null);
+}
+
+/**
+ * @return a 32-bit image of @param imp minus @param imp blurred with a Gaussian of sigma @param radius.
+ * If @param aboveZeroMask (8-bit, single plane) is not null, it receives 255 where the difference is above zero and 0
+ * elsewhere, computed in the same pass as the difference (see FusedPasses).
+ * If blurInOutput is set, each plane is copied into the output image, blurred there and replaced by the difference,
+ * instead of blurring a copy in a temporary image of the bit depth of @param imp. The blurred values are rounded to the
+ * bit depth of @param imp as ImageJ does when blurring the temporary image, so the results are the same.
+ * */
+ImagePlus subtractABluredImage(ImagePlus imp, double radius, ImagePlus aboveZeroMask) {
 	ImagePlus outImp = IJ.createHyperStack("divided image", imp.getWidth(), imp.getHeight(), 1, imp.getNSlices(), imp.getNFrames(), 32);
 	outImp.setCalibration(imp.getCalibration());
 	outImp.setOverlay(imp.getOverlay());
 	ImagePlus tempImp;
 	for(int s = 0; s < imp.getNSlices(); s++) {
 		for(int t = 0; t < imp.getNFrames(); t++) {
-			tempImp = IJ.createHyperStack("temp", imp.getWidth(), imp.getHeight(), 1, 1, 1, imp.getBitDepth());
-			for(int x = 0; x < imp.getWidth(); x++) {
-				for(int y = 0; y < imp.getHeight(); y++) {
-					tempImp.getStack().setVoxel(x, y, 0, imp.getStack().getVoxel(x, y, imp.getStackIndex(1 , s+1, t+1)-1));
+			if(blurInOutput && imp.getBitDepth() != 24) {
+				int outIndex = outImp.getStackIndex(1, s+1, t+1);
+				Plane plane = new Plane(imp, imp.getStackIndex(1 , s+1, t+1)-1);
+				Plane outPlane = new Plane(outImp, outIndex-1);
+				plane.copyTo(outPlane);
+				
+				if(isRecursiveBlur(radius)) {
+					RecursiveGaussian.blur((FloatProcessor) outImp.getStack().getProcessor(outIndex), radius);
+				}else {
+					//same accuracy as ImageProcessor.blurGaussian(radius) on a processor of the bit depth of imp
+					GaussianBlur gb = new GaussianBlur();
+					gb.showProgress(false);
+					gb.blurGaussian(outImp.getStack().getProcessor(outIndex), radius, radius, imp.getBitDepth() == 8 ? 0.002 : 0.0002);
 				}
+				FusedPasses.subtractFilteredAndMaskAboveZero(outPlane, plane, aboveZeroMask != null ? new Plane(aboveZeroMask, 0) : null);
+				continue;
 			}
+			tempImp = IJ.createHyperStack("temp", imp.getWidth(), imp.getHeight(), 1, 1, 1, imp.getBitDepth());
+			Plane plane = new Plane(imp, imp.getStackIndex(1 , s+1, t+1)-1);
+			Plane blurredPlane = new Plane(tempImp, 0);
+			plane.copyTo(blurredPlane);
 			
-			tempImp.getProcessor().blurGaussian(radius);
-			for(int x = 0; x < imp.getWidth(); x++) {
-				for(int y = 0; y < imp.getHeight(); y++) {
-					outImp.getStack().setVoxel(x, y, outImp.getStackIndex(1, s+1, t+1)-1, 
-							imp.getStack().getVoxel(x, y, imp.getStackIndex(1 , s+1, t+1)-1) 
-							- tempImp.getStack().getVoxel(x, y, 0));
-				}
+			blurGaussian(tempImp.getProcessor(), radius);
+			Plane outPlane = new Plane(outImp, outImp.getStackIndex(1, s+1, t+1)-1);
+			if(aboveZeroMask != null) {
+				FusedPasses.subtractAndMaskAboveZero(outPlane, plane, blurredPlane, new Plane(aboveZeroMask, 0), useVectorKernels);
+			}else if(!useVectorKernels || !PixelKernels.setDifference(outPlane, plane, blurredPlane)) {
+				outPlane.setDifference(plane, blurredPlane);
 			}
 		}
 	}
@@ -2530,33 +3640,22 @@ ImagePlus getOtherBitImageFromBinary32bit(ImagePlus imp, boolean copyOverlay, in
 	int index, indexNew;
 	
 
-	for(int x = 0; x < imp.getWidth(); x++){
-		for(int y = 0; y < imp.getHeight(); y++){
-			for(int s = 0; s < imp.getNSlices(); s++){
-				for(int f = 0; f < imp.getNFrames(); f++){
-					index = imp.getStackIndex(1, s+1, f+1)-1;
-					if(imp.getStack().getVoxel(x, y, index) < min) {
-						min = imp.getStack().getVoxel(x, y, index);
-					}
-				}					
+	for(int s = 0; s < imp.getNSlices(); s++){
+		for(int f = 0; f < imp.getNFrames(); f++){
+			index = imp.getStackIndex(1, s+1, f+1)-1;
+			double planeMin = new Plane(imp, index).getMin();
+			if(planeMin < min) {
+				min = planeMin;
 			}
 		}
 	}
 	
 	{
-		for(int x = 0; x < imp.getWidth(); x++){
-			for(int y = 0; y < imp.getHeight(); y++){
-				for(int s = 0; s < imp.getNSlices(); s++){
-					for(int f = 0; f < imp.getNFrames(); f++){
-						index = imp.getStackIndex(1, s+1, f+1)-1;
-						indexNew = impNew.getStackIndex(1, s+1, f+1)-1;
-						if(imp.getStack().getVoxel(x, y, index) == min) {
-							impNew.getStack().setVoxel(x, y, indexNew, 0.0);
-						}else {
-							impNew.getStack().setVoxel(x, y, indexNew, maxNew);
-						}
-					}					
-				}
+		for(int s = 0; s < imp.getNSlices(); s++){
+			for(int f = 0; f < imp.getNFrames(); f++){
+				index = imp.getStackIndex(1, s+1, f+1)-1;
+				indexNew = impNew.getStackIndex(1, s+1, f+1)-1;
+				new Plane(imp, index).writeNotEqualMask(new Plane(impNew, indexNew), min, maxNew);
 			}
 		}
 	}
@@ -2601,6 +3700,107 @@ private static LUT getLUT(double [][] array, boolean multiplyWith255) {
 	}	
 }
 
+/**
+ * Progress reporting - all calls are forwarded to the ProgressDialog (if available, i.e., not headless)
+ * and to the stageTimer (if set, e.g., by a benchmark). Synchronized, since segmentation channels and
+ * tasks may report progress from several threads. The task of the calling thread is taken from currentTask,
+ * which is inherited by the threads processing the segmentation channels of the task. Threads with a negative
+ * currentTask (sample runs of the AutoTuner) do not report progress.
+ * */
+synchronized void updateProgress(String text) {
+	Integer task = currentTask.get();
+	if(task != null && task < 0)	return;
+	if(stageTimer != null)	stageTimer.startStage(text);
+	if(progress != null) {
+		if(task == null) {
+			progress.updateBarText(text);
+		}else {
+			progress.updateBarText(task+1, text);
+		}
+	}
+}
+
+synchronized void addProgress(double addFractionOfTask) {
+	Integer task = currentTask.get();
+	if(task != null && task < 0)	return;
+	if(task == null || taskProgress == null) {
+		if(progress != null)	progress.addToBar(addFractionOfTask);
+		return;
+	}
+	taskProgress [task] += addFractionOfTask;
+	if(taskProgress [task] >= 1.0)	taskProgress [task] = 0.9;
+	updateProgressBar();
+}
+
+synchronized void setProgress(double fractionOfTask) {
+	Integer task = currentTask.get();
+	if(task != null && task < 0)	return;
+	if(task == null || taskProgress == null) {
+		if(progress != null)	progress.setBar(fractionOfTask);
+		return;
+	}
+	taskProgress [task] = fractionOfTask;
+	if(taskProgress [task] > 1.0)	taskProgress [task] = 0.9;
+	updateProgressBar();
+}
+
+/**
+ * Marks the task with index @param task as finished. The progress dialog lists the tasks in order, 
+ * thus tasks finished before a preceding task are moved once the preceding task is finished. 
+ * Repeated calls for the same task are ignored.
+ * */
+synchronized void moveProgressTask(int task) {
+	if(stageTimer != null)	stageTimer.stop();
+	if(taskMoved == null) {
+		if(progress != null)	progress.moveTask(task);
+		return;
+	}
+	if(taskMoved [task])	return;
+	taskMoved [task] = true;
+	taskProgress [task] = 1.0;
+	updateProgressBar();
+	while(nextTaskToMove < taskMoved.length && taskMoved [nextTaskToMove]) {
+		if(progress != null)	progress.moveTask(nextTaskToMove);
+		nextTaskToMove++;
+	}
+}
+
+/**
+ * Resets the progress of the individual tasks for processing @param tasks tasks
+ * */
+synchronized void startTaskProgress(int tasks) {
+	taskProgress = new double [tasks];
+	taskMoved = new boolean [tasks];
+	nextTaskToMove = 0;
+}
+
+private void updateProgressBar() {
+	if(progress == null)	return;
+	double sum = 0.0;
+	for(int i = 0; i < taskProgress.length; i++) {
+		sum += taskProgress [i];
+	}
+	progress.setBarForAllTasks(sum / taskProgress.length);
+}
+
+synchronized void notifyProgress(String message, int type) {
+	if(progress != null) {
+		progress.notifyMessage(message, type);
+	}else {
+		IJ.log(message);
+	}
+}
+
+/**
+ * @return the exception thrown in a task of an ExecutorService as unchecked exception (errors are thrown directly)
+ * */
+private static RuntimeException getUncheckedCause(ExecutionException e) {
+	Throwable cause = e.getCause();
+	if(cause instanceof Error)	throw (Error) cause;
+	if(cause instanceof RuntimeException)	return (RuntimeException) cause;
+	return new RuntimeException(cause);
+}
+
 private void stayAwake() {
 	try {
 		robo.mouseMove(MouseInfo.getPointerInfo().getLocation().x, MouseInfo.getPointerInfo().getLocation().y);		
@@ -0,0 +1,229 @@
+package adipoQ_preparator_jnh;
+/**
+ * Runtime tuning of the parallel execution settings for the machine the plugin runs on. Before a batch is processed,
+ * a sample (the central SAMPLE_EDGE x SAMPLE_EDGE pixels of the segmentation channels of the first image) is processed
+ * with the current processing settings in different configurations of
+ * 	- the number of images processed in parallel (AdipoQPreparatorMain.parallelImages; measured by processing
+ * 	copies of the sample at the same time),
+ * 	- the number of threads per image (Prefs.getThreads(), used for the row bands and the segmentation channels),
+ * 	- the minimum tile size of the row bands (RowBands.minPixelsPerBand),
+ * 	- parallel or sequential processing of the segmentation channels (AdipoQPreparatorMain.parallelChannels).
+ * Each configuration is measured RUNS times; its throughput (pixels per second) is the median of the runs, its peak heap
+ * usage the maximum of the heap allocated during the runs. Configurations whose peak heap usage exceeds the memory budget
+ * are rejected, and the remaining configuration with the highest throughput is used for the rest of the batch. The
+ * sample is processed without writing any output.
+ */
+
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.plugin.CompositeConverter;
+import ij.process.ImageProcessor;
+
+class AutoTuner {
+	static final int SAMPLE_EDGE = 2048;
+	static final int [] TILE_SIZES = {1 << 16, RowBands.MIN_PIXELS_PER_BAND, 1 << 20};
+	/**
+	 * Number of measurements per configuration, the median throughput is used
+	 * */
+	static final int RUNS = 3;
+
+	/**
+	 * A combination of parallel execution settings and its measured throughput and peak heap usage
+	 * */
+	static class Configuration {
+		final int images, threads, tileSize;
+		final boolean parallelChannels;
+		double pixelsPerSecond = 0.0;
+		long peakHeapBytes = 0;
+
+		Configuration(int images, int threads, int tileSize, boolean parallelChannels){
+			this.images = images;
+			this.threads = threads;
+			this.tileSize = tileSize;
+			this.parallelChannels = parallelChannels;
+		}
+
+		@Override
+		public String toString() {
+			return images + " image(s) in parallel, " + threads + " thread(s) per image, minimum tile size " + tileSize
+					+ " pixels, segmentation channels " + (parallelChannels ? "in parallel" : "sequentially");
+		}
+	}
+
+	private final AdipoQPreparatorMain main;
+
+	AutoTuner(AdipoQPreparatorMain main){
+		this.main = main;
+	}
+
+	/**
+	 * @return the configurations to be tested on a machine with @param processors processors: for 1, 2, 4, ... and
+	 * @param processors threads per image, as many images in parallel as processors are left (at most @param maxImages),
+	 * all TILE_SIZES and - for @param multipleChannels - parallel and sequential segmentation channels
+	 * */
+	static ArrayList<Configuration> getCandidates(int processors, int maxImages, boolean multipleChannels) {
+		ArrayList<Configuration> candidates = new ArrayList<Configuration>();
+		processors = Math.max(1, processors);
+		for(int threads = 1; threads <= processors; threads *= 2) {
+			addCandidates(candidates, threads, processors, maxImages, multipleChannels);
+			if(threads < processors && threads * 2 > processors) {
+				addCandidates(candidates, processors, processors, maxImages, multipleChannels);
+			}
+		}
+		return candidates;
+	}
+
+	private static void addCandidates(ArrayList<Configuration> candidates, int threads, int processors, int maxImages,
+			boolean multipleChannels) {
+		int images = Math.max(1, Math.min(maxImages, processors / threads));
+		if(threads == 1) {
+			//no row bands and no channel threads
+			candidates.add(new Configuration(images, 1, RowBands.MIN_PIXELS_PER_BAND, false));
+			return;
+		}
+		for(int i = 0; i < TILE_SIZES.length; i++) {
+			candidates.add(new Configuration(images, threads, TILE_SIZES [i], false));
+			if(multipleChannels) {
+				candidates.add(new Configuration(images, threads, TILE_SIZES [i], true));
+			}
+		}
+	}
+
+	/**
+	 * @return the segmentation channels (@param channelIDs, 1-based) of @param imp cropped to the central SAMPLE_EDGE x
+	 * SAMPLE_EDGE pixels, or null if @param imp cannot be processed (3D / time-lapse image, channel does not exist)
+	 * */
+	static ImagePlus [] getSample(ImagePlus imp, int channelIDs [], int numberOfChannels) {
+		if(imp.getNSlices() > 1 || imp.getNFrames() > 1)	return null;
+		if(imp.getBitDepth() == 24)	imp = CompositeConverter.makeComposite(imp);
+		int width = Math.min(SAMPLE_EDGE, imp.getWidth()), height = Math.min(SAMPLE_EDGE, imp.getHeight());
+		Rectangle region = new Rectangle((imp.getWidth() - width) / 2, (imp.getHeight() - height) / 2, width, height);
+		ImagePlus sample [] = new ImagePlus [numberOfChannels];
+		for(int segmC = 0; segmC < numberOfChannels; segmC++) {
+			if(channelIDs [segmC] < 1 || channelIDs [segmC] > imp.getNChannels())	return null;
+			ImageProcessor ip = imp.getStack().getProcessor(imp.getStackIndex(channelIDs [segmC], 1, 1));
+			ip.setRoi(region);
+			sample [segmC] = new ImagePlus("sample C" + channelIDs [segmC], ip.crop());
+			sample [segmC].setCalibration(imp.getCalibration());
+		}
+		return sample;
+	}
+
+	/**
+	 * Measures all @param candidates on @param sample (see getSample) after a warm-up run and @return the configuration
+	 * with the highest throughput among those whose peak heap usage does not exceed @param heapBudget (bytes); if no
+	 * configuration fits, the one with the lowest peak heap usage. Prefs.getThreads(), RowBands.minPixelsPerBand and
+	 * parallelChannels are changed during the measurements and have to be set by the caller afterwards.
+	 * */
+	Configuration tune(ImagePlus sample [], ArrayList<Configuration> candidates, long heapBudget) {
+		main.processSample(sample);
+		Configuration best = null, smallest = null;
+		for(int i = 0; i < candidates.size() && main.continueProcessing; i++) {
+			Configuration candidate = candidates.get(i);
+			measure(candidate, sample);
+			if(smallest == null || candidate.peakHeapBytes < smallest.peakHeapBytes) {
+				smallest = candidate;
+			}
+			if(candidate.peakHeapBytes > heapBudget)	continue;
+			if(best == null || candidate.pixelsPerSecond > best.pixelsPerSecond) {
+				best = candidate;
+			}
+		}
+		return best != null ? best : smallest;
+	}
+
+	private void measure(Configuration configuration, final ImagePlus sample []) {
+		Prefs.setThreads(configuration.threads);
+		RowBands.minPixelsPerBand = configuration.tileSize;
+		main.parallelChannels = configuration.parallelChannels;
+
+		double [] pixelsPerSecond = new double [RUNS];
+		configuration.peakHeapBytes = 0;
+		for(int run = 0; run < RUNS && main.continueProcessing; run++) {
+			long heapBefore = resetPeakHeap();
+			pixelsPerSecond [run] = measureRun(configuration, sample);
+			configuration.peakHeapBytes = Math.max(configuration.peakHeapBytes, getPeakHeap() - heapBefore);
+		}
+		Arrays.sort(pixelsPerSecond);
+		configuration.pixelsPerSecond = pixelsPerSecond [RUNS / 2];
+	}
+
+	/**
+	 * @return the throughput (pixels per second) of one run of @param configuration on @param sample
+	 * */
+	private double measureRun(Configuration configuration, final ImagePlus sample []) {
+		long start = System.nanoTime();
+		if(configuration.images == 1) {
+			main.processSample(sample);
+		}else {
+			ExecutorService executor = Executors.newFixedThreadPool(configuration.images);
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for(int i = 0; i < configuration.images; i++) {
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						main.processSample(sample);
+					}
+				}));
+			}
+			executor.shutdown();
+			try {
+				for(int i = 0; i < futures.size(); i++) {
+					futures.get(i).get();
+				}
+			}catch(ExecutionException e) {
+				if(e.getCause() instanceof Error)	throw (Error) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}finally {
+				executor.shutdownNow();
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1.0e9;
+
+		double pixels = 0.0;
+		for(int i = 0; i < sample.length; i++) {
+			pixels += (double) sample [i].getWidth() * (double) sample [i].getHeight();
+		}
+		return configuration.images * pixels / seconds;
+	}
+
+	/**
+	 * Resets the peak usages of all heap memory pools after a garbage collection
+	 * @return the heap usage after the garbage collection
+	 * */
+	private static long resetPeakHeap() {
+		System.gc();
+		long used = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				used += pool.getUsage().getUsed();
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * @return the sum of the peak usages of all heap memory pools since the last resetPeakHeap()
+	 * */
+	private static long getPeakHeap() {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP)	peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+}
@@ -0,0 +1,317 @@
+package adipoQ_preparator_jnh;
+/**
+ * Dilation and erosion of binary 8-bit masks (0 / 255) with a disc, based on the exact squared Euclidean distance
+ * transform (Felzenszwalb & Huttenlocher, Theory of Computing 8, 2012): a pixel is set by the dilation if the nearest
+ * foreground pixel lies within the disc, and cleared by the erosion if the nearest background pixel lies within the
+ * disc. The distance transform takes a constant number of operations per pixel for any radius, while the rank filters
+ * of ImageJ (Process > Filters > Maximum... / Minimum...) need O(radius) operations per pixel.
+ * The disc is the kernel of ImageJ's RankFilters (see getSquaredKernelRadius) and pixels outside the image are
+ * ignored (equivalent to ImageJ's continuation with the nearest edge pixel for maximum and minimum), so the results
+ * are identical to the rank filters. Columns and rows are processed in parallel on bands (see RowBands).
+ * The 3x3 median (ImageJ's Process > Noise > Despeckle, see despeckle) of a binary mask is the majority of the nine
+ * pixels; it is counted bit-parallel on rows packed into 64-bit words, 64 pixels per operation.
+ */
+
+import ij.process.ImageProcessor;
+
+class BinaryMorphology {
+	/**
+	 * @return true if @param ip is an 8-bit image that contains only the values 0 and 255
+	 * */
+	static boolean isBinary(ImageProcessor ip) {
+		if(!(ip.getPixels() instanceof byte []))	return false;
+		final byte [] pixels = (byte []) ip.getPixels();
+		final int width = ip.getWidth();
+		int [] borders = RowBands.getBandBorders(width, ip.getHeight());
+		final boolean [] bandBinary = new boolean [borders.length - 1];
+		RowBands.run(borders, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				for(int i = yStart * width; i < yEnd * width; i++) {
+					if(pixels [i] != 0 && pixels [i] != (byte) 255)	return;
+				}
+				bandBinary [band] = true;
+			}
+		});
+		for(int band = 0; band < bandBinary.length; band++) {
+			if(!bandBinary [band])	return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the squared radius of the circular kernel that ImageJ's RankFilters use for @param radius: the kernel
+	 * contains all pixels with dx^2 + dy^2 <= the returned value (RankFilters.makeLineRadii)
+	 * */
+	static int getSquaredKernelRadius(double radius) {
+		if(radius >= 1.5 && radius < 1.75) {
+			radius = 1.75;
+		}else if(radius >= 2.5 && radius < 2.85) {
+			radius = 2.85;
+		}
+		return (int) (radius * radius) + 1;
+	}
+
+	/**
+	 * Dilates the binary mask @param ip (see isBinary) in place with the kernel of ImageJ's "Maximum..." of @param radius
+	 * */
+	static void dilate(ImageProcessor ip, double radius) {
+		apply((byte []) ip.getPixels(), ip.getWidth(), ip.getHeight(), radius, (byte) 255);
+	}
+
+	/**
+	 * Erodes the binary mask @param ip (see isBinary) in place with the kernel of ImageJ's "Minimum..." of @param radius
+	 * */
+	static void erode(ImageProcessor ip, double radius) {
+		apply((byte []) ip.getPixels(), ip.getWidth(), ip.getHeight(), radius, (byte) 0);
+	}
+
+	/**
+	 * Sets all pixels of the mask @param pixels (@param width x @param height) within the kernel for @param radius
+	 * around a pixel of @param value to @param value.
+	 * The vertical distances to the nearest pixel of @param value are clamped to the first distance outside the kernel
+	 * and stored with one byte per pixel (two bytes for kernels with a radius of 255 pixels or more, see ColumnDistances),
+	 * the horizontal pass runs per row band with band-local buffers and sets the pixels directly.
+	 * */
+	static void apply(final byte [] pixels, final int width, final int height, double radius, final byte value) {
+		final int maxDistance = getSquaredKernelRadius(radius);
+		//vertical distances of clamp pixels or more are outside the kernel (clamp^2 > maxDistance)
+		int root = (int) Math.sqrt(maxDistance);
+		while((long) root * root > maxDistance)	root--;
+		while((long) (root + 1) * (root + 1) <= maxDistance)	root++;
+		final int clamp = root + 1;
+		if(clamp > Character.MAX_VALUE) {
+			//kernel larger than any column that fits into an array: full squared distance map
+			final int [] distance = getSquaredDistances(pixels, width, height, value, maxDistance + 1);
+			for(int i = 0; i < distance.length; i++) {
+				if(distance [i] <= maxDistance)	pixels [i] = value;
+			}
+			return;
+		}
+		final ColumnDistances vertical = ColumnDistances.create(width * height, clamp);
+
+		//distance to the nearest pixel of value in the same column (clamped), from above and from below
+		RowBands.run(height, width, new RowBands.Task() {
+			public void run(int band, int xStart, int xEnd) {
+				for(int x = xStart; x < xEnd; x++) {
+					vertical.set(x, pixels [x] == value ? 0 : clamp);
+				}
+				for(int y = 1; y < height; y++) {
+					for(int i = y * width + xStart; i < y * width + xEnd; i++) {
+						vertical.set(i, pixels [i] == value ? 0 : Math.min(clamp, vertical.get(i - width) + 1));
+					}
+				}
+				for(int y = height - 2; y >= 0; y--) {
+					for(int i = y * width + xStart; i < y * width + xEnd; i++) {
+						int below = vertical.get(i + width) + 1;
+						if(below < vertical.get(i))	vertical.set(i, below);
+					}
+				}
+			}
+		});
+
+		//squared distance to the nearest pixel of value in the image, pixels within the kernel are set
+		final int outside = maxDistance + 1;
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				LowerEnvelope envelope = new LowerEnvelope(width);
+				for(int y = yStart; y < yEnd; y++) {
+					int rowOffset = y * width;
+					for(int x = 0; x < width; x++) {
+						int d = vertical.get(rowOffset + x);
+						envelope.values [x] = d < clamp ? d * d : outside;
+					}
+					envelope.apply(width, outside);
+					for(int x = 0; x < width; x++) {
+						if(envelope.result [x] <= maxDistance)	pixels [rowOffset + x] = value;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the squared Euclidean distance of each pixel of @param pixels (@param width x @param height) to the
+	 * nearest pixel of @param value (0 for pixels of @param value); distances above @param outside, and the distances
+	 * in an image without a pixel of @param value, are returned as @param outside. Pixels outside the image are ignored.
+	 * */
+	static int [] getSquaredDistances(final byte [] pixels, final int width, final int height, final byte value, final int outside) {
+		final int [] distance = new int [width * height];
+
+		//squared distance to the nearest pixel of value in the same column
+		RowBands.run(height, width, new RowBands.Task() {
+			public void run(int band, int xStart, int xEnd) {
+				LowerEnvelope envelope = new LowerEnvelope(height);
+				for(int x = xStart; x < xEnd; x++) {
+					for(int y = 0; y < height; y++) {
+						envelope.values [y] = pixels [y * width + x] == value ? 0 : outside;
+					}
+					envelope.apply(height, outside);
+					for(int y = 0; y < height; y++) {
+						distance [y * width + x] = envelope.result [y];
+					}
+				}
+			}
+		});
+
+		//squared distance to the nearest pixel of value in the image
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				LowerEnvelope envelope = new LowerEnvelope(width);
+				for(int y = yStart; y < yEnd; y++) {
+					System.arraycopy(distance, y * width, envelope.values, 0, width);
+					envelope.apply(width, outside);
+					System.arraycopy(envelope.result, 0, distance, y * width, width);
+				}
+			}
+		});
+		return distance;
+	}
+
+	/**
+	 * Replaces the binary mask @param ip (see isBinary) in place by its 3x3 median, with the same result as ImageJ's
+	 * "Despeckle" (median of radius 1, pixels outside the image are replaced by the nearest edge pixel)
+	 * */
+	static void despeckle(ImageProcessor ip) {
+		final byte [] pixels = (byte []) ip.getPixels();
+		final int width = ip.getWidth(), height = ip.getHeight();
+		//bit x & 63 of word x >> 6 of a row is pixel x; bits beyond the width repeat the last pixel of the row
+		final int words = (width + 63) >> 6;
+		final long [] packed = new long [words * height];
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				for(int y = yStart; y < yEnd; y++) {
+					int rowOffset = y * width;
+					for(int w = 0; w < words; w++) {
+						long word = 0L;
+						for(int bit = 0; bit < 64; bit++) {
+							int x = Math.min(width - 1, (w << 6) + bit);
+							if(pixels [rowOffset + x] != 0)	word |= 1L << bit;
+						}
+						packed [y * words + w] = word;
+					}
+				}
+			}
+		});
+
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				//number of set pixels in the column of three rows, as two bit planes (sum = low + 2 high)
+				long [] low = new long [words], high = new long [words];
+				for(int y = yStart; y < yEnd; y++) {
+					int above = Math.max(0, y - 1) * words, row = y * words, below = Math.min(height - 1, y + 1) * words;
+					for(int w = 0; w < words; w++) {
+						long a = packed [above + w], b = packed [row + w], c = packed [below + w];
+						low [w] = a ^ b ^ c;
+						high [w] = (a & b) | (a & c) | (b & c);
+					}
+					int rowOffset = y * width;
+					for(int w = 0; w < words; w++) {
+						//column sums of the left (x - 1) and right (x + 1) neighbors, the edge columns are repeated
+						long previousLow = w > 0 ? low [w - 1] >>> 63 : low [0] & 1L;
+						long previousHigh = w > 0 ? high [w - 1] >>> 63 : high [0] & 1L;
+						long nextLow = w < words - 1 ? low [w + 1] << 63 : low [w] & (1L << 63);
+						long nextHigh = w < words - 1 ? high [w + 1] << 63 : high [w] & (1L << 63);
+						long leftLow = (low [w] << 1) | previousLow, leftHigh = (high [w] << 1) | previousHigh;
+						long rightLow = (low [w] >>> 1) | nextLow, rightHigh = (high [w] >>> 1) | nextHigh;
+
+						//sum of the three column sums = sum0 + 2 sum1 + 4 sum2 + 8 sum3 (bit-sliced full adders)
+						long sum0 = leftLow ^ low [w] ^ rightLow;
+						long carry0 = (leftLow & low [w]) | (leftLow & rightLow) | (low [w] & rightLow);
+						long highSum = leftHigh ^ high [w] ^ rightHigh;
+						long highCarry = (leftHigh & high [w]) | (leftHigh & rightHigh) | (high [w] & rightHigh);
+						long sum1 = highSum ^ carry0, carry1 = highSum & carry0;
+						long sum2 = highCarry ^ carry1, sum3 = highCarry & carry1;
+						//median of nine binary pixels: at least five set
+						long median = sum3 | (sum2 & (sum1 | sum0));
+
+						int xEnd = Math.min(width, (w + 1) << 6);
+						for(int x = w << 6; x < xEnd; x++) {
+							pixels [rowOffset + x] = (median & (1L << (x & 63))) != 0 ? (byte) 255 : (byte) 0;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Vertical distances of all pixels of an image, clamped to a maximum value: one byte per pixel for maxima up to 255,
+	 * otherwise two bytes per pixel
+	 * */
+	private static abstract class ColumnDistances {
+		abstract int get(int i);
+		abstract void set(int i, int distance);
+
+		static ColumnDistances create(int pixels, int max) {
+			if(max <= 255) {
+				final byte [] distance = new byte [pixels];
+				return new ColumnDistances() {
+					int get(int i) {
+						return distance [i] & 0xff;
+					}
+					void set(int i, int d) {
+						distance [i] = (byte) d;
+					}
+				};
+			}
+			final char [] distance = new char [pixels];
+			return new ColumnDistances() {
+				int get(int i) {
+					return distance [i];
+				}
+				void set(int i, int d) {
+					distance [i] = (char) d;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Lower envelope of the parabolas (i - j)^2 + values [j] of a line (Felzenszwalb & Huttenlocher), with buffers
+	 * for lines of up to length pixels
+	 * */
+	private static class LowerEnvelope {
+		final int [] values, result, positions;
+		final double [] borders;
+
+		LowerEnvelope(int length){
+			values = new int [length];
+			result = new int [length];
+			positions = new int [length];
+			borders = new double [length + 1];
+		}
+
+		private double getIntersection(int p, int q) {
+			return ((values [q] + (double) q * q) - (values [p] + (double) p * p)) / (2.0 * (q - p));
+		}
+
+		/**
+		 * Writes min(values [j] + (i-j)^2) for i = 0 ... @param length - 1 into result, values above @param outside
+		 * are stored as @param outside
+		 * */
+		void apply(int length, int outside) {
+			int k = 0;
+			positions [0] = 0;
+			borders [0] = Double.NEGATIVE_INFINITY;
+			borders [1] = Double.POSITIVE_INFINITY;
+			for(int q = 1; q < length; q++) {
+				//intersection with the last parabola of the envelope, parabolas that are hidden are removed
+				double s = getIntersection(positions [k], q);
+				while(s <= borders [k]) {
+					k--;
+					s = getIntersection(positions [k], q);
+				}
+				k++;
+				positions [k] = q;
+				borders [k] = s;
+				borders [k + 1] = Double.POSITIVE_INFINITY;
+			}
+			k = 0;
+			for(int i = 0; i < length; i++) {
+				while(borders [k + 1] < i)	k++;
+				long d = i - positions [k];
+				result [i] = (int) Math.min(outside, d * d + values [positions [k]]);
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package adipoQ_preparator_jnh;
+/**
+ * Fast background subtraction as an alternative to ImageJ's rolling ball (Process > Subtract Background...).
+ * Like the rolling ball, the image is smoothed (3x3 mean), shrunk by taking the minimum of blocks of
+ * getShrinkFactor(radius) x getShrinkFactor(radius) pixels, the background is determined on the shrunk image and
+ * enlarged again by bilinear interpolation. Instead of rolling a ball, whose cost grows with the square of the radius,
+ * the background is the grey-scale opening with a paraboloid of the curvature of the ball at its top (as ImageJ's
+ * "sliding paraboloid"), which is separable into rows and columns. Each row and column is eroded and dilated via the
+ * lower envelope of parabolas (Felzenszwalb & Huttenlocher, Theory of Computing 8, 2012) with a cost per pixel
+ * that does not depend on the radius. All steps run in parallel on row bands or bands of columns (see RowBands).
+ * The result deviates from the rolling ball where the ball would not reach into narrow valleys (see getDeviation).
+ * MAX_MEAN_DEVIATION and MAX_DEVIATION are provisional: they were derived from a comparison with an exact ball opening
+ * of synthetic cell images (mean deviation below 0.25%, maximum deviation below 2.5% of the intensity range, times a
+ * safety factor of two), not from ImageJ's rolling ball, which shrinks the image and rolls a discretized ball.
+ * The EquivalenceHarness measures the deviation from ImageJ's rolling ball on its synthetic images and fails if
+ * the bounds are exceeded; the bounds are to be calibrated from the deviations it reports.
+ */
+
+import java.awt.Rectangle;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+class FastBackground {
+	/**
+	 * Maximum edge length of the sample on which the deviation from the rolling ball is determined (see getDeviation)
+	 * */
+	static final int SAMPLE_EDGE = 1024;
+
+	/**
+	 * Bounds of the mean and the maximum deviation from the rolling ball, as fraction of the intensity range of the image
+	 * (provisional, see above)
+	 * */
+	static final double MAX_MEAN_DEVIATION = 0.005, MAX_DEVIATION = 0.05;
+
+	/**
+	 * @return the factor by which the image is shrunk for a ball of @param radius (pixels); same as for ImageJ's
+	 * rolling ball
+	 * */
+	static int getShrinkFactor(double radius) {
+		if(radius <= 10.0)	return 1;
+		if(radius <= 30.0)	return 2;
+		if(radius <= 100.0)	return 4;
+		return 8;
+	}
+
+	/**
+	 * Subtracts the background of @param ip in place, with a ball of @param radius (pixels) for a dark background or,
+	 * if @param lightBackground, for a light background. 8- and 16-bit results are rounded and clamped as by ImageJ
+	 * (light background: the background is set to the maximum value).
+	 * */
+	static void subtract(ImageProcessor ip, double radius, boolean lightBackground) {
+		final int width = ip.getWidth(), height = ip.getHeight();
+		final Plane plane = new Plane(ip.getPixels(), width, height);
+		final float [] background = getBackground(plane, radius, lightBackground);
+		final double offset;
+		if(lightBackground && plane.type == Plane.BYTE) {
+			offset = 255.0;
+		}else if(lightBackground && plane.type == Plane.SHORT) {
+			offset = 65535.0;
+		}else {
+			offset = 0.0;
+		}
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				for(int i = yStart * width; i < yEnd * width; i++) {
+					plane.set(i, plane.get(i) - background [i] + offset);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the background of @param plane (same size) for a ball of @param radius (pixels), for a light background
+	 * if @param lightBackground. The background is not higher (dark background) or lower (light background) than the image.
+	 * */
+	static float [] getBackground(final Plane plane, double radius, boolean lightBackground) {
+		final int width = plane.width, height = plane.height;
+		//the light background is processed as dark background of the negated image
+		final float sign = lightBackground ? -1f : 1f;
+		final float [] smoothed = new float [width * height];
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				for(int y = yStart; y < yEnd; y++) {
+					for(int x = 0; x < width; x++) {
+						//pixels outside the image are replaced by the nearest edge pixel
+						double sum = 0.0;
+						for(int dy = -1; dy <= 1; dy++) {
+							int row = Math.max(0, Math.min(height - 1, y + dy)) * width;
+							for(int dx = -1; dx <= 1; dx++) {
+								sum += plane.get(row + Math.max(0, Math.min(width - 1, x + dx)));
+							}
+						}
+						smoothed [y * width + x] = sign * (float) (sum / 9.0);
+					}
+				}
+			}
+		});
+
+		final int shrink = getShrinkFactor(radius);
+		final int smallWidth = (width + shrink - 1) / shrink, smallHeight = (height + shrink - 1) / shrink;
+		final float [] small = new float [smallWidth * smallHeight];
+		RowBands.run(width * shrink, smallHeight, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				for(int sy = yStart; sy < yEnd; sy++) {
+					for(int sx = 0; sx < smallWidth; sx++) {
+						float min = Float.MAX_VALUE;
+						for(int y = sy * shrink; y < Math.min(height, (sy + 1) * shrink); y++) {
+							for(int x = sx * shrink; x < Math.min(width, (sx + 1) * shrink); x++) {
+								min = Math.min(min, smoothed [y * width + x]);
+							}
+						}
+						small [sy * smallWidth + sx] = min;
+					}
+				}
+			}
+		});
+
+		//paraboloid z = d^2 / (2 r) of the ball with radius r = radius / shrink in the shrunk image (as ImageJ's ball)
+		open(small, smallWidth, smallHeight, 1.0 / (2.0 * Math.max(1.0, radius / shrink)));
+
+		final float [] background = smoothed;
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				for(int y = yStart; y < yEnd; y++) {
+					//centers of the shrunk pixels at (s + 0.5) * shrink - 0.5
+					double fy = Math.max(0.0, Math.min(smallHeight - 1, (y + 0.5) / shrink - 0.5));
+					int sy0 = (int) fy, sy1 = Math.min(smallHeight - 1, sy0 + 1);
+					double wy = fy - sy0;
+					for(int x = 0; x < width; x++) {
+						double fx = Math.max(0.0, Math.min(smallWidth - 1, (x + 0.5) / shrink - 0.5));
+						int sx0 = (int) fx, sx1 = Math.min(smallWidth - 1, sx0 + 1);
+						double wx = fx - sx0;
+						double value = (1.0 - wy) * ((1.0 - wx) * small [sy0 * smallWidth + sx0] + wx * small [sy0 * smallWidth + sx1])
+								+ wy * ((1.0 - wx) * small [sy1 * smallWidth + sx0] + wx * small [sy1 * smallWidth + sx1]);
+						int i = y * width + x;
+						background [i] = sign * (float) Math.min(value, sign * plane.get(i));
+					}
+				}
+			}
+		});
+		return background;
+	}
+
+	/**
+	 * Grey-scale opening of @param pixels (@param width x @param height) in place with the paraboloid
+	 * z = @param curvature * (dx^2 + dy^2): erosion and dilation, each separated into rows and columns
+	 * */
+	static void open(final float [] pixels, final int width, final int height, final double curvature) {
+		for(int pass = 0; pass < 2; pass++) {
+			//erosion: min(f(j) + c (i-j)^2), dilation: max(f(j) - c (i-j)^2) = -min(-f(j) + c (i-j)^2)
+			final boolean dilate = pass == 1;
+			RowBands.run(width, height, new RowBands.Task() {
+				public void run(int band, int yStart, int yEnd) {
+					LowerEnvelope envelope = new LowerEnvelope(width);
+					for(int y = yStart; y < yEnd; y++) {
+						envelope.apply(pixels, y * width, 1, width, curvature, dilate);
+					}
+				}
+			});
+			//bands of columns: RowBands splits the "rows" of a transposed image
+			RowBands.run(height, width, new RowBands.Task() {
+				public void run(int band, int xStart, int xEnd) {
+					LowerEnvelope envelope = new LowerEnvelope(height);
+					for(int x = xStart; x < xEnd; x++) {
+						envelope.apply(pixels, x, width, height, curvature, dilate);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Lower envelope of the parabolas c (i - j)^2 + f(j) of a line (Felzenszwalb & Huttenlocher), with buffers
+	 * for lines of up to length pixels
+	 * */
+	private static class LowerEnvelope {
+		final double [] values, borders, result;
+		final int [] positions;
+
+		LowerEnvelope(int length){
+			values = new double [length];
+			result = new double [length];
+			positions = new int [length];
+			borders = new double [length + 1];
+		}
+
+		private double getIntersection(int p, int q, double c) {
+			return ((values [q] + c * q * q) - (values [p] + c * p * p)) / (2.0 * c * (q - p));
+		}
+
+		/**
+		 * Replaces the line of @param length pixels starting at @param start in @param pixels (pixels @param stride
+		 * apart) by min(f(j) + @param c (i-j)^2) or, if @param negate, by max(f(j) - @param c (i-j)^2)
+		 * */
+		void apply(float [] pixels, int start, int stride, int length, double c, boolean negate) {
+			for(int i = 0; i < length; i++) {
+				values [i] = negate ? -pixels [start + i * stride] : pixels [start + i * stride];
+			}
+			int k = 0;
+			positions [0] = 0;
+			borders [0] = Double.NEGATIVE_INFINITY;
+			borders [1] = Double.POSITIVE_INFINITY;
+			for(int q = 1; q < length; q++) {
+				//intersection with the last parabola of the envelope, parabolas that are hidden are removed
+				double s = getIntersection(positions [k], q, c);
+				while(s <= borders [k]) {
+					k--;
+					s = getIntersection(positions [k], q, c);
+				}
+				k++;
+				positions [k] = q;
+				borders [k] = s;
+				borders [k + 1] = Double.POSITIVE_INFINITY;
+			}
+			k = 0;
+			for(int i = 0; i < length; i++) {
+				while(borders [k + 1] < i)	k++;
+				double d = i - positions [k];
+				result [i] = c * d * d + values [positions [k]];
+			}
+			for(int i = 0; i < length; i++) {
+				pixels [start + i * stride] = (float) (negate ? -result [i] : result [i]);
+			}
+		}
+	}
+
+	/**
+	 * @return the deviation {maximum, mean} (intensity units) of the result of subtract from the result of ImageJ's
+	 * rolling ball (same @param radius and @param lightBackground) on the central SAMPLE_EDGE x SAMPLE_EDGE pixels
+	 * of @param ip, and the sample width and height
+	 * */
+	static double [] getDeviation(ImageProcessor ip, double radius, boolean lightBackground) {
+		int width = Math.min(SAMPLE_EDGE, ip.getWidth()), height = Math.min(SAMPLE_EDGE, ip.getHeight());
+		ip.setRoi(new Rectangle((ip.getWidth() - width) / 2, (ip.getHeight() - height) / 2, width, height));
+		ImageProcessor fast = ip.crop();
+		ip.resetRoi();
+		ImagePlus reference = new ImagePlus("background reference", fast.duplicate());
+		subtract(fast, radius, lightBackground);
+		IJ.run(reference, "Subtract Background...", "rolling=" + radius + (lightBackground ? " light" : ""));
+
+		Plane fastPlane = new Plane(fast.getPixels(), width, height);
+		Plane referencePlane = new Plane(reference.getProcessor().getPixels(), width, height);
+		double max = 0.0, sum = 0.0;
+		for(int i = 0; i < width * height; i++) {
+			double deviation = Math.abs(fastPlane.get(i) - referencePlane.get(i));
+			max = Math.max(max, deviation);
+			sum += deviation;
+		}
+		return new double [] {max, sum / (width * height), width, height};
+	}
+}
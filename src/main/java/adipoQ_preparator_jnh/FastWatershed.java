@@ -0,0 +1,189 @@
+package adipoQ_preparator_jnh;
+/**
+ * Fast watershed segmentation of binary 8-bit masks as an alternative to ImageJ's Process > Binary > Watershed.
+ * Like ImageJ, the particles are split along the watershed lines of the Euclidean distance map (EDM) between maxima
+ * that rise more than TOLERANCE pixels above the saddle to any higher maximum. The exact squared EDM is computed in
+ * parallel (see BinaryMorphology.getSquaredDistances); the foreground pixels are then sorted by distance (radix sort)
+ * and flooded from the highest distance downwards in a single pass with union-find over the basins: a basin whose
+ * maximum is not more than TOLERANCE above the level where it meets a higher basin is merged into it, pixels that
+ * touch two basins of significant maxima become line (background) pixels. The lines separate the particles for
+ * 8-connectivity. All steps take linear time in the number of pixels; only the EDM is computed in parallel, the sort
+ * and the flood run in a single thread.
+ * This is not ImageJ's algorithm: ImageJ converts the EDM to 8 bits and segments it with the MaximumFinder
+ * (SEGMENTED output), flooding level by level, so lines can be placed differently or be missing / additional
+ * (see getDeviation). MAX_DEVIATING_FRACTION is provisional and has not been measured against ImageJ: it is derived
+ * from the share of line pixels (about 1.4% of the pixels of a mask densely packed with random discs), assuming that
+ * a deviating line moves by about one pixel. The EquivalenceHarness measures the deviation from ImageJ's watershed on
+ * its synthetic images and fails if the bound is exceeded; the bound is to be calibrated from the deviations it reports.
+ */
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+class FastWatershed {
+	/**
+	 * Minimum height (pixels) of a maximum of the EDM above the saddle to a higher maximum; same as ImageJ's EDM
+	 * */
+	static final double TOLERANCE = 0.5;
+
+	/**
+	 * Maximum edge length of the sample on which the deviation from ImageJ's watershed is determined (see getDeviation)
+	 * */
+	static final int SAMPLE_EDGE = 1024;
+
+	/**
+	 * Bound of the fraction of pixels in which the result deviates from ImageJ's watershed (provisional, see above)
+	 * */
+	static final double MAX_DEVIATING_FRACTION = 0.02;
+
+	private static final int UNLABELED = -1, LINE = -2;
+
+	/**
+	 * Splits the particles (all pixels other than @param background) in @param pixels (@param width x @param height,
+	 * 8-bit) along the watershed lines, which are set to @param background
+	 * */
+	static void segment(final byte [] pixels, final int width, final int height, byte background) {
+		int [] distance = BinaryMorphology.getSquaredDistances(pixels, width, height, background, Integer.MAX_VALUE);
+		int [] order = getDescendingOrder(distance);
+		if(order.length == 0 || distance [order [0]] == Integer.MAX_VALUE) {
+			//no particles or no background: nothing to split
+			return;
+		}
+
+		int [] label = new int [width * height];
+		Arrays.fill(label, UNLABELED);
+		//basins: union-find parent and EDM value of the maximum
+		int [] parent = new int [64];
+		double [] peak = new double [64];
+		int basins = 0;
+		int [] roots = new int [8];
+		for(int n = 0; n < order.length; n++) {
+			int i = order [n], x = i % width, y = i / width;
+			double level = Math.sqrt(distance [i]);
+
+			//distinct basins of the labeled 8-connected neighbors, the basin with the highest maximum first
+			int count = 0;
+			for(int dy = -1; dy <= 1; dy++) {
+				if(y + dy < 0 || y + dy >= height)	continue;
+				for(int dx = -1; dx <= 1; dx++) {
+					if(x + dx < 0 || x + dx >= width || label [i + dy * width + dx] < 0)	continue;
+					int root = find(parent, label [i + dy * width + dx]);
+					boolean known = false;
+					for(int k = 0; k < count; k++) {
+						if(roots [k] == root)	known = true;
+					}
+					if(known)	continue;
+					roots [count] = root;
+					if(peak [root] > peak [roots [0]]) {
+						roots [count] = roots [0];
+						roots [0] = root;
+					}
+					count++;
+				}
+			}
+
+			if(count == 0) {
+				//a new maximum
+				if(basins == parent.length) {
+					parent = Arrays.copyOf(parent, 2 * basins);
+					peak = Arrays.copyOf(peak, 2 * basins);
+				}
+				parent [basins] = basins;
+				peak [basins] = level;
+				label [i] = basins;
+				basins++;
+				continue;
+			}
+
+			//the pixel joins the highest basin unless it touches a second basin with a significant maximum
+			boolean line = false;
+			for(int k = 1; k < count; k++) {
+				if(peak [roots [k]] - level > TOLERANCE)	line = true;
+			}
+			if(line) {
+				label [i] = LINE;
+				pixels [i] = background;
+				continue;
+			}
+			for(int k = 1; k < count; k++) {
+				parent [roots [k]] = roots [0];
+			}
+			label [i] = roots [0];
+		}
+	}
+
+	/**
+	 * @return the indices of the pixels with @param distance > 0, sorted by descending distance (pixels with the
+	 * same distance in ascending index order); LSD radix sort on two 16-bit digits
+	 * */
+	private static int [] getDescendingOrder(int [] distance) {
+		int count = 0;
+		for(int i = 0; i < distance.length; i++) {
+			if(distance [i] > 0)	count++;
+		}
+		int [] order = new int [count], sorted = new int [count];
+		count = 0;
+		for(int i = distance.length - 1; i >= 0; i--) {
+			if(distance [i] > 0)	order [count++] = i;
+		}
+		//ascending order of the keys on the reversed indices, read backwards below
+		int [] bucketStart = new int [65537];
+		for(int shift = 0; shift < 32; shift += 16) {
+			Arrays.fill(bucketStart, 0);
+			for(int n = 0; n < count; n++) {
+				bucketStart [((distance [order [n]] >>> shift) & 0xFFFF) + 1]++;
+			}
+			for(int b = 1; b < bucketStart.length; b++) {
+				bucketStart [b] += bucketStart [b - 1];
+			}
+			for(int n = 0; n < count; n++) {
+				sorted [bucketStart [(distance [order [n]] >>> shift) & 0xFFFF]++] = order [n];
+			}
+			int [] swap = order;
+			order = sorted;
+			sorted = swap;
+		}
+		for(int n = 0; n < count; n++) {
+			sorted [n] = order [count - 1 - n];
+		}
+		return sorted;
+	}
+
+	private static int find(int [] parent, int i) {
+		int root = i;
+		while(parent [root] != root)	root = parent [root];
+		//path compression
+		while(parent [i] != root) {
+			int next = parent [i];
+			parent [i] = root;
+			i = next;
+		}
+		return root;
+	}
+
+	/**
+	 * @return the number and the fraction of pixels in which the result of segment (with @param background) deviates
+	 * from the result of ImageJ's "Watershed" on the central SAMPLE_EDGE x SAMPLE_EDGE pixels of @param ip, and the
+	 * sample width and height
+	 * */
+	static double [] getDeviation(ImageProcessor ip, byte background) {
+		int width = Math.min(SAMPLE_EDGE, ip.getWidth()), height = Math.min(SAMPLE_EDGE, ip.getHeight());
+		ip.setRoi(new Rectangle((ip.getWidth() - width) / 2, (ip.getHeight() - height) / 2, width, height));
+		ImageProcessor fast = ip.crop();
+		ip.resetRoi();
+		ImagePlus reference = new ImagePlus("watershed reference", fast.duplicate());
+		segment((byte []) fast.getPixels(), width, height, background);
+		IJ.run(reference, "Watershed", "");
+
+		byte [] fastPixels = (byte []) fast.getPixels(), referencePixels = (byte []) reference.getProcessor().getPixels();
+		int deviating = 0;
+		for(int i = 0; i < width * height; i++) {
+			if(fastPixels [i] != referencePixels [i])	deviating++;
+		}
+		return new double [] {deviating, deviating / (double) (width * height), width, height};
+	}
+}
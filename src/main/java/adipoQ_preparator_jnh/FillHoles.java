@@ -0,0 +1,182 @@
+package adipoQ_preparator_jnh;
+/**
+ * Fills the holes of a binary 8-bit mask in place, with the same result as ImageJ's Process > Binary > Fill Holes:
+ * background pixels that are not 4-connected to the image border are set to the foreground value.
+ * The background is labeled in runs (horizontal segments of background pixels) with union-find: each row band
+ * (see RowBands) connects the runs of its rows in parallel, then the runs at the borders between the bands are
+ * connected and the runs at the image border are marked. Finally, the runs of components that do not touch the
+ * image border are filled in parallel. All steps take linear time in the number of pixels and runs.
+ */
+
+import java.util.Arrays;
+
+class FillHoles {
+	/**
+	 * Runs of background pixels of one row band: run i covers the pixels start [i] (inclusive) to end [i] (exclusive)
+	 * of row row [i], the runs of row y of the band are rowStart [y - yStart] to rowStart [y - yStart + 1] (exclusive)
+	 * */
+	private static class BandRuns {
+		final int yStart, yEnd;
+		int [] start = new int [64], end = new int [64], row = new int [64], parent;
+		final int [] rowStart;
+		int count = 0;
+		int offset;
+
+		BandRuns(int yStart, int yEnd){
+			this.yStart = yStart;
+			this.yEnd = yEnd;
+			rowStart = new int [yEnd - yStart + 1];
+		}
+
+		void add(int y, int from, int to) {
+			if(count == start.length) {
+				start = Arrays.copyOf(start, 2 * count);
+				end = Arrays.copyOf(end, 2 * count);
+				row = Arrays.copyOf(row, 2 * count);
+			}
+			start [count] = from;
+			end [count] = to;
+			row [count] = y;
+			count++;
+		}
+	}
+
+	/**
+	 * Fills the holes in @param pixels (@param width x @param height, 8-bit) with @param foreground; pixels of
+	 * @param background that are connected to the image border remain, all other pixels are set to @param foreground
+	 * (as ImageJ, which also sets values other than foreground and background to foreground).
+	 * */
+	static void fill(final byte [] pixels, final int width, final int height, final byte foreground, final byte background) {
+		int [] borders = RowBands.getBandBorders(width, height);
+		final BandRuns [] bands = new BandRuns [borders.length - 1];
+		for(int band = 0; band < bands.length; band++) {
+			bands [band] = new BandRuns(borders [band], borders [band + 1]);
+		}
+
+		//runs of each band and their connections within the band (local indices)
+		RowBands.run(borders, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				BandRuns runs = bands [band];
+				for(int y = yStart; y < yEnd; y++) {
+					runs.rowStart [y - yStart] = runs.count;
+					int rowOffset = y * width;
+					for(int x = 0; x < width; x++) {
+						if(pixels [rowOffset + x] != background)	continue;
+						int from = x;
+						while(x < width && pixels [rowOffset + x] == background)	x++;
+						runs.add(y, from, x);
+					}
+				}
+				runs.rowStart [yEnd - yStart] = runs.count;
+				runs.parent = new int [runs.count];
+				for(int i = 0; i < runs.count; i++) {
+					runs.parent [i] = i;
+				}
+				for(int y = yStart + 1; y < yEnd; y++) {
+					connect(runs.parent, false, runs, runs.rowStart [y - yStart - 1], runs.rowStart [y - yStart],
+							runs, runs.rowStart [y - yStart], runs.rowStart [y - yStart + 1]);
+				}
+			}
+		});
+
+		//global indices: the runs of band b start at bands [b].offset
+		int total = 0;
+		for(int band = 0; band < bands.length; band++) {
+			bands [band].offset = total;
+			total += bands [band].count;
+		}
+		final int [] parent = new int [total];
+		for(int band = 0; band < bands.length; band++) {
+			for(int i = 0; i < bands [band].count; i++) {
+				parent [bands [band].offset + i] = bands [band].offset + bands [band].parent [i];
+			}
+			bands [band].parent = null;
+		}
+		for(int band = 1; band < bands.length; band++) {
+			BandRuns above = bands [band - 1], below = bands [band];
+			if(above.yEnd == above.yStart || below.yEnd == below.yStart)	continue;
+			connect(parent, true, above, above.rowStart [above.yEnd - above.yStart - 1], above.count, below, 0, below.rowStart [1]);
+		}
+
+		//components of the runs at the image border are not filled; afterwards, all runs point to their root,
+		//so that the parallel filling below only reads parent
+		final boolean [] border = new boolean [total];
+		for(int band = 0; band < bands.length; band++) {
+			BandRuns runs = bands [band];
+			for(int i = 0; i < runs.count; i++) {
+				int root = find(parent, runs.offset + i);
+				if(runs.row [i] == 0 || runs.row [i] == height - 1 || runs.start [i] == 0 || runs.end [i] == width) {
+					border [root] = true;
+				}
+			}
+		}
+
+		RowBands.run(borders, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				BandRuns runs = bands [band];
+				int run = 0;
+				for(int y = yStart; y < yEnd; y++) {
+					int rowOffset = y * width;
+					int x = 0;
+					for(; run < runs.rowStart [y - yStart + 1]; run++) {
+						boolean keep = border [parent [runs.offset + run]];
+						for(; x < runs.start [run]; x++) {
+							pixels [rowOffset + x] = foreground;
+						}
+						if(!keep) {
+							for(; x < runs.end [run]; x++) {
+								pixels [rowOffset + x] = foreground;
+							}
+						}
+						x = runs.end [run];
+					}
+					for(; x < width; x++) {
+						pixels [rowOffset + x] = foreground;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Connects the overlapping (4-connected) runs from @param runsAbove (indices @param fromAbove to @param toAbove,
+	 * a row) and @param runsBelow (indices @param fromBelow to @param toBelow, the next row) in @param parent, which
+	 * holds global run indices (offset by the band offsets) if @param global, otherwise the local indices of a band.
+	 * */
+	private static void connect(int [] parent, boolean global, BandRuns runsAbove, int fromAbove, int toAbove,
+			BandRuns runsBelow, int fromBelow, int toBelow) {
+		int offsetAbove = global ? runsAbove.offset : 0, offsetBelow = global ? runsBelow.offset : 0;
+		int a = fromAbove, b = fromBelow;
+		while(a < toAbove && b < toBelow) {
+			if(runsAbove.start [a] < runsBelow.end [b] && runsBelow.start [b] < runsAbove.end [a]) {
+				union(parent, offsetAbove + a, offsetBelow + b);
+			}
+			if(runsAbove.end [a] < runsBelow.end [b]) {
+				a++;
+			}else {
+				b++;
+			}
+		}
+	}
+
+	private static int find(int [] parent, int i) {
+		int root = i;
+		while(parent [root] != root)	root = parent [root];
+		//path compression
+		while(parent [i] != root) {
+			int next = parent [i];
+			parent [i] = root;
+			i = next;
+		}
+		return root;
+	}
+
+	private static void union(int [] parent, int a, int b) {
+		int rootA = find(parent, a), rootB = find(parent, b);
+		if(rootA < rootB) {
+			parent [rootB] = rootA;
+		}else if(rootB < rootA) {
+			parent [rootA] = rootB;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package adipoQ_preparator_jnh;
+/**
+ * Fused pixel passes of the segmentation preprocessing: point operations that run one after the other on the same
+ * pixels are combined into one pass, so each pixel is loaded from memory once instead of once per step.
+ * The passes run in parallel on row bands (see RowBands) and walk each band in tiles of TILE_PIXELS pixels,
+ * small enough that the results of the first step are still in the CPU cache when the next step reads them.
+ * Results are identical to running the steps one after the other (Plane / PixelKernels).
+ */
+
+import java.awt.Rectangle;
+
+import ij.gui.Roi;
+
+class FusedPasses {
+	static final int TILE_PIXELS = 1 << 14;
+
+	/**
+	 * Writes @param minuend - @param subtrahend into the 32-bit plane @param difference and, if @param aboveZero is
+	 * not null, 255 into the 8-bit plane @param aboveZero where the difference is above zero and 0 elsewhere
+	 * (same as Plane.setDifference followed by Plane.writeAboveZeroMask on the difference).
+	 * If @param vectorized, the vectorized kernels (PixelKernels) are used where supported.
+	 * */
+	static void subtractAndMaskAboveZero(final Plane difference, final Plane minuend, final Plane subtrahend,
+			final Plane aboveZero, final boolean vectorized) {
+		final int width = difference.width;
+		RowBands.run(width, difference.height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				int end = yEnd * width;
+				for(int from = yStart * width; from < end; from += TILE_PIXELS) {
+					int to = Math.min(end, from + TILE_PIXELS);
+					if(!vectorized || !PixelKernels.setDifference(difference, minuend, subtrahend, from, to)) {
+						difference.setDifference(minuend, subtrahend, from, to);
+					}
+					if(aboveZero != null) {
+						difference.writeAboveZeroMask(aboveZero, 255.0, from, to);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param difference (32-bit) holds a blurred float copy of @param minuend; replaces it by @param minuend minus the
+	 * blurred values rounded to the type of @param minuend (see Plane.setDifferenceToFiltered) and, if @param aboveZero is
+	 * not null, writes 255 into the 8-bit plane @param aboveZero where the difference is above zero and 0 elsewhere.
+	 * */
+	static void subtractFilteredAndMaskAboveZero(final Plane difference, final Plane minuend, final Plane aboveZero) {
+		final int width = difference.width;
+		RowBands.run(width, difference.height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				int end = yEnd * width;
+				for(int from = yStart * width; from < end; from += TILE_PIXELS) {
+					int to = Math.min(end, from + TILE_PIXELS);
+					difference.setDifferenceToFiltered(minuend, from, to);
+					if(aboveZero != null) {
+						difference.writeAboveZeroMask(aboveZero, 255.0, from, to);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Segments @param plane based on the intensities in @param source (see Plane.segment) inside @param roi and sets
+	 * all pixels outside the @param roi to zero (same as Plane.segment followed by setting the pixels outside the roi
+	 * to zero, see AdipoQPreparatorMain.setRegionsOutsideRoiToZero). Rows are processed one after the other, so the
+	 * segmented row is still in the cache when the pixels outside the roi are set to zero.
+	 * If @param vectorized, the vectorized kernels (PixelKernels) are used where supported.
+	 * */
+	static void segmentInsideRoi(final Plane plane, final Plane source, final double threshold, final boolean darkBackground,
+			final boolean keepIntensities, final double maxValue, final Roi roi, final boolean vectorized) {
+		final int width = plane.width;
+		final Rectangle bounds = roi.getBounds();
+		RowBands.run(width, plane.height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				//each band uses its own copy of the roi since contains() may cache state (e.g., a mask) lazily
+				Roi bandRoi = (Roi) roi.clone();
+				for(int y = yStart; y < yEnd; y++) {
+					int rowStart = y * width;
+					if(y < bounds.y || y >= bounds.y + bounds.height) {
+						//pixels outside the bounding rectangle cannot be contained in the roi
+						setZero(plane, rowStart, rowStart + width, vectorized);
+						continue;
+					}
+					int xStart = Math.min(width, Math.max(0, bounds.x));
+					int xEnd = Math.max(xStart, Math.min(width, bounds.x + bounds.width));
+					setZero(plane, rowStart, rowStart + xStart, vectorized);
+					setZero(plane, rowStart + xEnd, rowStart + width, vectorized);
+					if(!vectorized || !PixelKernels.segment(plane, source, threshold, darkBackground, keepIntensities, maxValue,
+							rowStart + xStart, rowStart + xEnd)) {
+						plane.segment(source, threshold, darkBackground, keepIntensities, maxValue, rowStart + xStart, rowStart + xEnd);
+					}
+					for(int x = xStart; x < xEnd; x++) {
+						if(!bandRoi.contains(x, y)) {
+							plane.set(rowStart + x, 0.0);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Segments @param plane based on the intensities in @param source (see Plane.segment) and sets all pixels that are
+	 * zero in the 8-bit @param mask (same size) to zero - same result as segmentInsideRoi with the ROI of the non-zero
+	 * pixels of @param mask, with a byte lookup instead of Roi.contains per pixel.
+	 * If @param vectorized, the vectorized kernels (PixelKernels) are used where supported.
+	 * */
+	static void segmentInsideMask(final Plane plane, final Plane source, final double threshold, final boolean darkBackground,
+			final boolean keepIntensities, final double maxValue, final byte [] mask, final boolean vectorized) {
+		final int width = plane.width;
+		RowBands.run(width, plane.height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				int end = yEnd * width;
+				for(int from = yStart * width; from < end; from += TILE_PIXELS) {
+					int to = Math.min(end, from + TILE_PIXELS);
+					if(!vectorized || !PixelKernels.segment(plane, source, threshold, darkBackground, keepIntensities, maxValue,
+							from, to)) {
+						plane.segment(source, threshold, darkBackground, keepIntensities, maxValue, from, to);
+					}
+					for(int i = from; i < to; i++) {
+						if(mask [i] == 0)	plane.set(i, 0.0);
+					}
+				}
+			}
+		});
+	}
+
+	private static void setZero(Plane plane, int from, int to, boolean vectorized) {
+		if(vectorized) {
+			PixelKernels.fillZero(plane, from, to);
+			return;
+		}
+		for(int i = from; i < to; i++) {
+			plane.set(i, 0.0);
+		}
+	}
+}
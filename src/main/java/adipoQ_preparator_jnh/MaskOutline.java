@@ -0,0 +1,143 @@
+package adipoQ_preparator_jnh;
+/**
+ * Outline of the non-zero pixels of an 8-bit mask as a ROI, as an alternative to ImageJ's Edit > Selection >
+ * Create Selection on the thresholded mask. The boundary between mask and background pixels is traced along the
+ * pixel edges in one pass over the mask (crack following, the mask on the right-hand side): each contour starts at
+ * the first top edge of a mask pixel that has not been traced yet, and only the corners of the contours are stored.
+ * Mask pixels that touch diagonally end up in the same contour (8-connectivity). The contours are combined in a
+ * ShapeRoi with the even-odd rule, so holes are excluded without relating them to their outer contours; the ROI
+ * contains the same pixels as the selection created by ImageJ, but the contours are ordered differently, so the
+ * saved ROI files are not byte-identical.
+ * Optionally, the mask is also saved as runs of mask pixels per row (see getRuns and TaskOutput.saveRuns).
+ */
+
+import java.awt.geom.GeneralPath;
+import java.util.Arrays;
+
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+class MaskOutline {
+	/**
+	 * Directions of the contour edges, clockwise in image coordinates (y down): a left turn is (direction + 3) % 4
+	 * */
+	private static final int RIGHT = 0, DOWN = 1, LEFT = 2, UP = 3;
+	private static final int [] DX = {1, 0, -1, 0}, DY = {0, 1, 0, -1};
+
+	/**
+	 * @return a ROI containing the non-zero pixels of @param mask (@param width x @param height): a ShapeRoi of all
+	 * contours, converted to a polygon or rectangle where possible (ShapeRoi.shapeToRoi); null if the mask contains
+	 * no non-zero pixel
+	 * */
+	static Roi getRoi(byte [] mask, int width, int height) {
+		GeneralPath path = getOutline(mask, width, height);
+		if(path == null)	return null;
+		ShapeRoi shape = new ShapeRoi(path);
+		Roi roi = shape.shapeToRoi();
+		return roi != null ? roi : shape;
+	}
+
+	/**
+	 * @return the contours of the non-zero pixels of @param mask (@param width x @param height) as a path with the
+	 * even-odd winding rule, null if the mask contains no non-zero pixel
+	 * */
+	static GeneralPath getOutline(byte [] mask, int width, int height) {
+		GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
+		int contours = 0;
+		int [] xs = new int [64], ys = new int [64];
+		int corners = 0;
+		//top edges of mask pixels that have been traced, one bit per pixel (see getTracedBytes)
+		long [] traced = new long [(int) (((long) width * height + 63) >>> 6)];
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++) {
+				int i = y * width + x;
+				if(mask [i] == 0 || (traced [i >>> 6] & (1L << i)) != 0 || (y > 0 && mask [i - width] != 0))	continue;
+
+				//trace the contour starting with the top edge of pixel (x, y), from vertex (x, y) to the right
+				corners = 0;
+				int vx = x, vy = y, direction = RIGHT;
+				do {
+					if(direction == RIGHT) {
+						int t = vy * width + vx;
+						traced [t >>> 6] |= 1L << t;
+					}
+					vx += DX [direction];
+					vy += DY [direction];
+					int next = getNextDirection(mask, width, height, vx, vy, direction);
+					if(next != direction) {
+						if(corners == xs.length) {
+							xs = Arrays.copyOf(xs, 2 * corners);
+							ys = Arrays.copyOf(ys, 2 * corners);
+						}
+						xs [corners] = vx;
+						ys [corners] = vy;
+						corners++;
+						direction = next;
+					}
+				}while(vx != x || vy != y || direction != RIGHT);
+
+				path.moveTo(xs [0], ys [0]);
+				for(int k = 1; k < corners; k++) {
+					path.lineTo(xs [k], ys [k]);
+				}
+				path.closePath();
+				contours++;
+			}
+		}
+		if(contours == 0)	return null;
+		return path;
+	}
+
+	/**
+	 * @return the size (bytes) of the buffer that marks the traced edges in getOutline for a mask of
+	 * @param width x @param height pixels
+	 * */
+	static long getTracedBytes(int width, int height) {
+		return (((long) width * height + 63) >>> 6) * 8L;
+	}
+
+	/**
+	 * @return the direction of the contour edge leaving vertex (@param vx, @param vy) - the corner between the pixels
+	 * (vx - 1, vy - 1), (vx, vy - 1), (vx - 1, vy) and (vx, vy) - after arriving in @param direction, with the mask
+	 * on the right-hand side. Where two mask pixels touch only diagonally, the contour turns left.
+	 * */
+	private static int getNextDirection(byte [] mask, int width, int height, int vx, int vy, int direction) {
+		boolean topLeft = isSet(mask, width, height, vx - 1, vy - 1), topRight = isSet(mask, width, height, vx, vy - 1);
+		boolean bottomLeft = isSet(mask, width, height, vx - 1, vy), bottomRight = isSet(mask, width, height, vx, vy);
+		if(topLeft == bottomRight && topRight == bottomLeft && topLeft != topRight) {
+			return (direction + 3) % 4;
+		}
+		if(bottomRight && !topRight)	return RIGHT;
+		if(bottomLeft && !bottomRight)	return DOWN;
+		if(topLeft && !bottomLeft)	return LEFT;
+		return UP;
+	}
+
+	private static boolean isSet(byte [] mask, int width, int height, int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height && mask [y * width + x] != 0;
+	}
+
+	/**
+	 * @return the runs of non-zero pixels in the rows of @param mask (@param width x @param height): for each run
+	 * the row, the first x and the x after the run
+	 * */
+	static int [] getRuns(byte [] mask, int width, int height) {
+		int [] runs = new int [3 * 64];
+		int count = 0;
+		for(int y = 0; y < height; y++) {
+			int rowOffset = y * width;
+			for(int x = 0; x < width; x++) {
+				if(mask [rowOffset + x] == 0)	continue;
+				int from = x;
+				while(x < width && mask [rowOffset + x] != 0)	x++;
+				if(count == runs.length) {
+					runs = Arrays.copyOf(runs, 2 * count);
+				}
+				runs [count++] = y;
+				runs [count++] = from;
+				runs [count++] = x;
+			}
+		}
+		return Arrays.copyOf(runs, count);
+	}
+}
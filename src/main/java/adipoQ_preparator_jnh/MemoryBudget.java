@@ -0,0 +1,68 @@
+package adipoQ_preparator_jnh;
+/**
+ * Admission control for the tasks of a batch based on their estimated memory demand (see
+ * AdipoQPreparatorMain.estimateImageMemory): a task is only opened once its estimate fits into the part of the heap
+ * that is not reserved by the tasks currently in progress. Tasks that would not even fit into the empty budget are
+ * rejected up front instead of running into an OutOfMemoryError, which would stop the whole batch (and may leave
+ * ImageJ / FIJI in an unusable state).
+ */
+
+class MemoryBudget {
+	/**
+	 * Fraction of the maximum heap size (Edit > Options > Memory & Threads) that may be used by the tasks
+	 * of a batch, the remainder is left to ImageJ, the GUI and allocations that are not covered by the estimate
+	 * */
+	static final double HEAP_FRACTION = 0.8;
+
+	final long capacity;
+	private long reserved = 0;
+
+	MemoryBudget(long capacity){
+		this.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * @return a budget with the memory that is available for processing in the heap of the running Java VM:
+	 * HEAP_FRACTION of the maximum heap size minus the memory that is already used (e.g., by open images)
+	 * */
+	static MemoryBudget forAvailableHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return new MemoryBudget((long) (runtime.maxMemory() * HEAP_FRACTION) - used);
+	}
+
+	/**
+	 * @return true if a task with the memory demand @param bytes can be processed at all with this budget
+	 * */
+	boolean fits(long bytes) {
+		return bytes <= capacity;
+	}
+
+	/**
+	 * Reserves @param bytes and waits as long as the reservations of other tasks leave not enough memory.
+	 * A task is always admitted if there are no other reservations, so tasks larger than the capacity do not
+	 * wait forever (these should be rejected before, see fits).
+	 * */
+	synchronized void acquire(long bytes) throws InterruptedException {
+		while(reserved > 0 && reserved + bytes > capacity) {
+			wait();
+		}
+		reserved += bytes;
+	}
+
+	/**
+	 * Releases the reservation of @param bytes made by acquire
+	 * */
+	synchronized void release(long bytes) {
+		reserved -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * @return @param bytes in megabytes (rounded)
+	 * */
+	static long toMB(long bytes) {
+		return Math.round(bytes / (1024.0 * 1024.0));
+	}
+}
@@ -0,0 +1,48 @@
+package adipoQ_preparator_jnh;
+/**
+ * Collects the lines of the metadata .txt file written for each processed image.
+ * Replaces the ij.text.TextPanel that was used before, which creates AWT components
+ * and thus cannot be used when running headless (e.g., in benchmarks or on cluster nodes).
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+import ij.IJ;
+
+public class MetadataText {
+	private ArrayList<String> lines = new ArrayList<String>();
+	
+	public void append(String line) {
+		lines.add(line);
+	}
+	
+	public int getLineCount() {
+		return lines.size();
+	}
+	
+	public String getLine(int i) {
+		return lines.get(i);
+	}
+	
+	/**
+	 * Writes all lines to the file at @param path.
+	 * @return true if the file was written
+	 * */
+	public boolean saveAs(String path) {
+		try {
+			PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+			for(int i = 0; i < lines.size(); i++) {
+				pw.println(lines.get(i));
+			}
+			pw.close();
+			return true;
+		}catch(IOException e) {
+			IJ.log("Failed to save metadata file " + path + ": " + e.getMessage());
+			return false;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package adipoQ_preparator_jnh;
+/**
+ * Vectorizable implementations of the arithmetic-only processing steps (threshold, subtraction,
+ * invert + AND, zeroing of regions). The plugin targets Java 8, where the Vector API is not available,
+ * thus the kernels are written as branch-free loops over the primitive pixel arrays (integer comparisons
+ * turned into sign masks, no per-pixel type switch), which the JIT compiler can translate into SIMD instructions.
+ * Results are identical to the scalar implementations in Plane.
+ *
+ * The kernels return false if the type combination is not supported; callers then use the scalar implementation.
+ * As in Plane, the kernels on the whole plane run in parallel on row bands (see RowBands).
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+class PixelKernels {
+
+	/**
+	 * @return false if the JVM runs without a JIT compiler or with disabled loop vectorization (SuperWord),
+	 * i.e., if the vectorized kernels would not be faster than the scalar implementation
+	 * */
+	static boolean isVectorizationSupported() {
+		if("NONE".equalsIgnoreCase(System.getProperty("java.compiler")))	return false;
+		try {
+			List<String> arguments = ManagementFactory.getRuntimeMXBean().getInputArguments();
+			for(String argument : arguments) {
+				if(argument.equals("-Xint") || argument.equals("-XX:-UseSuperWord")
+						|| argument.equals("-XX:TieredStopAtLevel=1"))	return false;
+			}
+		}catch(Exception e) {
+			return true;
+		}
+		return true;
+	}
+
+	/**
+	 * Vectorized version of Plane.segment(...), runs in parallel on row bands
+	 * @return false if not supported for the types of @param plane and @param source
+	 * */
+	static boolean segment(final Plane plane, final Plane source, final double threshold, final boolean darkBackground,
+			final boolean keepIntensities, final double maxValue) {
+		if(plane.type != source.type || Double.isNaN(threshold))	return false;
+		if(plane.type == Plane.RGB)	return false;
+		final int width = plane.width;
+		RowBands.run(width, plane.height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				segment(plane, source, threshold, darkBackground, keepIntensities, maxValue, yStart * width, yEnd * width);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Vectorized version of Plane.segment(...) for the pixels @param from (inclusive) to @param to (exclusive)
+	 * @return false if not supported for the types of @param plane and @param source
+	 * */
+	static boolean segment(Plane plane, Plane source, double threshold, boolean darkBackground,
+			boolean keepIntensities, double maxValue, int from, int to) {
+		if(plane.type != source.type || Double.isNaN(threshold))	return false;
+		switch(plane.type) {
+			case Plane.BYTE:
+				segmentInteger(plane, source, threshold, darkBackground, keepIntensities, maxValue, 255, from, to);
+				return true;
+			case Plane.SHORT:
+				segmentInteger(plane, source, threshold, darkBackground, keepIntensities, maxValue, 65535, from, to);
+				return true;
+			case Plane.FLOAT:
+				segmentFloat((float []) plane.getPixels(), (float []) source.getPixels(), threshold, darkBackground,
+						keepIntensities, (float) maxValue, from, to);
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Integer pixel values v are compared with an integer limit instead of the double threshold:
+	 * v < threshold <=> v < ceil(threshold), v > threshold <=> v >= floor(threshold) + 1. The comparison
+	 * result is turned into a mask (-1 for pixels set to zero, 0 otherwise) by the sign of the difference.
+	 * */
+	private static void segmentInteger(Plane plane, Plane source, double threshold, boolean darkBackground,
+			boolean keepIntensities, double maxValue, int typeMax, int from, int to) {
+		int limit;
+		if(darkBackground) {
+			limit = (int) Math.max(0.0, Math.min(typeMax + 1.0, Math.ceil(threshold)));
+		}else {
+			limit = (int) Math.max(0.0, Math.min(typeMax + 1.0, Math.floor(threshold) + 1.0));
+		}
+		Plane stored = new Plane(plane.type == Plane.BYTE ? (Object) new byte [1] : (Object) new short [1], 1, 1);
+		stored.set(0, maxValue);
+		int maxStored = (int) stored.get(0);
+		if(plane.type == Plane.BYTE) {
+			byte [] out = (byte []) plane.getPixels();
+			byte [] in = (byte []) source.getPixels();
+			if(darkBackground && keepIntensities) {
+				for(int i = from; i < to; i++)	out [i] = (byte) (out [i] & ~(((in [i] & 0xff) - limit) >> 31));
+			}else if(darkBackground) {
+				for(int i = from; i < to; i++)	out [i] = (byte) (maxStored & ~(((in [i] & 0xff) - limit) >> 31));
+			}else if(keepIntensities) {
+				for(int i = from; i < to; i++)	out [i] = (byte) (out [i] & ~((limit - 1 - (in [i] & 0xff)) >> 31));
+			}else {
+				for(int i = from; i < to; i++)	out [i] = (byte) (maxStored & ~((limit - 1 - (in [i] & 0xff)) >> 31));
+			}
+		}else {
+			short [] out = (short []) plane.getPixels();
+			short [] in = (short []) source.getPixels();
+			if(darkBackground && keepIntensities) {
+				for(int i = from; i < to; i++)	out [i] = (short) (out [i] & ~(((in [i] & 0xffff) - limit) >> 31));
+			}else if(darkBackground) {
+				for(int i = from; i < to; i++)	out [i] = (short) (maxStored & ~(((in [i] & 0xffff) - limit) >> 31));
+			}else if(keepIntensities) {
+				for(int i = from; i < to; i++)	out [i] = (short) (out [i] & ~((limit - 1 - (in [i] & 0xffff)) >> 31));
+			}else {
+				for(int i = from; i < to; i++)	out [i] = (short) (maxStored & ~((limit - 1 - (in [i] & 0xffff)) >> 31));
+			}
+		}
+	}
+
+	/**
+	 * Float pixel values are compared with float limits that give the same result as the comparison
+	 * of the value (converted to double) with the double threshold.
+	 * */
+	private static void segmentFloat(float [] out, float [] in, double threshold, boolean darkBackground,
+			boolean keepIntensities, float maxValue, int from, int to) {
+		float limit = (float) threshold;
+		if(darkBackground) {
+			//v < threshold <=> v < limit
+			if((double) limit < threshold)	limit = Math.nextUp(limit);
+			for(int i = from; i < to; i++) {
+				if(in [i] < limit) {
+					out [i] = 0.0f;
+				}else if(!keepIntensities) {
+					out [i] = maxValue;
+				}
+			}
+		}else {
+			//v > threshold <=> v > limit
+			if((double) limit > threshold)	limit = Math.nextDown(limit);
+			for(int i = from; i < to; i++) {
+				if(in [i] > limit) {
+					out [i] = 0.0f;
+				}else if(!keepIntensities) {
+					out [i] = maxValue;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Vectorized version of Plane.setDifference(...), writes @param minuend - @param subtrahend into the
+	 * 32-bit plane @param out, runs in parallel on row bands.
+	 * @return false if not supported for the plane types
+	 * */
+	static boolean setDifference(final Plane out, final Plane minuend, final Plane subtrahend) {
+		if(out.type != Plane.FLOAT || minuend.type != subtrahend.type || minuend.type == Plane.RGB)	return false;
+		final int width = out.width;
+		RowBands.run(width, out.height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				setDifference(out, minuend, subtrahend, yStart * width, yEnd * width);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Writes @param minuend - @param subtrahend into the 32-bit plane @param out for the pixels @param from (inclusive)
+	 * to @param to (exclusive). For integer types, the difference is exact in int arithmetic; for floats,
+	 * the float subtraction gives the same result as the subtraction in double precision rounded to float.
+	 * @return false if not supported for the plane types
+	 * */
+	static boolean setDifference(Plane out, Plane minuend, Plane subtrahend, int from, int to) {
+		if(out.type != Plane.FLOAT || minuend.type != subtrahend.type)	return false;
+		float [] result = (float []) out.getPixels();
+		switch(minuend.type) {
+			case Plane.BYTE:{
+				byte [] a = (byte []) minuend.getPixels(), b = (byte []) subtrahend.getPixels();
+				for(int i = from; i < to; i++)	result [i] = (float) ((a [i] & 0xff) - (b [i] & 0xff));
+				return true;
+			}
+			case Plane.SHORT:{
+				short [] a = (short []) minuend.getPixels(), b = (short []) subtrahend.getPixels();
+				for(int i = from; i < to; i++)	result [i] = (float) ((a [i] & 0xffff) - (b [i] & 0xffff));
+				return true;
+			}
+			case Plane.FLOAT:{
+				float [] a = (float []) minuend.getPixels(), b = (float []) subtrahend.getPixels();
+				for(int i = from; i < to; i++)	result [i] = a [i] - b [i];
+				return true;
+			}
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Writes the inverted 8-bit @param binary AND the 8-bit @param mask to @param out
+	 * (same as invert + ImageCalculator "AND"): 255 - v = ~v for 8-bit values. Runs in parallel on row bands
+	 * of an image with @param width. @param out may be @param mask (in place).
+	 * */
+	static void invertAnd(final byte [] binary, final byte [] mask, final byte [] out, final int width) {
+		RowBands.run(width, out.length / width, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				invertAnd(binary, mask, out, yStart * width, yEnd * width);
+			}
+		});
+	}
+
+	static void invertAnd(byte [] binary, byte [] mask, byte [] out, int from, int to) {
+		for(int i = from; i < to; i++) {
+			out [i] = (byte) (~binary [i] & mask [i]);
+		}
+	}
+
+	/**
+	 * Sets the pixels @param from (inclusive) to @param to (exclusive) of @param plane to zero.
+	 * */
+	static void fillZero(Plane plane, int from, int to) {
+		if(from >= to)	return;
+		switch(plane.type) {
+			case Plane.BYTE:	Arrays.fill((byte []) plane.getPixels(), from, to, (byte) 0);	break;
+			case Plane.SHORT:	Arrays.fill((short []) plane.getPixels(), from, to, (short) 0);	break;
+			case Plane.FLOAT:	Arrays.fill((float []) plane.getPixels(), from, to, 0.0f);	break;
+			default:			Arrays.fill((int []) plane.getPixels(), from, to, 0);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package adipoQ_preparator_jnh;
+/**
+ * Typed view on the pixel array (byte [], short [], float [] or int []) of one plane of an ImageStack.
+ * Values are read and written with the same conversions as ImageStack.getVoxel / setVoxel
+ * (8- and 16-bit: clamped and rounded, 32-bit: cast to float, RGB: 24-bit integer value), but all
+ * bulk operations walk the pixel array in memory order (row by row) instead of calling getVoxel / setVoxel
+ * with a stack lookup and bounds check for every pixel.
+ * The bulk operations on the whole plane run in parallel on row bands (see RowBands), the variants with
+ * a pixel range (from inclusive, to exclusive) process only that range in the calling thread.
+ */
+
+import ij.ImagePlus;
+
+class Plane {
+	static final int BYTE = 0, SHORT = 1, FLOAT = 2, RGB = 3;
+
+	final int width, height, size, type;
+	private final byte [] bytes;
+	private final short [] shorts;
+	private final float [] floats;
+	private final int [] ints;
+
+	/**
+	 * View on the plane at @param index (0-based stack index, as for getVoxel) of @param imp
+	 * */
+	Plane(ImagePlus imp, int index){
+		this(imp.getStack().getPixels(index+1), imp.getWidth(), imp.getHeight());
+	}
+
+	Plane(Object pixels, int width, int height){
+		this.width = width;
+		this.height = height;
+		this.size = width * height;
+		if(pixels instanceof byte []) {
+			type = BYTE;
+			bytes = (byte []) pixels;
+			shorts = null;	floats = null;	ints = null;
+		}else if(pixels instanceof short []) {
+			type = SHORT;
+			shorts = (short []) pixels;
+			bytes = null;	floats = null;	ints = null;
+		}else if(pixels instanceof float []) {
+			type = FLOAT;
+			floats = (float []) pixels;
+			bytes = null;	shorts = null;	ints = null;
+		}else if(pixels instanceof int []) {
+			type = RGB;
+			ints = (int []) pixels;
+			bytes = null;	shorts = null;	floats = null;
+		}else {
+			throw new IllegalArgumentException("Unsupported pixel array " + pixels);
+		}
+	}
+
+	/**
+	 * @return the value of the pixel at @param i (= y * width + x)
+	 * */
+	final double get(int i) {
+		switch(type) {
+			case BYTE:	return bytes [i] & 0xff;
+			case SHORT:	return shorts [i] & 0xffff;
+			case FLOAT:	return floats [i];
+			default:	return ints [i] & 0xffffff;
+		}
+	}
+
+	/**
+	 * Sets the pixel at @param i (= y * width + x) to @param value
+	 * */
+	final void set(int i, double value) {
+		switch(type) {
+			case BYTE:
+				if(value > 255.0)	value = 255.0;
+				else if(value < 0.0)	value = 0.0;
+				bytes [i] = (byte) (value + 0.5);
+				break;
+			case SHORT:
+				if(value > 65535.0)	value = 65535.0;
+				else if(value < 0.0)	value = 0.0;
+				shorts [i] = (short) (value + 0.5);
+				break;
+			case FLOAT:
+				floats [i] = (float) value;
+				break;
+			default:
+				ints [i] = (int) value;
+		}
+	}
+
+	/**
+	 * Copies all pixels to @param target (same width and height required, bit depth may differ)
+	 * */
+	void copyTo(final Plane target) {
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				copyTo(target, yStart * width, yEnd * width);
+			}
+		});
+	}
+
+	/**
+	 * Copies the pixels @param from (inclusive) to @param to (exclusive) to @param target
+	 * */
+	void copyTo(Plane target, int from, int to) {
+		if(target.type == type) {
+			System.arraycopy(getPixels(), from, target.getPixels(), from, to - from);
+			return;
+		}
+		for(int i = from; i < to; i++) {
+			target.set(i, get(i));
+		}
+	}
+
+	/**
+	 * Sets all pixels of @param target to @param value where this plane is not zero, other pixels of target
+	 * remain unchanged
+	 * */
+	void copyNonZeroAsValue(final Plane target, final double value) {
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				copyNonZeroAsValue(target, value, yStart * width, yEnd * width);
+			}
+		});
+	}
+
+	void copyNonZeroAsValue(Plane target, double value, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(get(i) != 0.0) {
+				target.set(i, value);
+			}
+		}
+	}
+
+	/**
+	 * Sets each pixel of @param target to @param value where this plane is above zero and to zero elsewhere
+	 * */
+	void writeAboveZeroMask(final Plane target, final double value) {
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				writeAboveZeroMask(target, value, yStart * width, yEnd * width);
+			}
+		});
+	}
+
+	void writeAboveZeroMask(Plane target, double value, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(get(i) > 0.0) {
+				target.set(i, value);
+			}else {
+				target.set(i, 0.0);
+			}
+		}
+	}
+
+	/**
+	 * Sets each pixel of @param target to zero where this plane equals @param value and to @param otherValue elsewhere
+	 * */
+	void writeNotEqualMask(final Plane target, final double value, final double otherValue) {
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				writeNotEqualMask(target, value, otherValue, yStart * width, yEnd * width);
+			}
+		});
+	}
+
+	void writeNotEqualMask(Plane target, double value, double otherValue, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(get(i) == value) {
+				target.set(i, 0.0);
+			}else {
+				target.set(i, otherValue);
+			}
+		}
+	}
+
+	/**
+	 * Segments this plane based on the intensities in @param source: pixels below (@param darkBackground) or
+	 * above (bright background) the @param threshold are set to zero, all other pixels are set to @param maxValue
+	 * or keep their value if @param keepIntensities is true.
+	 * */
+	void segment(final Plane source, final double threshold, final boolean darkBackground, final boolean keepIntensities,
+			final double maxValue) {
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				segment(source, threshold, darkBackground, keepIntensities, maxValue, yStart * width, yEnd * width);
+			}
+		});
+	}
+
+	void segment(Plane source, double threshold, boolean darkBackground, boolean keepIntensities, double maxValue,
+			int from, int to) {
+		for(int i = from; i < to; i++) {
+			double intensity = source.get(i);
+			if(darkBackground ? intensity < threshold : intensity > threshold) {
+				set(i, 0.0);
+			}else if(!keepIntensities) {
+				set(i, maxValue);
+			}
+		}
+	}
+
+	/**
+	 * Writes @param minuend - @param subtrahend into this plane
+	 * */
+	void setDifference(final Plane minuend, final Plane subtrahend) {
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				setDifference(minuend, subtrahend, yStart * width, yEnd * width);
+			}
+		});
+	}
+
+	void setDifference(Plane minuend, Plane subtrahend, int from, int to) {
+		for(int i = from; i < to; i++) {
+			set(i, minuend.get(i) - subtrahend.get(i));
+		}
+	}
+
+	/**
+	 * This plane (32-bit) holds a filtered float copy of @param minuend. Replaces each filtered value by @param minuend
+	 * minus the filtered value converted to the type of @param minuend as ImageJ stores filter results
+	 * (ImageProcessor.setPixels(int, FloatProcessor): + 0.5f, clamped, truncated). Same result as storing the filtered
+	 * values in a copy of @param minuend and calling setDifference with that copy.
+	 * */
+	void setDifferenceToFiltered(Plane minuend, int from, int to) {
+		float value;
+		for(int i = from; i < to; i++) {
+			switch(minuend.type) {
+				case BYTE:
+					value = floats [i] + 0.5f;
+					if(value < 0f)	value = 0f;
+					if(value > 255f)	value = 255f;
+					set(i, minuend.get(i) - (int) value);
+					break;
+				case SHORT:
+					value = floats [i] + 0.5f;
+					if(value < 0f)	value = 0f;
+					if(value > 65535f)	value = 65535f;
+					set(i, minuend.get(i) - (int) value);
+					break;
+				case FLOAT:
+					set(i, minuend.get(i) - floats [i]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported pixel type of the minuend " + minuend.type);
+			}
+		}
+	}
+
+	/**
+	 * @return the minimum value of this plane (the band results are combined in the order of the bands,
+	 * so the result is the same as for a sequential run)
+	 * */
+	double getMin() {
+		int [] borders = RowBands.getBandBorders(width, height);
+		final double [] bandMin = new double [borders.length - 1];
+		RowBands.run(borders, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				bandMin [band] = getMin(yStart * width, yEnd * width);
+			}
+		});
+		double min = Double.POSITIVE_INFINITY;
+		for(int i = 0; i < bandMin.length; i++) {
+			if(bandMin [i] < min) {
+				min = bandMin [i];
+			}
+		}
+		return min;
+	}
+
+	double getMin(int from, int to) {
+		double min = Double.POSITIVE_INFINITY;
+		for(int i = from; i < to; i++) {
+			if(get(i) < min) {
+				min = get(i);
+			}
+		}
+		return min;
+	}
+
+	Object getPixels() {
+		switch(type) {
+			case BYTE:	return bytes;
+			case SHORT:	return shorts;
+			case FLOAT:	return floats;
+			default:	return ints;
+		}
+	}
+}
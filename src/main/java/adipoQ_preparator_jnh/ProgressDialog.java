@@ -299,6 +299,23 @@ public class ProgressDialog extends javax.swing.JFrame implements ActionListener
 		bgPanel.updateUI();
 	}
 	
+	/**
+	 * Shows @param text for the task @param taskNumber (1-based), which may differ from the first unfinished task
+	 * if several tasks are processed at the same time.
+	 * */
+	public void updateBarText(int taskNumber, String text){
+		progressBar.setString("Task " + taskNumber + "/" + tasks + ": " + text);
+		bgPanel.updateUI();
+	}
+	
+	/**
+	 * Sets the bar to @param fractionOfAllTasks (0.0-1.0), summed over all tasks processed at the same time.
+	 * */
+	public void setBarForAllTasks(double fractionOfAllTasks){
+		progressBar.setValue((int)Math.round(fractionOfAllTasks*100.0));
+		bgPanel.updateUI();
+	}
+	
 	public void replaceBarText(String text){			
 		progressBar.setString(text);
 		bgPanel.updateUI();
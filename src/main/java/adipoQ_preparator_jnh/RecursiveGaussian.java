@@ -0,0 +1,183 @@
+package adipoQ_preparator_jnh;
+/**
+ * Recursive (IIR) Gaussian blur after Deriche (INRIA RR-1893, 1993; fourth order, coefficient computation as in
+ * Getreuer, IPOL 3, 2013): each image line is filtered by a causal and an anti-causal fourth-order recursion whose sum
+ * approximates the Gaussian kernel, so the cost per pixel (16 multiply-adds per line direction) does not depend on
+ * sigma - in contrast to the kernel convolution of ImageJ (GaussianBlur), whose kernel grows with sigma. Pixels outside
+ * the image are treated as the nearest edge pixel, as in ImageJ; both recursions start in the steady state of the edge
+ * pixel, which is exact for this continuation.
+ *
+ * Accuracy: for sigma >= MIN_SIGMA pixels the deviation of the result from a blur with the exact (sampled) Gaussian
+ * kernel stays below MAX_DEVIATION of the intensity range of the image (measured for noise, impulses and hard-edged
+ * patterns with sigma from MIN_SIGMA to 100 pixels). For smaller sigma the approximation is worse and the ImageJ
+ * kernel is used instead (see AdipoQPreparatorMain.blurGaussian).
+ * Rows are filtered in parallel on row bands, columns in parallel on bands of columns (see RowBands).
+ */
+
+import ij.process.FloatProcessor;
+
+class RecursiveGaussian {
+	static final double MIN_SIGMA = 2.0;
+	static final double MAX_DEVIATION = 0.001;
+
+	/**
+	 * Columns filtered together in the vertical pass (one cache line of floats)
+	 * */
+	private static final int COLUMN_BLOCK = 16;
+
+	/**
+	 * Residues (alpha) and poles (lambda) of the fourth-order approximation, real and imaginary parts
+	 * */
+	private static final double [] ALPHA_RE = {0.84, 0.84, -0.34015, -0.34015},
+			ALPHA_IM = {1.8675, -1.8675, -0.1299, 0.1299},
+			LAMBDA_RE = {1.783, 1.783, 1.723, 1.723},
+			LAMBDA_IM = {0.6318, -0.6318, 1.997, -1.997};
+
+	/**
+	 * Filter coefficients: causal y+[n] = sum(k = 0..3) causal[k] x[n-k] - sum(k = 1..4) feedback[k] y+[n-k],
+	 * anti-causal y-[n] = sum(k = 1..4) antiCausal[k] x[n+k] - sum(k = 1..4) feedback[k] y-[n+k], result y+ + y-;
+	 * causalGain and antiCausalGain are the responses to a constant input of 1 (steady state)
+	 * */
+	private final double [] causal = new double [4], antiCausal = new double [5], feedback = new double [5];
+	private final double causalGain, antiCausalGain;
+
+	RecursiveGaussian(double sigma){
+		//poles beta = exp(-lambda / sigma); causal transfer function sum(alpha / (1 - beta z^-1)) = a(z) / b(z)
+		double [] aRe = new double [4], aIm = new double [4], bRe = new double [5], bIm = new double [5];
+		aRe [0] = ALPHA_RE [0];
+		aIm [0] = ALPHA_IM [0];
+		bRe [0] = 1.0;
+		double magnitude = Math.exp(-LAMBDA_RE [0] / sigma);
+		bRe [1] = -magnitude * Math.cos(-LAMBDA_IM [0] / sigma);
+		bIm [1] = -magnitude * Math.sin(-LAMBDA_IM [0] / sigma);
+		for(int k = 1; k < 4; k++) {
+			magnitude = Math.exp(-LAMBDA_RE [k] / sigma);
+			double betaRe = magnitude * Math.cos(-LAMBDA_IM [k] / sigma), betaIm = magnitude * Math.sin(-LAMBDA_IM [k] / sigma);
+			//a = a * (1 - beta z^-1) + alpha * b
+			for(int j = k; j >= 0; j--) {
+				double re = j < k ? aRe [j] : 0.0, im = j < k ? aIm [j] : 0.0;
+				if(j > 0) {
+					re -= betaRe * aRe [j-1] - betaIm * aIm [j-1];
+					im -= betaRe * aIm [j-1] + betaIm * aRe [j-1];
+				}
+				re += ALPHA_RE [k] * bRe [j] - ALPHA_IM [k] * bIm [j];
+				im += ALPHA_RE [k] * bIm [j] + ALPHA_IM [k] * bRe [j];
+				aRe [j] = re;
+				aIm [j] = im;
+			}
+			//b = b * (1 - beta z^-1)
+			for(int j = k + 1; j > 0; j--) {
+				double re = bRe [j] - (betaRe * bRe [j-1] - betaIm * bIm [j-1]);
+				double im = bIm [j] - (betaRe * bIm [j-1] + betaIm * bRe [j-1]);
+				bRe [j] = re;
+				bIm [j] = im;
+			}
+		}
+
+		//the anti-causal part mirrors the causal impulse response without the center pixel
+		for(int k = 0; k < 4; k++) {
+			causal [k] = aRe [k];
+		}
+		for(int k = 0; k <= 4; k++) {
+			feedback [k] = bRe [k];
+		}
+		for(int k = 1; k < 4; k++) {
+			antiCausal [k] = causal [k] - feedback [k] * causal [0];
+		}
+		antiCausal [4] = -feedback [4] * causal [0];
+
+		//normalize to a total gain of 1
+		double sumCausal = 0.0, sumAntiCausal = 0.0, sumFeedback = 0.0;
+		for(int k = 0; k <= 4; k++) {
+			if(k < 4)	sumCausal += causal [k];
+			sumAntiCausal += antiCausal [k];
+			sumFeedback += feedback [k];
+		}
+		double scale = sumFeedback / (sumCausal + sumAntiCausal);
+		for(int k = 0; k <= 4; k++) {
+			if(k < 4)	causal [k] *= scale;
+			antiCausal [k] *= scale;
+		}
+		causalGain = sumCausal * scale / sumFeedback;
+		antiCausalGain = sumAntiCausal * scale / sumFeedback;
+	}
+
+	/**
+	 * Blurs @param fp in place with a Gaussian of @param sigma (pixels) in x and y
+	 * */
+	static void blur(FloatProcessor fp, double sigma) {
+		blur((float []) fp.getPixels(), fp.getWidth(), fp.getHeight(), sigma);
+	}
+
+	/**
+	 * Blurs the image @param pixels of @param width x @param height pixels in place with a Gaussian of @param sigma
+	 * (pixels) in x and y
+	 * */
+	static void blur(final float [] pixels, final int width, final int height, double sigma) {
+		final RecursiveGaussian filter = new RecursiveGaussian(sigma);
+		RowBands.run(width, height, new RowBands.Task() {
+			public void run(int band, int yStart, int yEnd) {
+				double [] line = new double [width];
+				for(int y = yStart; y < yEnd; y++) {
+					filter.filterLines(pixels, y * width, 1, 1, width, line);
+				}
+			}
+		});
+		//bands of columns: RowBands splits the "rows" of a transposed image
+		RowBands.run(height, width, new RowBands.Task() {
+			public void run(int band, int xStart, int xEnd) {
+				double [] lines = new double [height * COLUMN_BLOCK];
+				for(int x = xStart; x < xEnd; x += COLUMN_BLOCK) {
+					filter.filterLines(pixels, x, width, Math.min(COLUMN_BLOCK, xEnd - x), height, lines);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Filters @param count neighboring lines of @param length pixels in @param pixels. Line j starts at
+	 * @param start + j and its pixels are @param stride apart (1: row, width: column); the lines of a block are
+	 * filtered together, so that columns are read row by row. @param buffer holds length * count values
+	 * (the causal result, buffer [n * count + j] = y+[n] of line j).
+	 * */
+	private void filterLines(float [] pixels, int start, int stride, int count, int length, double [] buffer) {
+		//x[n-1..n-3] and y[n-1..n-4] (causal) or x[n+1..n+4] and y[n+1..n+4] (anti-causal) of each line
+		double [] x1 = new double [count], x2 = new double [count], x3 = new double [count], x4 = new double [count];
+		double [] y1 = new double [count], y2 = new double [count], y3 = new double [count], y4 = new double [count];
+
+		for(int j = 0; j < count; j++) {
+			double edge = pixels [start + j];
+			x1 [j] = edge;	x2 [j] = edge;	x3 [j] = edge;
+			y1 [j] = causalGain * edge;	y2 [j] = y1 [j];	y3 [j] = y1 [j];	y4 [j] = y1 [j];
+		}
+		for(int n = 0; n < length; n++) {
+			int p = start + n * stride, i = n * count;
+			for(int j = 0; j < count; j++) {
+				double x = pixels [p + j];
+				double y = causal [0] * x + causal [1] * x1 [j] + causal [2] * x2 [j] + causal [3] * x3 [j]
+						- feedback [1] * y1 [j] - feedback [2] * y2 [j] - feedback [3] * y3 [j] - feedback [4] * y4 [j];
+				buffer [i + j] = y;
+				x3 [j] = x2 [j];	x2 [j] = x1 [j];	x1 [j] = x;
+				y4 [j] = y3 [j];	y3 [j] = y2 [j];	y2 [j] = y1 [j];	y1 [j] = y;
+			}
+		}
+
+		int last = start + (length - 1) * stride;
+		for(int j = 0; j < count; j++) {
+			double edge = pixels [last + j];
+			x1 [j] = edge;	x2 [j] = edge;	x3 [j] = edge;	x4 [j] = edge;
+			y1 [j] = antiCausalGain * edge;	y2 [j] = y1 [j];	y3 [j] = y1 [j];	y4 [j] = y1 [j];
+		}
+		for(int n = length - 1; n >= 0; n--) {
+			int p = start + n * stride, i = n * count;
+			for(int j = 0; j < count; j++) {
+				double x = pixels [p + j];
+				double y = antiCausal [1] * x1 [j] + antiCausal [2] * x2 [j] + antiCausal [3] * x3 [j] + antiCausal [4] * x4 [j]
+						- feedback [1] * y1 [j] - feedback [2] * y2 [j] - feedback [3] * y3 [j] - feedback [4] * y4 [j];
+				pixels [p + j] = (float) (buffer [i + j] + y);
+				x4 [j] = x3 [j];	x3 [j] = x2 [j];	x2 [j] = x1 [j];	x1 [j] = x;
+				y4 [j] = y3 [j];	y3 [j] = y2 [j];	y2 [j] = y1 [j];	y1 [j] = y;
+			}
+		}
+	}
+}
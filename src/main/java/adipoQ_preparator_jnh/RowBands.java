@@ -0,0 +1,100 @@
+package adipoQ_preparator_jnh;
+/**
+ * Runs pixel kernels in parallel on horizontal bands of image rows (fork/join), using up to
+ * Prefs.getThreads() threads (Edit > Options > Memory & Threads). Images are split into more bands than threads
+ * for load balancing, but each band contains at least minPixelsPerBand pixels (default MIN_PIXELS_PER_BAND, may be
+ * changed by the AutoTuner), so that small images are processed in the calling thread without any overhead.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.Prefs;
+
+class RowBands {
+	static final int MIN_PIXELS_PER_BAND = 1 << 18;
+	static final int BANDS_PER_THREAD = 4;
+	static volatile int minPixelsPerBand = MIN_PIXELS_PER_BAND;
+
+	private static ForkJoinPool pool = null;
+
+	/**
+	 * Processes the rows yStart (inclusive) to yEnd (exclusive) of the band with index band
+	 * */
+	interface Task {
+		void run(int band, int yStart, int yEnd);
+	}
+
+	/**
+	 * @return the borders of the row bands for an image of @param width x @param height:
+	 * band i contains the rows borders [i] (inclusive) to borders [i+1] (exclusive)
+	 * */
+	static int [] getBandBorders(int width, int height) {
+		int threads = Math.max(1, Prefs.getThreads());
+		long bands = Math.min((long) threads * BANDS_PER_THREAD, ((long) width * (long) height) / minPixelsPerBand);
+		if(threads == 1)	bands = 1;
+		bands = Math.max(1, Math.min(bands, height));
+		int [] borders = new int [(int) bands + 1];
+		for(int i = 0; i <= bands; i++) {
+			borders [i] = (int) ((long) height * i / bands);
+		}
+		return borders;
+	}
+
+	static void run(int width, int height, Task task) {
+		run(getBandBorders(width, height), task);
+	}
+
+	/**
+	 * Runs @param task for all bands defined by @param borders (see getBandBorders) and returns when all
+	 * bands are processed. Exceptions thrown by the task are passed on to the caller.
+	 * */
+	static void run(int [] borders, Task task) {
+		int bands = borders.length - 1;
+		if(bands == 1) {
+			task.run(0, borders [0], borders [1]);
+			return;
+		}
+		getPool().invoke(new BandAction(task, borders, 0, bands));
+	}
+
+	/**
+	 * @return a pool with Prefs.getThreads() threads. If the number of threads was changed, a new pool is created.
+	 * The previous pool is not shut down, as other images or channels may still run bands on it; its worker threads
+	 * terminate by themselves once it is idle.
+	 * */
+	private static synchronized ForkJoinPool getPool() {
+		int threads = Math.max(1, Prefs.getThreads());
+		if(pool == null || pool.getParallelism() != threads) {
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/**
+	 * Splits the range of bands in halves until single bands remain
+	 * */
+	private static class BandAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Task task;
+		private final int [] borders;
+		private final int first, last;
+
+		BandAction(Task task, int [] borders, int first, int last){
+			this.task = task;
+			this.borders = borders;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if(last - first == 1) {
+				task.run(first, borders [first], borders [first + 1]);
+				return;
+			}
+			int middle = (first + last) / 2;
+			invokeAll(new BandAction(task, borders, first, middle), new BandAction(task, borders, middle, last));
+		}
+	}
+}
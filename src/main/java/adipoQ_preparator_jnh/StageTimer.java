@@ -0,0 +1,79 @@
+package adipoQ_preparator_jnh;
+/**
+ * Measures the time spent in the individual processing stages of the AdipoQ Preparator.
+ * A stage starts with each progress text update and ends with the next update or stop().
+ * Stages are named by the progress text up to the first number, bracket or "...",
+ * so that, e.g., "Bluring image ... 1.8 micron" and "Bluring image ... 0.9 micron" are summed up.
+ * Can be used from several threads at the same time - each thread runs its own stage.
+ */
+
+import java.util.LinkedHashMap;
+
+public class StageTimer {
+	private LinkedHashMap<String, long []> stages = new LinkedHashMap<String, long []>();
+	private ThreadLocal<String> currentStage = new ThreadLocal<String>();
+	private ThreadLocal<Long> currentStart = new ThreadLocal<Long>();
+	
+	/**
+	 * Stops the current stage of this thread and starts the stage named by @param text.
+	 * */
+	public void startStage(String text) {
+		stop();
+		currentStage.set(getStageName(text));
+		currentStart.set(System.nanoTime());
+	}
+	
+	/**
+	 * Stops the current stage of this thread (if any).
+	 * */
+	public void stop() {
+		String stage = currentStage.get();
+		if(stage == null)	return;
+		long duration = System.nanoTime() - currentStart.get();
+		currentStage.remove();
+		currentStart.remove();
+		synchronized(stages) {
+			long [] entry = stages.get(stage);
+			if(entry == null) {
+				entry = new long [2];
+				stages.put(stage, entry);
+			}
+			entry [0] += duration;
+			entry [1] ++;
+		}
+	}
+	
+	/**
+	 * @return a copy of all measured stages in order of first occurrence: 
+	 * stage name -> {summed time in nanoseconds, number of calls}
+	 * */
+	public LinkedHashMap<String, long []> getStages() {
+		LinkedHashMap<String, long []> copy = new LinkedHashMap<String, long []>();
+		synchronized(stages) {
+			for(String stage : stages.keySet()) {
+				copy.put(stage, stages.get(stage).clone());
+			}
+		}
+		return copy;
+	}
+	
+	public void reset() {
+		synchronized(stages) {
+			stages.clear();
+		}
+	}
+	
+	static String getStageName(String text) {
+		int end = text.length();
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(Character.isDigit(c) || c == '(' || text.startsWith("...", i)) {
+				end = i;
+				break;
+			}
+		}
+		String name = text.substring(0, end).trim();
+		if(name.length() == 0)	return text.trim();
+		return name;
+	}
+}
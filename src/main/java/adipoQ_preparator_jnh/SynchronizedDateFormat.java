@@ -0,0 +1,28 @@
+package adipoQ_preparator_jnh;
+/**
+ * SimpleDateFormat that can be shared between threads (see SynchronizedDecimalFormat): the date formats
+ * of AdipoQPreparatorMain are static and used by all tasks, which may be processed at the same time.
+ */
+
+import java.text.FieldPosition;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+class SynchronizedDateFormat extends SimpleDateFormat {
+	private static final long serialVersionUID = 1L;
+
+	SynchronizedDateFormat(String pattern){
+		super(pattern);
+	}
+
+	@Override
+	public synchronized StringBuffer format(Date date, StringBuffer toAppendTo, FieldPosition pos) {
+		return super.format(date, toAppendTo, pos);
+	}
+
+	@Override
+	public synchronized Date parse(String text, ParsePosition pos) {
+		return super.parse(text, pos);
+	}
+}
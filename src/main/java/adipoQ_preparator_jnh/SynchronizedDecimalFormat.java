@@ -0,0 +1,39 @@
+package adipoQ_preparator_jnh;
+/**
+ * DecimalFormat that can be shared between threads: DecimalFormat keeps internal state while formatting
+ * and thus returns corrupted strings if used by several threads at the same time (e.g., when segmentation
+ * channels are processed in parallel). All formatting and parsing calls are synchronized on the instance.
+ */
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.FieldPosition;
+import java.text.ParsePosition;
+
+class SynchronizedDecimalFormat extends DecimalFormat {
+	private static final long serialVersionUID = 1L;
+
+	SynchronizedDecimalFormat(String pattern){
+		super(pattern);
+	}
+
+	@Override
+	public synchronized StringBuffer format(double number, StringBuffer result, FieldPosition fieldPosition) {
+		return super.format(number, result, fieldPosition);
+	}
+
+	@Override
+	public synchronized StringBuffer format(long number, StringBuffer result, FieldPosition fieldPosition) {
+		return super.format(number, result, fieldPosition);
+	}
+
+	@Override
+	public synchronized Number parse(String text, ParsePosition pos) {
+		return super.parse(text, pos);
+	}
+
+	@Override
+	public synchronized void setDecimalFormatSymbols(DecimalFormatSymbols newSymbols) {
+		super.setDecimalFormatSymbols(newSymbols);
+	}
+}
@@ -0,0 +1,97 @@
+package adipoQ_preparator_jnh;
+/**
+ * Orders the tasks of a batch by their estimated processing cost (see AdipoQPreparatorMain.estimateImageCost):
+ * 	- largest first: the most expensive tasks are started first, so that the workers (see parallelImages) do not
+ * 	wait for a single large image at the end of the batch,
+ * 	- smallest first: the results of the fast tasks are available early.
+ * Tasks that share the same source file (series of a multi-series file) are kept together in their original order,
+ * so that the file is read in sequence, and are ordered by the summed cost of the file.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+class TaskOrder {
+	/**
+	 * Tasks of one source file
+	 * */
+	private static class FileGroup {
+		final ArrayList<Integer> tasks = new ArrayList<Integer>();
+		double cost = 0.0;
+	}
+
+	/**
+	 * @return the new order of the tasks listed in @param name and @param dir with the estimated @param cost
+	 * (unknown costs < 0 count as 0): position i of the new order holds the original index of the task.
+	 * Files with the same cost keep their original order.
+	 * */
+	static int [] getOrder(String name [], String dir [], double cost [], final boolean largestFirst) {
+		LinkedHashMap<String, FileGroup> files = new LinkedHashMap<String, FileGroup>();
+		for(int task = 0; task < name.length; task++) {
+			String path = dir [task] + name [task];
+			FileGroup group = files.get(path);
+			if(group == null) {
+				group = new FileGroup();
+				files.put(path, group);
+			}
+			group.tasks.add(task);
+			group.cost += Math.max(0.0, cost [task]);
+		}
+
+		ArrayList<FileGroup> groups = new ArrayList<FileGroup>(files.values());
+		//stable sort
+		Collections.sort(groups, new Comparator<FileGroup>() {
+			public int compare(FileGroup a, FileGroup b) {
+				if(largestFirst)	return Double.compare(b.cost, a.cost);
+				return Double.compare(a.cost, b.cost);
+			}
+		});
+
+		int order [] = new int [name.length];
+		int i = 0;
+		for(FileGroup group : groups) {
+			for(int task : group.tasks) {
+				order [i] = task;
+				i++;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * @return a copy of @param values arranged in the given @param order (see getOrder)
+	 * */
+	static <T> T [] apply(int order [], T values []) {
+		T ordered [] = values.clone();
+		for(int i = 0; i < order.length; i++) {
+			ordered [i] = values [order [i]];
+		}
+		return ordered;
+	}
+
+	static int [] apply(int order [], int values []) {
+		int ordered [] = new int [order.length];
+		for(int i = 0; i < order.length; i++) {
+			ordered [i] = values [order [i]];
+		}
+		return ordered;
+	}
+
+	static long [] apply(int order [], long values []) {
+		long ordered [] = new long [order.length];
+		for(int i = 0; i < order.length; i++) {
+			ordered [i] = values [order [i]];
+		}
+		return ordered;
+	}
+
+	static double [] apply(int order [], double values []) {
+		double ordered [] = new double [order.length];
+		for(int i = 0; i < order.length; i++) {
+			ordered [i] = values [order [i]];
+		}
+		return ordered;
+	}
+}
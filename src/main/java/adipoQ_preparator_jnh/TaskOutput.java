@@ -0,0 +1,146 @@
+package adipoQ_preparator_jnh;
+/**
+ * Output of one task (output image, ROI files and run-length masks, metadata file and the images to be closed afterwards).
+ * The outputs are written immediately, or - in the pipelined batch mode (see TaskPipeline) - collected
+ * and written by the writer stage in the order in which they were added, while the next images are processed.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+
+class TaskOutput {
+	final int task;
+	private final boolean deferred;
+	private final ArrayList<Runnable> actions = new ArrayList<Runnable>();
+	private final ArrayList<ImagePlus> images = new ArrayList<ImagePlus>();
+
+	/**
+	 * @param task index of the task
+	 * @param deferred if true, outputs are only written when write() is called
+	 * */
+	TaskOutput(int task, boolean deferred){
+		this.task = task;
+		this.deferred = deferred;
+	}
+
+	void saveAsTiff(final ImagePlus imp, final String path) {
+		add(new Runnable() {
+			public void run() {
+				IJ.saveAsTiff(imp, path);
+			}
+		});
+	}
+
+	/**
+	 * Saves a copy of @param roi, so that later changes of the roi do not affect the output.
+	 * If @param roi is null (e.g., no pixels to select), no file is saved and this is logged.
+	 * */
+	void saveRoi(Roi roi, final String path) {
+		if(roi == null) {
+			IJ.log("No ROI to save - " + path + " was not written.");
+			return;
+		}
+		final Roi copy = deferred ? (Roi) roi.clone() : roi;
+		add(new Runnable() {
+			public void run() {
+				try{
+					RoiEncoder re = new RoiEncoder(path);
+					re.write(copy);
+				}catch(Exception e){
+					IJ.error("Failed to correctly save rois!");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Saves the runs of ROI pixels @param runs (see MaskOutline.getRuns) of a @param width x @param height image as
+	 * tab-separated text: one line per run with the row, the first x and the x after the run
+	 * */
+	void saveRuns(final int [] runs, final int width, final int height, final String path) {
+		add(new Runnable() {
+			public void run() {
+				try{
+					BufferedWriter writer = new BufferedWriter(new FileWriter(path));
+					try{
+						writer.write("Image width:	" + width + "	Image height:	" + height);
+						writer.newLine();
+						writer.write("y	first x	x after run");
+						writer.newLine();
+						for(int k = 0; k < runs.length; k += 3) {
+							writer.write(runs [k] + "	" + runs [k+1] + "	" + runs [k+2]);
+							writer.newLine();
+						}
+					}finally{
+						writer.close();
+					}
+				}catch(IOException e){
+					IJ.error("Failed to correctly save run-length mask!");
+				}
+			}
+		});
+	}
+
+	void saveMetadata(final MetadataText text, final String path) {
+		add(new Runnable() {
+			public void run() {
+				text.saveAs(path);
+			}
+		});
+	}
+
+	/**
+	 * Closes @param imp without saving changes once all outputs added before were written
+	 * */
+	void close(final ImagePlus imp) {
+		if(deferred)	images.add(imp);
+		add(new Runnable() {
+			public void run() {
+				imp.changes = false;
+				imp.close();
+			}
+		});
+	}
+
+	/**
+	 * Runs @param action once all outputs added before were written (e.g., to report the task as finished)
+	 * */
+	void add(Runnable action) {
+		if(deferred) {
+			actions.add(action);
+		}else {
+			action.run();
+		}
+	}
+
+	/**
+	 * Writes all collected outputs in the order in which they were added
+	 * */
+	void write() {
+		for(int i = 0; i < actions.size(); i++) {
+			actions.get(i).run();
+		}
+		actions.clear();
+		images.clear();
+	}
+
+	/**
+	 * Drops all collected outputs without writing them (e.g., after the task failed) and closes the images that
+	 * were to be closed after writing
+	 * */
+	void discard() {
+		actions.clear();
+		for(int i = 0; i < images.size(); i++) {
+			images.get(i).changes = false;
+			images.get(i).close();
+		}
+		images.clear();
+	}
+}
@@ -0,0 +1,203 @@
+package adipoQ_preparator_jnh;
+/**
+ * Pipelined batch processing of image files in three stages connected by bounded queues:
+ * 	- a reader thread opens (loads and decodes) the images of the next tasks,
+ * 	- processing threads (AdipoQPreparatorMain.parallelImages) process the opened images,
+ * 	- a writer thread saves the output image, ROI and metadata files of the processed tasks.
+ * Thus, reading task N+1 and writing task N-1 overlap with processing task N. Each queue holds at most as many
+ * tasks as there are processing threads, so the reader and the processing threads wait (backpressure) if the
+ * next stage is behind, and the number of images held in memory stays limited. In addition, the reader only opens
+ * the next image once its estimated memory demand fits into the memory budget (see MemoryBudget).
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ij.ImagePlus;
+
+class TaskPipeline {
+	/**
+	 * Image of a task opened by the reader stage; error is set if the image could not be opened,
+	 * admitted is false if the image was not opened as it exceeds the memory budget (see MemoryBudget).
+	 * */
+	static class Input {
+		final int task;
+		ImagePlus imp = null;
+		Exception error = null;
+		boolean admitted = false;
+
+		Input(int task){
+			this.task = task;
+		}
+	}
+
+	private static final Input END_OF_INPUT = new Input(-1);
+	private static final TaskOutput END_OF_OUTPUT = new TaskOutput(-1, true);
+
+	private final AdipoQPreparatorMain main;
+	private final String [] name, dir;
+	private final int [] series, totSeries;
+	private final int tasks, workers;
+	private final BlockingQueue<Input> inputs;
+	private final BlockingQueue<TaskOutput> outputs;
+	private volatile Throwable failure = null;
+
+	TaskPipeline(AdipoQPreparatorMain main, String name [], String dir [], int series [], int totSeries [], int tasks, int workers){
+		this.main = main;
+		this.name = name;
+		this.dir = dir;
+		this.series = series;
+		this.totSeries = totSeries;
+		this.tasks = tasks;
+		this.workers = Math.max(1, workers);
+		inputs = new ArrayBlockingQueue<Input>(this.workers);
+		outputs = new ArrayBlockingQueue<TaskOutput>(this.workers);
+	}
+
+	/**
+	 * Processes all tasks and returns when all outputs are written. Exceptions and errors thrown in any stage
+	 * stop the pipeline and are passed on to the caller.
+	 * */
+	void run() {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "AdipoQ Preparator reader");
+		Thread [] processors = new Thread [workers];
+		for(int i = 0; i < workers; i++) {
+			processors [i] = new Thread(new Runnable() {
+				public void run() {
+					process();
+				}
+			}, "AdipoQ Preparator processor " + (i+1));
+		}
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "AdipoQ Preparator writer");
+
+		reader.start();
+		for(int i = 0; i < workers; i++) {
+			processors [i].start();
+		}
+		writer.start();
+		try {
+			reader.join();
+			for(int i = 0; i < workers; i++) {
+				processors [i].join();
+			}
+			outputs.put(END_OF_OUTPUT);
+			writer.join();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = e;
+		}
+
+		if(failure instanceof Error)	throw (Error) failure;
+		if(failure instanceof RuntimeException)	throw (RuntimeException) failure;
+		if(failure != null)	throw new RuntimeException(failure);
+	}
+
+	private void read() {
+		try {
+			for(int task = 0; task < tasks && main.continueProcessing && failure == null; task++) {
+				Input input = new Input(task);
+				if(!main.isNoImageFile(name [task])) {
+					//waits until the memory of finished tasks is released
+					input.admitted = main.admitTask(task);
+					if(input.admitted) {
+						try {
+							input.imp = main.openTaskImage(task, name, dir, series, totSeries, null);
+						}catch(Exception e) {
+							input.error = e;
+						}
+					}
+				}
+				inputs.put(input);
+			}
+		}catch(Throwable t) {
+			failure = t;
+		}finally {
+			//one end marker for each processing thread
+			for(int i = 0; i < workers; i++) {
+				try {
+					inputs.put(END_OF_INPUT);
+				}catch(InterruptedException e) {
+					failure = e;
+				}
+			}
+		}
+	}
+
+	private void process() {
+		try {
+			while(true) {
+				Input input = inputs.take();
+				if(input == END_OF_INPUT)	break;
+				if(failure != null) {
+					//discard the remaining images after a failure
+					discard(input, null);
+					continue;
+				}
+				TaskOutput output = new TaskOutput(input.task, true);
+				try {
+					main.processTask(input.task, name, dir, series, totSeries, null, input, output);
+				}catch(Throwable t) {
+					//the partial outputs of the failed task are not written
+					discard(input, output);
+					throw t;
+				}
+				outputs.put(output);
+			}
+		}catch(Throwable t) {
+			failure = t;
+			//keep consuming, so that the reader is not blocked, and discard the images opened meanwhile
+			try {
+				Input input;
+				while((input = inputs.take()) != END_OF_INPUT) {
+					discard(input, null);
+				}
+			}catch(InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Closes the image of @param input and the images of @param output (if not null) without writing any output,
+	 * and releases the memory reserved for the task
+	 * */
+	private void discard(Input input, TaskOutput output) {
+		if(input.imp != null) {
+			input.imp.changes = false;
+			input.imp.close();
+		}
+		if(output != null)	output.discard();
+		main.releaseTask(input.task);
+	}
+
+	private void write() {
+		try {
+			while(true) {
+				TaskOutput output = outputs.take();
+				if(output == END_OF_OUTPUT)	break;
+				//the stages of the processing threads are not visible to this thread (see StageTimer)
+				StageTimer stageTimer = main.stageTimer;
+				if(stageTimer != null)	stageTimer.startStage("Write output");
+				try {
+					output.write();
+				}finally {
+					if(stageTimer != null)	stageTimer.stop();
+				}
+			}
+		}catch(Throwable t) {
+			failure = t;
+			//keep consuming, so that the processing threads are not blocked
+			try {
+				while(outputs.take() != END_OF_OUTPUT);
+			}catch(InterruptedException e) {
+			}
+		}
+	}
+}